@@ -0,0 +1,203 @@
+package com.i7.openfire.archive;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import com.i7.openfire.archive.model.Conversation;
+
+/**
+ * Registry of the conversations currently active in this cluster member,
+ * keyed by conversation key and indexed by conversation ID. The registry keeps an estimate of the heap used
+ * by its conversations and can be bounded both in number of conversations and
+ * in estimated bytes; once a bound is exceeded the least recently active
+ * conversations are evicted.
+ *
+ * Mutating methods must be called holding the conversation lock of the key.
+ */
+public class ActiveConversationRegistry {
+
+	/**
+	 * Estimated bytes used by a registry entry besides its strings: the
+	 * conversation object, the map entries and the expiry wheel bookkeeping.
+	 */
+	private static final int ENTRY_OVERHEAD = 280;
+
+	private final Map<String, Conversation> conversations = new ConcurrentHashMap<>();
+
+	/**
+	 * The same conversations by ID. Key: Conversation ID; Value: Conversation.
+	 */
+	private final Map<String, Conversation> conversationsById = new ConcurrentHashMap<>();
+	private final ConversationExpiryWheel expiryWheel;
+
+	private final AtomicLong estimatedBytes = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong expirations = new AtomicLong();
+
+	public ActiveConversationRegistry(long resolution) {
+		this.expiryWheel = new ConversationExpiryWheel(resolution);
+	}
+
+	public Conversation get(String conversationKey) {
+		return conversations.get(conversationKey);
+	}
+
+	/**
+	 * Returns an active conversation by ID.
+	 *
+	 * @param conversationId
+	 *            the ID of the conversation.
+	 * @return the conversation, or <tt>null</tt> if it is not active.
+	 */
+	public Conversation getById(String conversationId) {
+		return conversationsById.get(conversationId);
+	}
+
+	/**
+	 * Adds a conversation to the registry and marks it as active now.
+	 *
+	 * @param conversationKey
+	 *            unique key that identifies the conversation.
+	 * @param conversation
+	 *            the conversation.
+	 */
+	public void put(String conversationKey, Conversation conversation) {
+		Conversation previous = conversations.put(conversationKey, conversation);
+		long delta = estimateSize(conversationKey, conversation);
+		if (previous != null) {
+			conversationsById.remove(previous.getId(), previous);
+			delta -= estimateSize(conversationKey, previous);
+		}
+		conversationsById.put(conversation.getId(), conversation);
+		estimatedBytes.addAndGet(delta);
+		touch(conversationKey);
+	}
+
+	/**
+	 * Marks a conversation as active now.
+	 *
+	 * @param conversationKey
+	 *            unique key that identifies the conversation.
+	 */
+	public void touch(String conversationKey) {
+		expiryWheel.touch(conversationKey, System.currentTimeMillis());
+	}
+
+	public Conversation remove(String conversationKey) {
+		Conversation conversation = conversations.remove(conversationKey);
+		if (conversation != null) {
+			conversationsById.remove(conversation.getId(), conversation);
+			estimatedBytes.addAndGet(-estimateSize(conversationKey, conversation));
+		}
+		expiryWheel.remove(conversationKey);
+		return conversation;
+	}
+
+	public Collection<Conversation> values() {
+		return conversations.values();
+	}
+
+	public int size() {
+		return conversations.size();
+	}
+
+	/**
+	 * Offers the conversations idle for longer than the idle time to the
+	 * expirer. See {@link ConversationExpiryWheel#expire(long, Predicate)}.
+	 *
+	 * @param idleTime
+	 *            idle time in milliseconds.
+	 * @param expirer
+	 *            expires a conversation, returning false if it is still active.
+	 * @return the number of expired conversations.
+	 */
+	public int expire(long idleTime, Predicate<String> expirer) {
+		int expired = expiryWheel.expire(idleTime, expirer);
+		expirations.addAndGet(expired);
+		return expired;
+	}
+
+	/**
+	 * Returns true if the registry holds more conversations, or more estimated
+	 * bytes, than allowed.
+	 *
+	 * @param maxConversations
+	 *            maximum number of conversations, 0 for no limit.
+	 * @param maxBytes
+	 *            maximum number of estimated bytes, 0 for no limit.
+	 * @return true if a bound is exceeded.
+	 */
+	public boolean isOverCapacity(int maxConversations, long maxBytes) {
+		return (maxConversations > 0 && conversations.size() > maxConversations)
+				|| (maxBytes > 0 && estimatedBytes.get() > maxBytes);
+	}
+
+	/**
+	 * Offers the least recently active conversations to the evicter until the
+	 * registry is within its bounds again.
+	 *
+	 * @param maxConversations
+	 *            maximum number of conversations, 0 for no limit.
+	 * @param maxBytes
+	 *            maximum number of estimated bytes, 0 for no limit.
+	 * @param evicter
+	 *            evicts a conversation, returning false if it could not be
+	 *            evicted.
+	 * @return the number of evicted conversations.
+	 */
+	public int evict(int maxConversations, long maxBytes, Predicate<String> evicter) {
+		int evicted = expiryWheel.evictOldest(() -> isOverCapacity(maxConversations, maxBytes), evicter);
+		evictions.addAndGet(evicted);
+		return evicted;
+	}
+
+	/**
+	 * Returns the estimated number of bytes of heap used by the registry.
+	 *
+	 * @return the estimated heap usage in bytes.
+	 */
+	public long getEstimatedBytes() {
+		return estimatedBytes.get();
+	}
+
+	/**
+	 * Returns the estimated number of bytes of heap used per conversation.
+	 *
+	 * @return the estimated heap usage of a conversation in bytes.
+	 */
+	public long getAverageConversationBytes() {
+		int size = conversations.size();
+		return size == 0 ? 0 : estimatedBytes.get() / size;
+	}
+
+	/**
+	 * Returns the number of conversations evicted to stay within bounds.
+	 *
+	 * @return the number of evicted conversations.
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * Returns the number of conversations removed for being idle.
+	 *
+	 * @return the number of expired conversations.
+	 */
+	public long getExpirations() {
+		return expirations.get();
+	}
+
+	private static long estimateSize(String conversationKey, Conversation conversation) {
+		return ENTRY_OVERHEAD + estimateSize(conversationKey) + estimateSize(conversation.getId())
+				+ estimateSize(conversation.getParticipantOne()) + estimateSize(conversation.getParticipantTwo());
+	}
+
+	private static long estimateSize(String value) {
+		// Object header, hash and array header plus two bytes per character.
+		return value == null ? 0 : 40 + 2L * value.length();
+	}
+}
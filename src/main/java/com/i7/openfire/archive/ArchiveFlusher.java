@@ -0,0 +1,231 @@
+package com.i7.openfire.archive;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.jivesoftware.util.JiveConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.i7.openfire.archive.config.Properties;
+import com.i7.openfire.archive.tasks.ArchivingTask;
+import com.i7.openfire.archive.wal.WriteAheadLog;
+
+/**
+ * Writes the pending messages and conversations to the database continuously.
+ * A flush is triggered as soon as the number of pending messages reaches the
+ * batch size or the maximum delay since the previous flush elapses, whichever
+ * comes first.
+ *
+ * The batch size adapts to the observed database latency: it is halved when a
+ * flush takes longer than the target latency and grows again, a step at a
+ * time, while full batches are written within the target. The configured batch
+ * size is the upper bound.
+ *
+ * Each flush is split by conversation across a fixed set of writer threads,
+ * each writing on its own database connection.
+ *
+ * After every flush the write-ahead log is truncated up to the oldest segment
+ * still holding records not written to the database.
+ */
+public class ArchiveFlusher implements Startable {
+	private static final Logger log = LoggerFactory.getLogger(ArchiveFlusher.class);
+
+	private static final int MIN_BATCH_SIZE = 50;
+
+	private final ConversationManager conversationManager;
+	private final Properties properties;
+
+	private final AtomicLong flushes = new AtomicLong();
+	private final AtomicLong flushedMessages = new AtomicLong();
+	private final AtomicLong slowFlushes = new AtomicLong();
+
+	/**
+	 * Held while writing, so that the final flush on stop waits for the one in
+	 * progress and the writers are not shut down under it.
+	 */
+	private final Object flushLock = new Object();
+
+	private volatile boolean running;
+	private volatile int batchSize;
+	private volatile long lastFlushTime;
+	private volatile long lastFlushLatency;
+	private boolean backOff;
+	private Thread thread;
+	private ExecutorService writers;
+	private int writerCount;
+
+	public ArchiveFlusher(ConversationManager conversationManager) {
+		this.conversationManager = conversationManager;
+		this.properties = Properties.getInstance();
+	}
+
+	@Override
+	public void start() {
+		running = true;
+		batchSize = properties.getFlushBatchSize();
+		lastFlushTime = System.currentTimeMillis();
+		writerCount = Math.max(1, properties.getFlushWriters());
+		AtomicInteger writerIndex = new AtomicInteger();
+		writers = Executors.newFixedThreadPool(writerCount, runnable -> {
+			Thread writer = new Thread(runnable, "archiving-writer-" + writerIndex.getAndIncrement());
+			writer.setDaemon(true);
+			return writer;
+		});
+		thread = new Thread(this::run, "archiving-flusher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void stop() {
+		running = false;
+		LockSupport.unpark(thread);
+		try {
+			thread.join(JiveConstants.MINUTE);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (thread.isAlive()) {
+			log.warn("Flush still running after a minute, waiting for it to end");
+		}
+		thread = null;
+
+		synchronized (flushLock) {
+			// Archive anything remaining in the queues before quitting.
+			archive(0);
+
+			// A flusher thread still about to flush finds no writers and
+			// leaves.
+			writers.shutdown();
+			writers = null;
+		}
+	}
+
+	/**
+	 * Notifies the flusher that a message was queued, waking it up if the
+	 * pending messages fill a batch.
+	 */
+	public void messageQueued() {
+		Thread current = thread;
+		if (current != null && conversationManager.getPendingMessages().size() >= batchSize) {
+			LockSupport.unpark(current);
+		}
+	}
+
+	private void run() {
+		while (running) {
+			// Wait until a batch is filled or the maximum delay elapses. After
+			// a failed flush, e.g. because the database is not available, only
+			// the maximum delay is waited for.
+			long deadline = lastFlushTime + properties.getFlushMaxDelay();
+			long now;
+			while (running && (now = System.currentTimeMillis()) < deadline
+					&& (backOff || conversationManager.getPendingMessages().size() < batchSize)) {
+				LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(deadline - now));
+			}
+			if (!running) {
+				break;
+			}
+			try {
+				flush();
+			} catch (Exception e) {
+				log.error("Error while flushing archived messages", e);
+			}
+		}
+	}
+
+	private void flush() {
+		int size = batchSize;
+		long start = System.currentTimeMillis();
+		ArchivingTask task;
+		synchronized (flushLock) {
+			if (writers == null) {
+				// Stopped, the final flush is done.
+				return;
+			}
+			task = archive(size);
+		}
+		long end = System.currentTimeMillis();
+
+		lastFlushTime = end;
+		int written = task.getInsertedMessages();
+		backOff = !task.isCommitted();
+		if (written == 0) {
+			return;
+		}
+		lastFlushLatency = end - start;
+		flushes.incrementAndGet();
+		flushedMessages.addAndGet(written);
+
+		int maxBatchSize = Math.max(MIN_BATCH_SIZE, properties.getFlushBatchSize());
+		if (lastFlushLatency > properties.getFlushTargetLatency()) {
+			slowFlushes.incrementAndGet();
+			batchSize = Math.max(MIN_BATCH_SIZE, Math.min(size, maxBatchSize) / 2);
+			log.debug("Flush of {} messages took {} ms, batch size reduced to {}", written, lastFlushLatency,
+					batchSize);
+		} else if (written >= size) {
+			batchSize = Math.min(maxBatchSize, size + Math.max(1, maxBatchSize / 10));
+		} else {
+			batchSize = Math.min(size, maxBatchSize);
+		}
+	}
+
+	/**
+	 * Writes the pending work to the database, then deletes the write-ahead
+	 * log segments no longer needed. Called holding the flush lock.
+	 *
+	 * @param maxMessages
+	 *            maximum number of messages to write, 0 for no limit.
+	 * @return the task that did the writing.
+	 */
+	private ArchivingTask archive(int maxMessages) {
+		PendingMessageQueue pendingMessages = conversationManager.getPendingMessages();
+		WriteAheadLog writeAheadLog = conversationManager.getWriteAheadLog();
+
+		ArchivingTask task = new ArchivingTask(pendingMessages, conversationManager.getDirtyConversations(),
+				writeAheadLog, conversationManager.getDeadLetters(), maxMessages, writers, writerCount);
+		task.run();
+		writeAheadLog.truncate();
+		return task;
+	}
+
+	/**
+	 * Returns the number of pending messages that currently triggers a flush.
+	 *
+	 * @return the current batch size.
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Returns the time, in milliseconds, the last flush took.
+	 *
+	 * @return the latency of the last flush.
+	 */
+	public long getLastFlushLatency() {
+		return lastFlushLatency;
+	}
+
+	public long getFlushes() {
+		return flushes.get();
+	}
+
+	public long getFlushedMessages() {
+		return flushedMessages.get();
+	}
+
+	/**
+	 * Returns the number of flushes that took longer than the target latency.
+	 *
+	 * @return the number of slow flushes.
+	 */
+	public long getSlowFlushes() {
+		return slowFlushes.get();
+	}
+}
@@ -54,21 +54,21 @@ public class ArchiveInterceptor implements PacketInterceptor, Startable {
 					if (element != null) {
 						String messageId = element.getText();
 
+						JID sender = message.getFrom();
+						JID receiver = message.getTo();
+
 						// Process this event in the senior cluster member or local
 						// JVM when not in a cluster
 						if (ClusterManager.isSeniorClusterMember()) {
-							if (isStatusUpdate) {
-								conversationManager.processMessageUpdate(messageId, message.getFrom(), message.getTo(),
-										messageStatus, Instant.now().toEpochMilli());
-
-							} else if (message.getBody() != null) {
-								conversationManager.processMessage(messageId, message.getFrom(), message.getTo(),
-										message.getBody(), Instant.now().toEpochMilli());
+							// Hand the event over to the ingest workers so that
+							// the routing thread never waits on the database
+							if (isStatusUpdate || message.getBody() != null) {
+								ConversationIngestPipeline ingestPipeline = conversationManager.getIngestPipeline();
+								ingestPipeline.addChatEvent(conversationManager.getConversationKey(sender, receiver),
+										ConversationEvent.chatMessageReceived(messageId, sender, receiver,
+												message.getBody(), messageStatus, Instant.now().toEpochMilli()));
 							}
 						} else {
-							JID sender = message.getFrom();
-							JID receiver = message.getTo();
-
 							ConversationEventsQueue eventsQueue = conversationManager.getConversationEventsQueue();
 							eventsQueue.addChatEvent(conversationManager.getConversationKey(sender, receiver),
 									ConversationEvent.chatMessageReceived(messageId, sender, receiver, message.getBody(),
@@ -6,9 +6,10 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.AbstractCollection;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import java.util.NoSuchElementException;
+import java.util.Map;
 
 import org.jivesoftware.database.CachedPreparedStatement;
 import org.jivesoftware.database.DbConnectionManager;
@@ -68,6 +69,9 @@ public class ArchiveSearcher implements Startable {
 			cachedPstmt.addString(jid2);
 			cachedPstmt.addString(jid2);
 			cachedPstmt.addString(jid1);
+		} else {
+			// Searches by one or two participants only.
+			return Collections.emptyList();
 		}
 
 		List<String> conversationIDs = Lists.newArrayList();
@@ -118,57 +122,17 @@ public class ArchiveSearcher implements Startable {
 
 		@Override
 		public Iterator<Conversation> iterator() {
-			final Iterator<String> convIterator = conversationIDs.iterator();
-			return new Iterator<Conversation>() {
-
-				private Conversation nextElement = null;
-
-				@Override
-				public boolean hasNext() {
-					if (nextElement == null) {
-						nextElement = getNextElement();
-						if (nextElement == null) {
-							return false;
-						}
-					}
-					return true;
+			// Fetch the whole page at once, conversations not found are left
+			// out.
+			Map<String, Conversation> found = conversationManager.getConversations(conversationIDs);
+			List<Conversation> conversations = Lists.newArrayListWithCapacity(conversationIDs.size());
+			for (String conversationID : conversationIDs) {
+				Conversation conversation = found.get(conversationID);
+				if (conversation != null) {
+					conversations.add(conversation);
 				}
-
-				@Override
-				public Conversation next() {
-					Conversation element;
-					if (nextElement != null) {
-						element = nextElement;
-						nextElement = null;
-					} else {
-						element = getNextElement();
-						if (element == null) {
-							throw new NoSuchElementException();
-						}
-					}
-					return element;
-				}
-
-				@Override
-				public void remove() {
-					throw new UnsupportedOperationException();
-				}
-
-				private Conversation getNextElement() {
-					if (!convIterator.hasNext()) {
-						return null;
-					}
-					while (convIterator.hasNext()) {
-						try {
-							String conversationID = convIterator.next();
-							return conversationManager.getConversation(conversationID);
-						} catch (Exception e) {
-							Log.error(e.getMessage(), e);
-						}
-					}
-					return null;
-				}
-			};
+			}
+			return Collections.unmodifiableList(conversations).iterator();
 		}
 
 		@Override
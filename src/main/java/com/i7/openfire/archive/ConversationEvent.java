@@ -40,6 +40,14 @@ public class ConversationEvent implements Externalizable {
 		}
 	}
 
+	public JID getSender() {
+		return sender;
+	}
+
+	public JID getReceiver() {
+		return receiver;
+	}
+
 	public static ConversationEvent chatMessageReceived(String messageId, JID sender, JID receiver, String body,
 			MessageStatus status, long createdAt) {
 
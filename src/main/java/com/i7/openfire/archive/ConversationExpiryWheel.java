@@ -0,0 +1,160 @@
+package com.i7.openfire.archive;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+
+/**
+ * Tracks the last activity of active conversations in buckets of fixed
+ * duration (ticks), ordered by time. Expiring idle conversations only visits
+ * the buckets older than the idle time, so the cost of a sweep is proportional
+ * to the number of conversations that actually became idle rather than to the
+ * number of active conversations.
+ *
+ * Every conversation is scheduled in exactly one bucket: touching a
+ * conversation moves it to the bucket of the current tick. Because buckets
+ * record the time of the last activity rather than a deadline, changes of the
+ * idle time take effect on the next sweep.
+ */
+public class ConversationExpiryWheel {
+
+	private final long resolution;
+
+	/**
+	 * Tick of the last activity of each conversation. Key: Conversation Key;
+	 * Value: tick.
+	 */
+	private final Map<String, Long> scheduled = new ConcurrentHashMap<>();
+
+	/**
+	 * Conversations scheduled in each tick, oldest tick first.
+	 */
+	private final ConcurrentSkipListMap<Long, Set<String>> buckets = new ConcurrentSkipListMap<>();
+
+	/**
+	 * @param resolution
+	 *            duration of a tick in milliseconds.
+	 */
+	public ConversationExpiryWheel(long resolution) {
+		this.resolution = resolution;
+	}
+
+	/**
+	 * Records activity in a conversation, moving it to the bucket of the
+	 * current tick. Callers must hold the conversation lock.
+	 *
+	 * @param conversationKey
+	 *            unique key that identifies the conversation.
+	 * @param now
+	 *            current time in milliseconds.
+	 */
+	public void touch(String conversationKey, long now) {
+		Long tick = now / resolution;
+		Long previous = scheduled.put(conversationKey, tick);
+		if (tick.equals(previous)) {
+			return;
+		}
+		buckets.computeIfAbsent(tick, t -> ConcurrentHashMap.newKeySet()).add(conversationKey);
+		if (previous != null) {
+			Set<String> bucket = buckets.get(previous);
+			if (bucket != null) {
+				bucket.remove(conversationKey);
+			}
+		}
+	}
+
+	/**
+	 * Stops tracking a conversation. Callers must hold the conversation lock.
+	 *
+	 * @param conversationKey
+	 *            unique key that identifies the conversation.
+	 */
+	public void remove(String conversationKey) {
+		Long tick = scheduled.remove(conversationKey);
+		if (tick != null) {
+			Set<String> bucket = buckets.get(tick);
+			if (bucket != null) {
+				bucket.remove(conversationKey);
+			}
+		}
+	}
+
+	/**
+	 * Offers every conversation without activity for longer than the idle time
+	 * to the expirer. The conversations are no longer tracked once offered; an
+	 * expirer that finds a conversation still active must touch it again.
+	 *
+	 * @param idleTime
+	 *            idle time in milliseconds.
+	 * @param expirer
+	 *            expires a conversation, returning false if it is still active.
+	 * @return the number of expired conversations.
+	 */
+	public int expire(long idleTime, Predicate<String> expirer) {
+		// The bucket of the cutoff tick may still hold recent activity, and
+		// conversations touched again by the expirer land in a later tick.
+		long cutoff = (System.currentTimeMillis() - idleTime) / resolution;
+		int expired = 0;
+
+		Map.Entry<Long, Set<String>> bucket;
+		while ((bucket = buckets.firstEntry()) != null && bucket.getKey() < cutoff) {
+			buckets.remove(bucket.getKey(), bucket.getValue());
+			for (String conversationKey : bucket.getValue()) {
+				if (!scheduled.remove(conversationKey, bucket.getKey())) {
+					// Touched since, it is already scheduled in a later bucket.
+					continue;
+				}
+				if (expirer.test(conversationKey)) {
+					expired++;
+				}
+			}
+		}
+		return expired;
+	}
+
+	/**
+	 * Offers conversations to the evicter, least recently active first, for as
+	 * long as the condition holds. Evicted conversations are expected to be
+	 * removed from the wheel by the evicter.
+	 *
+	 * @param condition
+	 *            whether more conversations have to be evicted.
+	 * @param evicter
+	 *            evicts a conversation, returning false if it could not be
+	 *            evicted.
+	 * @return the number of evicted conversations.
+	 */
+	public int evictOldest(BooleanSupplier condition, Predicate<String> evicter) {
+		long staleTick = System.currentTimeMillis() / resolution - 1;
+		int evicted = 0;
+
+		for (Map.Entry<Long, Set<String>> bucket : buckets.entrySet()) {
+			for (String conversationKey : bucket.getValue()) {
+				if (!condition.getAsBoolean()) {
+					return evicted;
+				}
+				if (evicter.test(conversationKey)) {
+					evicted++;
+				}
+			}
+			// Drop emptied buckets, except the recent ones that may still be
+			// receiving conversations.
+			if (bucket.getValue().isEmpty() && bucket.getKey() < staleTick) {
+				buckets.remove(bucket.getKey(), bucket.getValue());
+			}
+		}
+		return evicted;
+	}
+
+	/**
+	 * Returns the number of conversations being tracked.
+	 *
+	 * @return the number of tracked conversations.
+	 */
+	public int size() {
+		return scheduled.size();
+	}
+}
@@ -0,0 +1,265 @@
+package com.i7.openfire.archive;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.util.JiveConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Hands conversation events over from the packet routing threads to a fixed
+ * set of ingest workers. Each worker owns a bounded ring of pending events and
+ * events are assigned to a worker by conversation key, so the events of a
+ * conversation are always processed by the same worker and in the order they
+ * were received.
+ *
+ * If the ring of the selected worker is full, adding an event waits for room.
+ * Routing threads are then slowed down to the pace of the workers rather than
+ * events lost or processed out of order, and never do the database work of an
+ * event themselves. Events that had to wait longer than the offer timeout are
+ * counted and logged.
+ */
+public class ConversationIngestPipeline implements Startable {
+	private static final Logger log = LoggerFactory.getLogger(ConversationIngestPipeline.class);
+
+	private static final int DRAIN_BATCH_SIZE = 256;
+
+	/**
+	 * Minimum time between two warnings about a full ring.
+	 */
+	private static final long WARN_INTERVAL = JiveConstants.MINUTE;
+
+	private final ConversationManager conversationManager;
+	private final int shardCount;
+	private final int shardCapacity;
+	private final long offerTimeout;
+
+	private final AtomicLong enqueued = new AtomicLong();
+	private final AtomicLong blocked = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong lastWarning = new AtomicLong();
+
+	private volatile boolean running;
+	private Shard[] shards;
+
+	/**
+	 * @param shardCount
+	 *            number of workers.
+	 * @param shardCapacity
+	 *            number of events each worker can hold.
+	 * @param offerTimeout
+	 *            time, in milliseconds, to wait for room in a full ring
+	 *            before reporting the shard as blocked.
+	 */
+	public ConversationIngestPipeline(ConversationManager conversationManager, int shardCount, int shardCapacity,
+			long offerTimeout) {
+		this.conversationManager = conversationManager;
+		this.shardCount = shardCount;
+		this.shardCapacity = shardCapacity;
+		this.offerTimeout = offerTimeout;
+	}
+
+	@Override
+	public void start() {
+		running = true;
+		shards = new Shard[shardCount];
+		for (int i = 0; i < shardCount; i++) {
+			shards[i] = new Shard(i);
+			shards[i].start();
+		}
+	}
+
+	@Override
+	public void stop() {
+		running = false;
+		// Let every worker drain its pending events before returning.
+		for (Shard shard : shards) {
+			try {
+				shard.join(JiveConstants.MINUTE);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		shards = null;
+	}
+
+	/**
+	 * Queues a one-to-one chat event to be processed by the worker that owns
+	 * the conversation.
+	 *
+	 * @param conversationKey
+	 *            unique key that identifies the conversation.
+	 * @param event
+	 *            conversation event.
+	 * @return true if the event was queued, false if it was rejected because
+	 *         the pipeline is stopped.
+	 */
+	public boolean addChatEvent(String conversationKey, ConversationEvent event) {
+		Shard[] current = shards;
+		if (!running || current == null) {
+			rejected.incrementAndGet();
+			warn("Ingest pipeline is not running, {} events rejected so far", rejected.get());
+			return false;
+		}
+		int hash = conversationKey.hashCode();
+		Shard shard = current[Math.floorMod(hash ^ (hash >>> 16), current.length)];
+		if (shard.events.offer(event) || offer(shard, event)) {
+			enqueued.incrementAndGet();
+			return true;
+		}
+		rejected.incrementAndGet();
+		log.error("Ingest shard {} stopped, chat archiving event of conversation {} rejected", shard.index,
+				conversationKey);
+		return false;
+	}
+
+	/**
+	 * Waits for room in the full ring of a shard, for as long as its worker
+	 * runs. Workers drain their ring before stopping, so only a worker that
+	 * died leaves the event out.
+	 *
+	 * @return true if the event was queued, false if the worker is gone.
+	 */
+	private boolean offer(Shard shard, ConversationEvent event) {
+		long timeout = Math.max(offerTimeout, 1);
+		boolean interrupted = false;
+		boolean reported = false;
+		try {
+			while (shard.isAlive()) {
+				try {
+					if (shard.events.offer(event, timeout, TimeUnit.MILLISECONDS)) {
+						return true;
+					}
+				} catch (InterruptedException e) {
+					// Keep waiting, dropping the event would lose the message.
+					interrupted = true;
+					continue;
+				}
+				if (!reported) {
+					reported = true;
+					blocked.incrementAndGet();
+				}
+				warn("Ingest shard {} is full, routing threads are waiting for room ({} blocked events so far)",
+						shard.index, blocked.get());
+			}
+			return false;
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Queues a one-to-one chat event, deriving the conversation key from the
+	 * participants of the event.
+	 *
+	 * @param event
+	 *            conversation event.
+	 * @return true if the event was queued, false if it was rejected.
+	 */
+	public boolean addChatEvent(ConversationEvent event) {
+		return addChatEvent(conversationManager.getConversationKey(event.getSender(), event.getReceiver()), event);
+	}
+
+	/**
+	 * Returns the number of events waiting to be processed.
+	 *
+	 * @return the number of pending events.
+	 */
+	public int getPendingEvents() {
+		Shard[] current = shards;
+		int pending = 0;
+		if (current != null) {
+			for (Shard shard : current) {
+				pending += shard.events.size();
+			}
+		}
+		return pending;
+	}
+
+	public long getEnqueuedEvents() {
+		return enqueued.get();
+	}
+
+	/**
+	 * Returns the number of events that waited longer than the offer timeout
+	 * for room in the ring of their worker.
+	 *
+	 * @return the number of blocked events.
+	 */
+	public long getBlockedEvents() {
+		return blocked.get();
+	}
+
+	/**
+	 * Returns the number of events rejected because the pipeline was
+	 * stopped.
+	 *
+	 * @return the number of rejected events.
+	 */
+	public long getRejectedEvents() {
+		return rejected.get();
+	}
+
+	/**
+	 * Logs a warning, at most once every {@link #WARN_INTERVAL}.
+	 */
+	private void warn(String message, Object... arguments) {
+		long now = System.currentTimeMillis();
+		long last = lastWarning.get();
+		if (now - last >= WARN_INTERVAL && lastWarning.compareAndSet(last, now)) {
+			log.warn(message, arguments);
+		}
+	}
+
+	/**
+	 * Worker thread processing the events of the conversations assigned to it.
+	 */
+	private class Shard extends Thread {
+		private final int index;
+		private final BlockingQueue<ConversationEvent> events;
+
+		Shard(int index) {
+			super("archiving-ingest-" + index);
+			this.index = index;
+			this.events = new ArrayBlockingQueue<>(shardCapacity);
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			List<ConversationEvent> batch = Lists.newArrayListWithCapacity(DRAIN_BATCH_SIZE);
+			while (running || !events.isEmpty()) {
+				try {
+					ConversationEvent event = events.poll(1, TimeUnit.SECONDS);
+					if (event == null) {
+						continue;
+					}
+					batch.add(event);
+					events.drainTo(batch, DRAIN_BATCH_SIZE - 1);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					log.warn("Ingest shard {} interrupted with {} pending events", index, events.size());
+					return;
+				}
+
+				for (ConversationEvent event : batch) {
+					try {
+						event.run(conversationManager);
+					} catch (Exception e) {
+						log.error("Error while processing chat archiving event", e);
+					}
+				}
+				batch.clear();
+			}
+		}
+	}
+}
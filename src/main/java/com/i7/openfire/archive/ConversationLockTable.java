@@ -0,0 +1,126 @@
+package com.i7.openfire.archive;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+import com.google.common.util.concurrent.Striped;
+
+/**
+ * Bounded table of locks used to serialize the processing of a single
+ * conversation. Conversation keys are hashed onto a fixed number of stripes,
+ * so two different conversations may share a lock but the same conversation
+ * always maps to the same one. Unlike interning the conversation key, the
+ * table never grows with the number of conversations seen.
+ *
+ * Lock acquisitions, contention and hold times are recorded so they can be
+ * inspected at runtime.
+ */
+public class ConversationLockTable {
+
+	private final Striped<Lock> locks;
+
+	private final AtomicLong acquisitions = new AtomicLong();
+	private final AtomicLong contended = new AtomicLong();
+	private final AtomicLong totalHoldNanos = new AtomicLong();
+	private final AtomicLong maxHoldNanos = new AtomicLong();
+
+	public ConversationLockTable(int stripes) {
+		this.locks = Striped.lock(stripes);
+	}
+
+	/**
+	 * Acquires the lock of the specified conversation. The returned hold must
+	 * be closed to release the lock.
+	 *
+	 * @param conversationKey
+	 *            unique key that identifies the conversation.
+	 * @return the acquired hold.
+	 */
+	public Hold acquire(String conversationKey) {
+		Lock lock = locks.get(conversationKey);
+		if (!lock.tryLock()) {
+			contended.incrementAndGet();
+			lock.lock();
+		}
+		acquisitions.incrementAndGet();
+		return new Hold(lock, System.nanoTime());
+	}
+
+	/**
+	 * Returns the number of stripes of this table.
+	 *
+	 * @return the number of stripes.
+	 */
+	public int getStripes() {
+		return locks.size();
+	}
+
+	/**
+	 * Returns the number of locks acquired since the table was created.
+	 *
+	 * @return the number of acquired locks.
+	 */
+	public long getAcquisitions() {
+		return acquisitions.get();
+	}
+
+	/**
+	 * Returns the number of acquisitions that had to wait for another thread
+	 * to release the lock.
+	 *
+	 * @return the number of contended acquisitions.
+	 */
+	public long getContendedAcquisitions() {
+		return contended.get();
+	}
+
+	/**
+	 * Returns the average time, in microseconds, a lock has been held.
+	 *
+	 * @return the average hold time in microseconds.
+	 */
+	public long getAverageHoldMicros() {
+		long count = acquisitions.get();
+		return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalHoldNanos.get() / count);
+	}
+
+	/**
+	 * Returns the longest time, in microseconds, a lock has been held.
+	 *
+	 * @return the maximum hold time in microseconds.
+	 */
+	public long getMaxHoldMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(maxHoldNanos.get());
+	}
+
+	private void released(long holdNanos) {
+		totalHoldNanos.addAndGet(holdNanos);
+		long max;
+		while (holdNanos > (max = maxHoldNanos.get())) {
+			if (maxHoldNanos.compareAndSet(max, holdNanos)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * An acquired conversation lock. Closing it releases the lock.
+	 */
+	public class Hold implements AutoCloseable {
+		private final Lock lock;
+		private final long acquiredAt;
+
+		private Hold(Lock lock, long acquiredAt) {
+			this.lock = lock;
+			this.acquiredAt = acquiredAt;
+		}
+
+		@Override
+		public void close() {
+			long holdNanos = System.nanoTime() - acquiredAt;
+			lock.unlock();
+			released(holdNanos);
+		}
+	}
+}
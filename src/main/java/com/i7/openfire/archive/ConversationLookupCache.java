@@ -0,0 +1,118 @@
+package com.i7.openfire.archive;
+
+import java.sql.SQLException;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.i7.openfire.archive.model.Conversation;
+
+/**
+ * Caches the result of looking up the conversation between two participants
+ * in the database, keyed by conversation key. Lookups that found no
+ * conversation are cached as well, so the first message of a new conversation
+ * and every message of a resumed one cost at most a single query.
+ *
+ * The cache is bounded in size and entries expire a fixed time after they were
+ * written. Callers are expected to hold the conversation lock of the key they
+ * look up.
+ */
+public class ConversationLookupCache {
+
+	private final Cache<String, Optional<Conversation>> cache;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong negativeHits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public ConversationLookupCache(long maximumSize, long timeToLive) {
+		this.cache = CacheBuilder.newBuilder().maximumSize(maximumSize)
+				.expireAfterWrite(timeToLive, TimeUnit.MILLISECONDS).build();
+	}
+
+	/**
+	 * Returns the conversation cached for the specified key, loading it if the
+	 * key is not cached. The loaded value is cached even if no conversation
+	 * was found; it is not cached if the loader fails.
+	 *
+	 * @param conversationKey
+	 *            unique key that identifies the conversation.
+	 * @param loader
+	 *            loads the conversation, returning <tt>null</tt> if it does
+	 *            not exist.
+	 * @return the conversation, or an empty optional if it does not exist.
+	 * @throws SQLException
+	 *             if the conversation could not be loaded.
+	 */
+	public Optional<Conversation> lookup(String conversationKey, Loader loader) throws SQLException {
+		Optional<Conversation> conversation = cache.getIfPresent(conversationKey);
+		if (conversation != null) {
+			hits.incrementAndGet();
+			if (!conversation.isPresent()) {
+				negativeHits.incrementAndGet();
+			}
+			return conversation;
+		}
+		misses.incrementAndGet();
+		conversation = Optional.ofNullable(loader.load());
+		cache.put(conversationKey, conversation);
+		return conversation;
+	}
+
+	/**
+	 * Caches a conversation, replacing any cached lookup result for its key.
+	 *
+	 * @param conversationKey
+	 *            unique key that identifies the conversation.
+	 * @param conversation
+	 *            the conversation.
+	 */
+	public void put(String conversationKey, Conversation conversation) {
+		cache.put(conversationKey, Optional.of(conversation));
+	}
+
+	/**
+	 * Discards the cached lookup result of a conversation key.
+	 *
+	 * @param conversationKey
+	 *            unique key that identifies the conversation.
+	 */
+	public void invalidate(String conversationKey) {
+		cache.invalidate(conversationKey);
+	}
+
+	public long size() {
+		return cache.size();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns the number of hits that found a cached "no conversation" result.
+	 *
+	 * @return the number of negative hits.
+	 */
+	public long getNegativeHits() {
+		return negativeHits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public double getHitRate() {
+		long requests = hits.get() + misses.get();
+		return requests == 0 ? 0 : (double) hits.get() / requests;
+	}
+
+	/**
+	 * Loads a conversation from persistence.
+	 */
+	public interface Loader {
+		Conversation load() throws SQLException;
+	}
+}
@@ -1,5 +1,6 @@
 package com.i7.openfire.archive;
 
+import java.io.File;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -8,25 +9,25 @@ import java.time.Instant;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
+import java.util.Set;
 import java.util.TimerTask;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.dom4j.Element;
 import org.jivesoftware.database.DbConnectionManager;
 import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.XMPPServerInfo;
+import org.jivesoftware.openfire.cluster.ClusterEventListener;
 import org.jivesoftware.openfire.cluster.ClusterManager;
 import org.jivesoftware.openfire.component.ComponentEventListener;
 import org.jivesoftware.openfire.component.InternalComponentManager;
 import org.jivesoftware.util.JiveConstants;
+import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.NotFoundException;
 import org.jivesoftware.util.TaskEngine;
 import org.jivesoftware.util.cache.CacheFactory;
@@ -37,8 +38,11 @@ import org.xmpp.packet.JID;
 import org.xmpp.packet.Message;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.i7.openfire.archive.cluster.GetConversationCountTask;
 import com.i7.openfire.archive.cluster.GetConversationTask;
+import com.i7.openfire.archive.cluster.GetConversationsByIdTask;
 import com.i7.openfire.archive.cluster.GetConversationsTask;
 import com.i7.openfire.archive.config.DataConfig;
 import com.i7.openfire.archive.config.Properties;
@@ -46,33 +50,49 @@ import com.i7.openfire.archive.database.Queries;
 import com.i7.openfire.archive.enums.MessageStatus;
 import com.i7.openfire.archive.model.ArchivedMessage;
 import com.i7.openfire.archive.model.Conversation;
-import com.i7.openfire.archive.plugin.ArchivingPlugin;
-import com.i7.openfire.archive.tasks.ArchivingTask;
+import com.i7.openfire.archive.tasks.PartitionMaintenanceTask;
+import com.i7.openfire.archive.tasks.RetentionTask;
+import com.i7.openfire.archive.wal.DeadLetterLog;
+import com.i7.openfire.archive.wal.SpillQueue;
+import com.i7.openfire.archive.wal.WalRecord;
+import com.i7.openfire.archive.wal.WriteAheadLog;
 
 import redis.clients.jedis.JedisCluster;
 
-public class ConversationManager implements ComponentEventListener, Startable {
+public class ConversationManager implements ComponentEventListener, ClusterEventListener, Startable {
 	private static final Logger log = LoggerFactory.getLogger(ConversationManager.class);
 
 	private static final String USER_CHATS_PREFIX = "user#chats#";
 
+	/**
+	 * Maximum number of conversations loaded from the database by a single
+	 * query.
+	 */
+	private static final int LOAD_CHUNK_SIZE = 500;
+
 	private JedisCluster jedis;
 	private Properties properties;
 
-	private TimerTask maxAgeTask;
+	private RetentionTask retentionTask;
+	private PartitionMaintenanceTask partitionTask;
 	private TimerTask cleanupTask;
-	private TimerTask archiveTask;
 	
 	private TaskEngine taskEngine;
 	private List<String> gateways;
 	private XMPPServerInfo serverInfo;
-	private Queue<ArchivedMessage> messageQueue;
-	private Queue<Conversation> conversationQueue;
-	private Queue<ArchivedMessage> messageUpdatedQueue;
-	private Queue<Conversation> conversationUpdatedQueue;
+	private ArchiveFlusher flusher;
+	private WriteAheadLog writeAheadLog;
+	private DeadLetterLog deadLetters;
+	private PendingMessageQueue messageQueue;
+	private DirtyConversationSet dirtyConversations;
+	private ConversationLockTable conversationLocks;
+	private ConversationIngestPipeline ingestPipeline;
+	private ConversationLookupCache conversationLookupCache;
+	private RecentMessageCache recentMessages;
 	private ConversationEventsQueue conversationEventsQueue;
 	private Collection<ConversationListener> conversationListeners;
-	private Map<String, Conversation> conversations = new ConcurrentHashMap<String, Conversation>();
+	private ActiveConversationRegistry conversations = new ActiveConversationRegistry(JiveConstants.MINUTE);
+	private final AtomicBoolean evicting = new AtomicBoolean();
 
 	public ConversationManager(TaskEngine taskEngine) {
 		this.taskEngine = taskEngine;
@@ -80,109 +100,106 @@ public class ConversationManager implements ComponentEventListener, Startable {
 		this.gateways = new CopyOnWriteArrayList<String>();
 		this.serverInfo = XMPPServer.getInstance().getServerInfo();
 		this.conversationEventsQueue = new ConversationEventsQueue(taskEngine);
+		this.conversationLocks = new ConversationLockTable(properties.getLockStripes());
+		this.conversationLookupCache = new ConversationLookupCache(properties.getLookupCacheSize(),
+				properties.getLookupCacheTtl());
+		this.recentMessages = new RecentMessageCache(properties.getRecentMessages(),
+				properties.getRecentMessagesMemory());
 	}
 
 	@Override
 	public void start() {
 		jedis = DataConfig.getInstance().getJedis();
-		messageQueue = new ConcurrentLinkedQueue<>();
-		conversationQueue = new ConcurrentLinkedQueue<>();
-		messageUpdatedQueue = new ConcurrentLinkedQueue<>();
+		File archivingDirectory = new File(JiveGlobals.getHomeDirectory(), "archiving");
+		writeAheadLog = new WriteAheadLog(properties.isWalEnabled(),
+				new File(archivingDirectory, "wal"),
+				properties.getWalSegmentSize(), properties.getWalSyncInterval());
+		SpillQueue spill = new SpillQueue(new File(archivingDirectory, "spill"), properties.getSpillFileSize(),
+				writeAheadLog.isEnabled());
+		if (writeAheadLog.isEnabled()) {
+			// The write-ahead log replays the spilled records.
+			spill.clear();
+		}
+		messageQueue = new PendingMessageQueue(spill, properties::getMaxQueuedRecords, writeAheadLog);
 		conversationListeners = new CopyOnWriteArraySet<>();
-		conversationUpdatedQueue = new ConcurrentLinkedQueue<>();
-		
-		// Schedule a task to do conversation archiving.
-		archiveTask = new TimerTask() {
-			@Override
-			public void run() {
-				new ArchivingTask(messageQueue, conversationQueue, messageUpdatedQueue, conversationUpdatedQueue).run();
-			}
-		};
-		taskEngine.scheduleAtFixedRate(archiveTask, JiveConstants.MINUTE, JiveConstants.MINUTE);
+		dirtyConversations = new DirtyConversationSet(writeAheadLog);
+
+		// Queue again the records left unarchived by a previous run, then log
+		// the newly queued ones. Without the write-ahead log, only the records
+		// spilled to disk survived.
+		if (writeAheadLog.isEnabled()) {
+			writeAheadLog.replay(this::replayRecord);
+		} else {
+			spill.recover(this::replayRecord);
+		}
+		writeAheadLog.start();
+		deadLetters = new DeadLetterLog(new File(archivingDirectory, "deadletter"));
 
-		// Schedule a task to do conversation cleanup.
+		// Start the workers that process the events received by the interceptor.
+		ingestPipeline = new ConversationIngestPipeline(this, properties.getIngestShards(),
+				properties.getIngestShardCapacity(), properties.getIngestOfferTimeout());
+		ingestPipeline.start();
+		
+		// Start the flusher that does conversation archiving.
+		flusher = new ArchiveFlusher(this);
+		flusher.start();
+
+		// Schedule a task to do conversation cleanup. Only the conversations
+		// that have been idle for longer than the idle time are visited. An
+		// idle time of 0 disables idle expiry, the size of the registry is
+		// then only bounded by its capacity.
 		cleanupTask = new TimerTask() {
 			@Override
 			public void run() {
-				for (String key : conversations.keySet()) {
-					Conversation conversation = conversations.get(key);
-					long now = System.currentTimeMillis();
-					if ((now - conversation.getUpdatedAt() > properties.getIdleTime())) {
-						removeConversation(key);
+				if (properties.getIdleTime() > 0) {
+					int expired = conversations.expire(properties.getIdleTime(),
+							ConversationManager.this::expireConversation);
+					if (expired > 0) {
+						log.debug("Expired " + expired + " idle conversations");
 					}
 				}
 			}
 		};
-		taskEngine.scheduleAtFixedRate(cleanupTask, JiveConstants.MINUTE * 5, JiveConstants.MINUTE * 5);
+		taskEngine.scheduleAtFixedRate(cleanupTask, JiveConstants.MINUTE, JiveConstants.MINUTE);
 
-		// Schedule a task to do conversation purging.
-		maxAgeTask = new TimerTask() {
-			@Override
-			public void run() {
-				if (properties.getMaxAge() > 0) {
-					// Delete conversations older than maxAge days
-					Connection con = null;
-					PreparedStatement pstmt1 = null;
-					PreparedStatement pstmt2 = null;
-					try {
-						con = DbConnectionManager.getConnection();
-						pstmt1 = con.prepareStatement(Queries.DELETE_CONVERSATION);
-						pstmt2 = con.prepareStatement(Queries.DELETE_CONVERSATION_2);
-						Date now = new Date();
-						Date maxAgeDate = new Date(now.getTime() - properties.getMaxAge());
-						ArchiveSearch search = new ArchiveSearch();
-						search.setTimestampMax(maxAgeDate.getTime());
-						ArchivingPlugin plugin = (ArchivingPlugin) XMPPServer.getInstance().getPluginManager()
-								.getPlugin(ArchivingPlugin.NAME);
-
-						ArchiveSearcher archiveSearcher = plugin.getArchiveSearcher();
-						Collection<Conversation> conversations = archiveSearcher.search(search);
-						int conversationDeleted = 0;
-						for (Conversation conversation : conversations) {
-							log.debug("Deleting: " + conversation.getId() + " created: " + conversation.getCreatedAt()
-									+ " older than: " + maxAgeDate);
-							pstmt1.setString(1, conversation.getId());
-							pstmt1.execute();
-							pstmt2.setString(1, conversation.getId());
-							pstmt2.execute();
-							conversationDeleted++;
-						}
-						if (conversationDeleted > 0) {
-							log.info("Deleted " + conversationDeleted + " conversations with date older than: "
-									+ maxAgeDate);
-						}
-					} catch (Exception e) {
-						log.error(e.getMessage(), e);
-					} finally {
-						DbConnectionManager.closeConnection(pstmt1, con);
-						DbConnectionManager.closeConnection(pstmt2, con);
-					}
-				}
-			}
-		};
-		taskEngine.scheduleAtFixedRate(maxAgeTask, JiveConstants.MINUTE, JiveConstants.MINUTE);
+		// Schedule a task to delete the messages and conversations older than
+		// the maximum age.
+		retentionTask = new RetentionTask(this);
+		taskEngine.scheduleAtFixedRate(retentionTask, JiveConstants.MINUTE, JiveConstants.MINUTE);
+
+		// Schedule a task to create and drop the partitions of ofMessage, if
+		// it is partitioned.
+		partitionTask = new PartitionMaintenanceTask(this);
+		taskEngine.scheduleAtFixedRate(partitionTask, JiveConstants.MINUTE, JiveConstants.HOUR);
 		InternalComponentManager.getInstance().addListener(this);
+		ClusterManager.addListener(this);
 	}
 
 	@Override
 	public void stop() {
-		archiveTask.cancel();
-		archiveTask = null;
+		// Process every event still waiting in the ingest pipeline.
+		ingestPipeline.stop();
+		ingestPipeline = null;
 
-		// Archive anything remaining in the queue before quitting.
-		new ArchivingTask(messageQueue, conversationQueue, messageUpdatedQueue, conversationUpdatedQueue).run();
+		retentionTask.cancel();
+		retentionTask = null;
 
-		conversationQueue.clear();
-		conversationQueue = null;
+		partitionTask.cancel();
+		partitionTask = null;
 
-		conversationUpdatedQueue.clear();
-		conversationUpdatedQueue = null;
+		cleanupTask.cancel();
+		cleanupTask = null;
 
-		messageQueue.clear();
-		messageQueue = null;
+		// Archives anything remaining in the queues before quitting.
+		flusher.stop();
+		flusher = null;
+
+		writeAheadLog.stop();
+		writeAheadLog = null;
 
-		messageUpdatedQueue.clear();
-		messageUpdatedQueue = null;
+		dirtyConversations = null;
+
+		messageQueue = null;
 
 		conversationListeners.clear();
 		conversationListeners = null;
@@ -190,12 +207,159 @@ public class ConversationManager implements ComponentEventListener, Startable {
 		jedis = null;
 		serverInfo = null;
 		InternalComponentManager.getInstance().removeListener(this);
+		ClusterManager.removeListener(this);
 	}
 
 	public ConversationEventsQueue getConversationEventsQueue() {
 		return conversationEventsQueue;
 	}
 
+	/**
+	 * Returns the pipeline that processes the conversation events of this
+	 * cluster member outside of the packet routing threads.
+	 *
+	 * @return the ingest pipeline.
+	 */
+	public ConversationIngestPipeline getIngestPipeline() {
+		return ingestPipeline;
+	}
+
+	/**
+	 * Returns the registry of active conversations.
+	 *
+	 * @return the active conversation registry.
+	 */
+	public ActiveConversationRegistry getActiveConversations() {
+		return conversations;
+	}
+
+	/**
+	 * Returns the messages and status updates pending to be written to the
+	 * database.
+	 *
+	 * @return the pending messages.
+	 */
+	public PendingMessageQueue getPendingMessages() {
+		return messageQueue;
+	}
+
+	/**
+	 * Returns the write-ahead log of the queued records.
+	 *
+	 * @return the write-ahead log.
+	 */
+	public WriteAheadLog getWriteAheadLog() {
+		return writeAheadLog;
+	}
+
+	/**
+	 * Returns true if a conversation is active in this cluster member, or
+	 * waiting to be written to the database.
+	 *
+	 * @param conversationId
+	 *            the ID of the conversation.
+	 * @return true if the conversation is active.
+	 */
+	public boolean isActive(String conversationId) {
+		return conversations.getById(conversationId) != null || dirtyConversations.contains(conversationId);
+	}
+
+	/**
+	 * Accounts for messages deleted from the database by the retention task:
+	 * the message counts of the active conversations are lowered and what is
+	 * cached about the conversations is dropped.
+	 *
+	 * @param deleted
+	 *            number of deleted messages by conversation ID.
+	 */
+	public void messagesDeleted(Map<String, Integer> deleted) {
+		for (Map.Entry<String, Integer> entry : deleted.entrySet()) {
+			// Conversations are identified by their key.
+			try (ConversationLockTable.Hold hold = conversationLocks.acquire(entry.getKey())) {
+				Conversation conversation = conversations.getById(entry.getKey());
+				if (conversation != null) {
+					conversation.setMessageCount(Math.max(0, conversation.getMessageCount() - entry.getValue()));
+				}
+				conversationLookupCache.invalidate(entry.getKey());
+				recentMessages.invalidate(entry.getKey());
+			}
+		}
+	}
+
+	/**
+	 * Drops what is cached about conversations deleted from the database by
+	 * the retention task.
+	 *
+	 * @param conversationIds
+	 *            the IDs of the deleted conversations.
+	 */
+	public void conversationsDeleted(Collection<String> conversationIds) {
+		for (String conversationId : conversationIds) {
+			try (ConversationLockTable.Hold hold = conversationLocks.acquire(conversationId)) {
+				conversationLookupCache.invalidate(conversationId);
+				recentMessages.invalidate(conversationId);
+			}
+		}
+	}
+
+	/**
+	 * Returns the log of the records refused by the database.
+	 *
+	 * @return the dead letter log.
+	 */
+	public DeadLetterLog getDeadLetters() {
+		return deadLetters;
+	}
+
+	/**
+	 * Returns the flusher that writes the pending messages and conversations
+	 * to the database.
+	 *
+	 * @return the archive flusher.
+	 */
+	public ArchiveFlusher getFlusher() {
+		return flusher;
+	}
+
+	/**
+	 * Returns the set of conversations pending to be written to the database.
+	 *
+	 * @return the dirty conversations.
+	 */
+	public DirtyConversationSet getDirtyConversations() {
+		return dirtyConversations;
+	}
+
+	/**
+	 * Returns the cache of conversations looked up by participants.
+	 *
+	 * @return the conversation lookup cache.
+	 */
+	public ConversationLookupCache getConversationLookupCache() {
+		return conversationLookupCache;
+	}
+
+	/**
+	 * Returns the cache of the recent messages of each conversation. It is
+	 * filled and read on the senior cluster member only, which processes
+	 * every message.
+	 *
+	 * @return the recent message cache.
+	 */
+	public RecentMessageCache getRecentMessages() {
+		return recentMessages;
+	}
+
+	/**
+	 * Returns the lock table used to serialize the processing of each
+	 * conversation.
+	 *
+	 * @return the conversation lock table.
+	 */
+	public ConversationLockTable getConversationLocks() {
+		return conversationLocks;
+	}
+
 	/**
 	 * Returns the count of active conversations.
 	 *
@@ -221,10 +385,9 @@ public class ConversationManager implements ComponentEventListener, Startable {
 	public Conversation getConversation(String conversationId) throws NotFoundException {
 		if (ClusterManager.isSeniorClusterMember()) {
 			// Search through the currently active conversations.
-			for (Conversation conversation : conversations.values()) {
-				if (conversation.getId().equals(conversationId)) {
-					return conversation;
-				}
+			Conversation conversation = conversations.getById(conversationId);
+			if (conversation != null) {
+				return conversation;
 			}
 			// It might be an archived conversation, attempt to load it.
 			return loadFromDb(conversationId);
@@ -240,6 +403,50 @@ public class ConversationManager implements ComponentEventListener, Startable {
 		}
 	}
 
+	/**
+	 * Returns conversations by ID. Active conversations are looked up first,
+	 * the rest are loaded from the database with a query per chunk of IDs.
+	 * Other cluster members get them from the senior member with a single
+	 * task.
+	 *
+	 * @param conversationIds
+	 *            the IDs of the conversations.
+	 * @return the conversations found, by ID.
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<String, Conversation> getConversations(Collection<String> conversationIds) {
+		Map<String, Conversation> found = Maps.newHashMapWithExpectedSize(conversationIds.size());
+		if (conversationIds.isEmpty()) {
+			return found;
+		}
+		if (ClusterManager.isSeniorClusterMember()) {
+			Set<String> missing = Sets.newHashSet();
+			// Search through the currently active conversations.
+			for (String conversationId : conversationIds) {
+				Conversation conversation = conversations.getById(conversationId);
+				if (conversation != null) {
+					found.put(conversationId, conversation);
+				} else {
+					missing.add(conversationId);
+				}
+			}
+			// The rest might be archived conversations, attempt to load them.
+			for (List<String> chunk : Lists.partition(Lists.newArrayList(missing), LOAD_CHUNK_SIZE)) {
+				loadFromDb(chunk, found);
+			}
+		} else {
+			Collection<Conversation> loaded = (Collection<Conversation>) CacheFactory.doSynchronousClusterTask(
+					new GetConversationsByIdTask(conversationIds),
+					ClusterManager.getSeniorClusterMember().toByteArray());
+			if (loaded != null) {
+				for (Conversation conversation : loaded) {
+					found.put(conversation.getId(), conversation);
+				}
+			}
+		}
+		return found;
+	}
+
 	/**
 	 * Returns the set of active conversations.
 	 *
@@ -326,22 +533,14 @@ public class ConversationManager implements ComponentEventListener, Startable {
 	 */
 	void processMessage(String messageId, JID sender, JID receiver, String body, long createdAt) {
 		String conversationKey = getConversationKey(sender, receiver);
-		synchronized (conversationKey.intern()) {
+		try (ConversationLockTable.Hold hold = conversationLocks.acquire(conversationKey)) {
 			Conversation conversation = conversations.get(conversationKey);
 			if (conversation == null) {
 				// Conversation not found among active ones, search in persistence
-				ArchiveSearch search = new ArchiveSearch();
-				search.setParticipants(sender, receiver);
-				ArchivingPlugin plugin = (ArchivingPlugin) XMPPServer.getInstance().getPluginManager()
-						.getPlugin(ArchivingPlugin.NAME);
-
-				ArchiveSearcher archiveSearcher = plugin.getArchiveSearcher();
-				Collection<Conversation> conversations = archiveSearcher.search(search);
+				conversation = lookupConversation(conversationKey);
 
 				// Create a new conversation if necessary.
-				if (!conversations.isEmpty() && conversations.iterator().hasNext()) {
-					conversation = conversations.iterator().next();
-				} else {
+				if (conversation == null) {
 					// record new entry hot chatter entry for receiver user
 					if (properties.isHotChatterEnabled()) {
 						jedis.zadd(USER_CHATS_PREFIX + receiver.toBareJID(), Instant.now().toEpochMilli(), sender.toBareJID());
@@ -357,28 +556,40 @@ public class ConversationManager implements ComponentEventListener, Startable {
 						listener.conversationCreated(conversation);
 					}
 
-					// save new conversation in db, queue if it fails
+					// save new conversation in db, if it fails it is inserted
+					// when the dirty conversations are written.
 					try {
 						insertIntoDb(conversation);
 					} catch (SQLException e) {
-						conversationQueue.add(conversation);
+						log.warn("Unable to insert conversation {}, deferring it to the next flush",
+								conversation.getId());
 					}
+					conversationLookupCache.put(conversationKey, conversation);
 				}
 				this.conversations.put(conversationKey, conversation);
+			} else {
+				conversations.touch(conversationKey);
 			}
 
 			// Record the newly received message.
 			conversation.messageReceived(createdAt);
-			conversationUpdatedQueue.add(conversation);
-
-			messageQueue.add(new ArchivedMessage(messageId, receiver, sender, body, createdAt, createdAt,
-					conversation.getId(), MessageStatus.SENT));
+			ArchivedMessage message = new ArchivedMessage(messageId, receiver, sender, body, createdAt, createdAt,
+					conversation.getId(), MessageStatus.SENT);
+			WalRecord changed = WalRecord.conversation(conversation);
+			WalRecord received = WalRecord.message(message);
+			writeAheadLog.append(changed, received);
+			dirtyConversations.mark(conversation, changed.getSegment());
+			message.setWalSegment(received.getSegment());
+			messageQueue.add(message);
+			recentMessages.add(message, conversation.getMessageCount() - 1);
+			flusher.messageQueued();
 
 			// Notify listeners of the conversation update.
 			for (ConversationListener listener : conversationListeners) {
 				listener.conversationUpdated(conversation, createdAt);
 			}
 		}
+		evictOverflow();
 	}
 
 	/**
@@ -386,34 +597,99 @@ public class ConversationManager implements ComponentEventListener, Startable {
 	 */
 	void processMessageUpdate(String messageId, JID sender, JID receiver, MessageStatus status, long updatedAt) {
 		String conversationKey = getConversationKey(sender, receiver);
-		synchronized (conversationKey.intern()) {
+		try (ConversationLockTable.Hold hold = conversationLocks.acquire(conversationKey)) {
 			Conversation conversation = conversations.get(conversationKey);
 			if (conversation == null) {
-				ArchiveSearch search = new ArchiveSearch();
-				search.setParticipants(sender, receiver);
-				ArchivingPlugin plugin = (ArchivingPlugin) XMPPServer.getInstance().getPluginManager()
-						.getPlugin(ArchivingPlugin.NAME);
-
-				ArchiveSearcher archiveSearcher = plugin.getArchiveSearcher();
-				Collection<Conversation> conversations = archiveSearcher.search(search);
-
-				if (conversations.isEmpty() || !conversations.iterator().hasNext()) {
+				conversation = lookupConversation(conversationKey);
+				if (conversation == null) {
 					// Conversation not found!!!
-					log.error("Conversation between %s and %s not found when message %s status update was received!",
+					log.error("Conversation between {} and {} not found when message {} status update was received!",
 							sender.toBareJID(), receiver.toBareJID(), messageId);
 					return;
 				}
-				conversation = conversations.iterator().next();
 				this.conversations.put(conversationKey, conversation);
 			}
 			
-			messageUpdatedQueue.add(new ArchivedMessage(messageId, receiver, sender, "", updatedAt, updatedAt,
-					conversation.getId(), status));
+			// Applied to the message itself if it has not been stored yet.
+			ArchivedMessage update = new ArchivedMessage(messageId, receiver, sender, "", updatedAt, updatedAt,
+					conversation.getId(), status);
+			WalRecord record = WalRecord.status(update);
+			writeAheadLog.append(record);
+			update.setWalSegment(record.getSegment());
+			messageQueue.addStatusUpdate(update);
+			recentMessages.updateStatus(update);
 		}
+		evictOverflow();
 	}
 
-	private void removeConversation(String key) {
-		conversations.remove(key);
+	/**
+	 * Queues again a record replayed from the write-ahead log.
+	 */
+	private void replayRecord(WalRecord record) {
+		switch (record.getType()) {
+		case MESSAGE:
+			record.getMessage().setWalSegment(record.getSegment());
+			messageQueue.add(record.getMessage());
+			break;
+		case STATUS:
+			record.getMessage().setWalSegment(record.getSegment());
+			messageQueue.addStatusUpdate(record.getMessage());
+			break;
+		case CONVERSATION:
+			// The conversation in the database is stale until it is written,
+			// lookups must get the replayed state.
+			Conversation conversation = record.getConversation();
+			dirtyConversations.mark(conversation, record.getSegment());
+			conversationLookupCache.put(getConversationKey(new JID(conversation.getParticipantOne()),
+					new JID(conversation.getParticipantTwo())), conversation);
+			break;
+		}
+	}
+
+	/**
+	 * Removes a conversation from the active ones if it has been idle for
+	 * longer than the idle time, otherwise schedules it again.
+	 *
+	 * @return true if the conversation is no longer active.
+	 */
+	private boolean expireConversation(String key) {
+		try (ConversationLockTable.Hold hold = conversationLocks.acquire(key)) {
+			Conversation conversation = conversations.get(key);
+			if (conversation == null) {
+				return true;
+			}
+			long now = System.currentTimeMillis();
+			if (now - conversation.getUpdatedAt() > properties.getIdleTime()) {
+				conversations.remove(key);
+				return true;
+			}
+			conversations.touch(key);
+			return false;
+		}
+	}
+
+	/**
+	 * Evicts the least recently active conversations while the registry
+	 * exceeds its configured capacity. Must be called without holding any
+	 * conversation lock. Only one thread evicts at a time.
+	 */
+	private void evictOverflow() {
+		int maxConversations = properties.getMaxConversations();
+		long maxBytes = properties.getMaxConversationsMemory();
+		if (conversations.isOverCapacity(maxConversations, maxBytes) && evicting.compareAndSet(false, true)) {
+			try {
+				int evicted = conversations.evict(maxConversations, maxBytes, this::evictConversation);
+				log.debug("Evicted " + evicted + " conversations, " + conversations.size() + " still active");
+			} finally {
+				evicting.set(false);
+			}
+		}
+	}
+
+	private boolean evictConversation(String key) {
+		try (ConversationLockTable.Hold hold = conversationLocks.acquire(key)) {
+			return conversations.remove(key) != null;
+		}
 	}
 
 	/**
@@ -508,6 +784,35 @@ public class ConversationManager implements ComponentEventListener, Startable {
 		gateways.remove(componentJID.getDomain());
 	}
 
+	@Override
+	public void joinedCluster() {
+		// Messages are now processed by the senior member.
+		recentMessages.invalidateAll();
+	}
+
+	@Override
+	public void joinedCluster(byte[] nodeID) {
+		// Do nothing
+	}
+
+	@Override
+	public void leftCluster() {
+		// Messages processed while in the cluster were not seen.
+		recentMessages.invalidateAll();
+	}
+
+	@Override
+	public void leftCluster(byte[] nodeID) {
+		// Do nothing
+	}
+
+	@Override
+	public void markedAsSeniorClusterMember() {
+		// Messages received while another member was the senior one were not
+		// seen, the rings would miss them.
+		recentMessages.invalidateAll();
+	}
+
 	/**
 	 * Inserts a new conversation into the database.
 	 * 
@@ -535,7 +840,27 @@ public class ConversationManager implements ComponentEventListener, Startable {
 		}
 	}
 
-	private Conversation loadFromDb(String conversationId) throws NotFoundException {
+	/**
+	 * Returns the archived conversation between two participants, or
+	 * <tt>null</tt> if there is none. Lookups are answered from the
+	 * conversation lookup cache when possible. Conversations are identified by
+	 * their key, so a miss reads a single row by primary key.
+	 */
+	private Conversation lookupConversation(String conversationKey) {
+		try {
+			return conversationLookupCache.lookup(conversationKey, () -> loadConversation(conversationKey))
+					.orElse(null);
+		} catch (SQLException sqle) {
+			log.error(sqle.getMessage(), sqle);
+			return null;
+		}
+	}
+
+	/**
+	 * Reads a conversation from the database, returning <tt>null</tt> if
+	 * there is none.
+	 */
+	private Conversation loadConversation(String conversationId) throws SQLException {
 		Connection con = null;
 		PreparedStatement pstmt = null;
 		ResultSet rs = null;
@@ -545,23 +870,63 @@ public class ConversationManager implements ComponentEventListener, Startable {
 			pstmt.setString(1, conversationId);
 			rs = pstmt.executeQuery();
 			if (!rs.next()) {
-				throw new NotFoundException("Conversation not found: " + conversationId);
+				return null;
 			}
 			Conversation conversation = new Conversation(conversationId);
-			conversation.setParticipantOne(rs.getString(1) == null ? null : rs.getString(1));
-			conversation.setParticipantTwo(rs.getString(2) == null ? null : rs.getString(2));
+			conversation.setParticipantOne(rs.getString(1));
+			conversation.setParticipantTwo(rs.getString(2));
 			conversation.setCreatedAt(rs.getLong(3));
 			conversation.setUpdatedAt(rs.getLong(4));
 			conversation.setMessageCount(rs.getInt(5));
-			rs.close();
-			pstmt.close();
-
 			return conversation;
+		} finally {
+			DbConnectionManager.closeConnection(rs, pstmt, con);
+		}
+	}
+
+	private void loadFromDb(List<String> conversationIds, Map<String, Conversation> found) {
+		StringBuilder sql = new StringBuilder(Queries.LOAD_CONVERSATIONS).append("(?");
+		for (int i = 1; i < conversationIds.size(); i++) {
+			sql.append(",?");
+		}
+		sql.append(')');
+
+		Connection con = null;
+		PreparedStatement pstmt = null;
+		ResultSet rs = null;
+		try {
+			con = DbConnectionManager.getConnection();
+			pstmt = con.prepareStatement(sql.toString());
+			for (int i = 0; i < conversationIds.size(); i++) {
+				pstmt.setString(i + 1, conversationIds.get(i));
+			}
+			rs = pstmt.executeQuery();
+			while (rs.next()) {
+				Conversation conversation = new Conversation(rs.getString(1));
+				conversation.setParticipantOne(rs.getString(2));
+				conversation.setParticipantTwo(rs.getString(3));
+				conversation.setCreatedAt(rs.getLong(4));
+				conversation.setUpdatedAt(rs.getLong(5));
+				conversation.setMessageCount(rs.getInt(6));
+				found.put(conversation.getId(), conversation);
+			}
 		} catch (SQLException sqle) {
 			log.error(sqle.getMessage(), sqle);
-			return null;
 		} finally {
 			DbConnectionManager.closeConnection(rs, pstmt, con);
 		}
 	}
+
+	private Conversation loadFromDb(String conversationId) throws NotFoundException {
+		try {
+			Conversation conversation = loadConversation(conversationId);
+			if (conversation == null) {
+				throw new NotFoundException("Conversation not found: " + conversationId);
+			}
+			return conversation;
+		} catch (SQLException sqle) {
+			log.error(sqle.getMessage(), sqle);
+			return null;
+		}
+	}
 }
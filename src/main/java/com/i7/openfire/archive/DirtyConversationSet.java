@@ -0,0 +1,155 @@
+package com.i7.openfire.archive;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.Lists;
+import com.i7.openfire.archive.model.Conversation;
+import com.i7.openfire.archive.wal.WriteAheadLog;
+
+/**
+ * Set of conversations whose meta-data changed since they were last written
+ * to the database. A conversation is held once no matter how many times it is
+ * marked, so each flush writes it a single time with its latest state.
+ *
+ * Only the write-ahead log record of the latest mark of a conversation is
+ * referenced, the records of the earlier marks are released as they are
+ * superseded.
+ */
+public class DirtyConversationSet {
+
+	private final WriteAheadLog writeAheadLog;
+
+	/**
+	 * Key: Conversation ID; Value: latest mark of the conversation.
+	 */
+	private final Map<String, Mark> conversations = new ConcurrentHashMap<>();
+
+	private final AtomicLong marks = new AtomicLong();
+	private final AtomicLong writes = new AtomicLong();
+
+	/**
+	 * @param writeAheadLog
+	 *            log releasing the records of the superseded marks.
+	 */
+	public DirtyConversationSet(WriteAheadLog writeAheadLog) {
+		this.writeAheadLog = writeAheadLog;
+	}
+
+	/**
+	 * Marks a conversation as changed.
+	 *
+	 * @param conversation
+	 *            the changed conversation.
+	 * @param walSegment
+	 *            write-ahead log segment of the record of the change.
+	 */
+	public void mark(Conversation conversation, long walSegment) {
+		marks.incrementAndGet();
+		Mark previous = conversations.put(conversation.getId(), new Mark(conversation, walSegment));
+		if (previous != null) {
+			writeAheadLog.release(previous.walSegment);
+		}
+	}
+
+	/**
+	 * Removes and returns every conversation marked as changed. Conversations
+	 * marked while draining are either returned or kept for the next drain.
+	 *
+	 * @return the marks of the changed conversations.
+	 */
+	public List<Mark> drain() {
+		List<Mark> drained = Lists.newArrayListWithCapacity(conversations.size());
+		for (Map.Entry<String, Mark> entry : conversations.entrySet()) {
+			if (conversations.remove(entry.getKey(), entry.getValue())) {
+				drained.add(entry.getValue());
+			}
+		}
+		writes.addAndGet(drained.size());
+		return drained;
+	}
+
+	/**
+	 * Marks again a conversation returned by {@link #drain()} that could not
+	 * be written, unless it was marked again in the meantime.
+	 *
+	 * @param mark
+	 *            the mark of the conversation.
+	 */
+	public void requeue(Mark mark) {
+		if (conversations.putIfAbsent(mark.conversation.getId(), mark) != null) {
+			writeAheadLog.release(mark.walSegment);
+		}
+	}
+
+	/**
+	 * Returns true if a conversation is marked as changed and not drained yet.
+	 *
+	 * @param conversationId
+	 *            the ID of the conversation.
+	 * @return true if the conversation is marked.
+	 */
+	public boolean contains(String conversationId) {
+		return conversations.containsKey(conversationId);
+	}
+
+	public boolean isEmpty() {
+		return conversations.isEmpty();
+	}
+
+	public int size() {
+		return conversations.size();
+	}
+
+	/**
+	 * Returns the number of times conversations were marked as changed.
+	 *
+	 * @return the number of marks.
+	 */
+	public long getMarks() {
+		return marks.get();
+	}
+
+	/**
+	 * Returns the number of conversations handed out to be written.
+	 *
+	 * @return the number of writes.
+	 */
+	public long getWrites() {
+		return writes.get();
+	}
+
+	/**
+	 * Returns how many marks were folded, on average, into a single write.
+	 *
+	 * @return the coalescing ratio.
+	 */
+	public double getCoalescingRatio() {
+		long written = writes.get();
+		return written == 0 ? 0 : (double) marks.get() / written;
+	}
+
+	/**
+	 * A changed conversation, along with the write-ahead log segment of the
+	 * record of its change.
+	 */
+	public static class Mark {
+		private final Conversation conversation;
+		private final long walSegment;
+
+		Mark(Conversation conversation, long walSegment) {
+			this.conversation = conversation;
+			this.walSegment = walSegment;
+		}
+
+		public Conversation getConversation() {
+			return conversation;
+		}
+
+		public long getWalSegment() {
+			return walSegment;
+		}
+	}
+}
@@ -0,0 +1,452 @@
+package com.i7.openfire.archive;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.i7.openfire.archive.enums.MessageStatus;
+import com.i7.openfire.archive.model.ArchivedMessage;
+import com.i7.openfire.archive.wal.SpillQueue;
+import com.i7.openfire.archive.wal.WalRecord;
+import com.i7.openfire.archive.wal.WriteAheadLog;
+
+/**
+ * Messages and message status updates waiting to be written to the database.
+ *
+ * A status update for a message that is still waiting to be inserted is
+ * applied to the queued message, so a single row is written with its final
+ * status. Status updates of messages already handed out for insertion are kept
+ * by message ID and collapse to the highest status received.
+ *
+ * The number of messages and status updates held in memory is bounded. Once
+ * the bound is reached, new messages and status updates are spilled to disk
+ * and, until every spilled record has been read back, keep being spilled so
+ * that they are read back in the order they were received.
+ *
+ * The messages held in memory are indexed by conversation until they are
+ * written to the database, so that readers can merge the messages not stored
+ * yet with the stored ones. Messages spilled to disk are not indexed until
+ * read back.
+ *
+ * Each queued message and status update references the write-ahead log
+ * segment of its record. A status update applied to a message, or collapsed
+ * into another update, releases its reference; the others are released by the
+ * writer once written.
+ */
+public class PendingMessageQueue {
+	private static final Logger log = LoggerFactory.getLogger(PendingMessageQueue.class);
+
+	private static final int READ_BACK_BATCH = 1024;
+
+	private final SpillQueue spill;
+	private final IntSupplier capacity;
+	private final WriteAheadLog writeAheadLog;
+
+	/**
+	 * Whether records are being spilled. Only changed holding the spill lock.
+	 */
+	private volatile boolean spilling;
+	private final Object spillLock = new Object();
+	private final AtomicInteger spilledMessages = new AtomicInteger();
+
+	private final Deque<ArchivedMessage> messages = new ConcurrentLinkedDeque<>();
+
+	/**
+	 * Messages waiting to be inserted. Key: Message ID; Value: Message.
+	 */
+	private final Map<String, ArchivedMessage> pendingInserts = new ConcurrentHashMap<>();
+
+	/**
+	 * Status updates waiting to be written. Key: Message ID; Value: Message
+	 * carrying the status update.
+	 */
+	private final Map<String, ArchivedMessage> pendingUpdates = new ConcurrentHashMap<>();
+
+	/**
+	 * Messages not written to the database yet, polled or not, in archive
+	 * order. Key: Conversation ID; Value: Messages.
+	 */
+	private final Map<String, NavigableSet<ArchivedMessage>> unwritten = new ConcurrentHashMap<>();
+
+	private final AtomicInteger size = new AtomicInteger();
+	private final AtomicLong mergedUpdates = new AtomicLong();
+	private final AtomicLong collapsedUpdates = new AtomicLong();
+
+	/**
+	 * @param spill
+	 *            queue holding the records that do not fit in memory.
+	 * @param capacity
+	 *            returns the maximum number of messages and status updates held
+	 *            in memory.
+	 * @param writeAheadLog
+	 *            log releasing the records of the status updates merged away.
+	 */
+	public PendingMessageQueue(SpillQueue spill, IntSupplier capacity, WriteAheadLog writeAheadLog) {
+		this.spill = spill;
+		this.capacity = capacity;
+		this.writeAheadLog = writeAheadLog;
+	}
+
+	/**
+	 * Queues a message to be inserted.
+	 *
+	 * @param message
+	 *            the message.
+	 */
+	public void add(ArchivedMessage message) {
+		if ((spilling || isFull()) && spill(record(WalRecord.message(message), message))) {
+			return;
+		}
+		addToMemory(message);
+	}
+
+	private void addToMemory(ArchivedMessage message) {
+		unwritten.compute(message.getConversationID(), (id, messages) -> {
+			if (messages == null) {
+				messages = new ConcurrentSkipListSet<>(ArchivedMessage.ARCHIVE_ORDER);
+			}
+			messages.add(message);
+			return messages;
+		});
+		pendingInserts.put(message.getId(), message);
+		messages.add(message);
+		size.incrementAndGet();
+	}
+
+	/**
+	 * Removes and returns the oldest message waiting to be inserted, or
+	 * <tt>null</tt> if there is none. Status updates received after this call
+	 * are no longer applied to the returned message.
+	 *
+	 * @return the message to insert.
+	 */
+	public ArchivedMessage poll() {
+		ArchivedMessage message = messages.poll();
+		while (message == null && spilling && !isFull()) {
+			if (!readBack()) {
+				break;
+			}
+			message = messages.poll();
+		}
+		if (message != null) {
+			size.decrementAndGet();
+			pendingInserts.remove(message.getId(), message);
+		}
+		return message;
+	}
+
+	/**
+	 * Removes messages returned by {@link #poll()} from the messages of their
+	 * conversations once they are written to the database, or given up on.
+	 *
+	 * @param written
+	 *            the messages.
+	 */
+	public void removeWritten(Collection<ArchivedMessage> written) {
+		for (ArchivedMessage message : written) {
+			unwritten.computeIfPresent(message.getConversationID(), (id, messages) -> {
+				messages.remove(message);
+				return messages.isEmpty() ? null : messages;
+			});
+		}
+	}
+
+	/**
+	 * Queues again messages returned by {@link #poll()} and status updates
+	 * returned by {@link #drainStatusUpdates()} that could not be written.
+	 * The messages are put back ahead of the others, in the same order, and
+	 * the status updates received for them in the meantime are applied to
+	 * them.
+	 *
+	 * The requeued messages are held in memory even if that exceeds the
+	 * bound, they are the oldest ones.
+	 *
+	 * @param failed
+	 *            the messages, oldest first.
+	 * @param failedUpdates
+	 *            the status updates.
+	 */
+	public void requeue(List<ArchivedMessage> failed, List<ArchivedMessage> failedUpdates) {
+		for (int i = failed.size() - 1; i >= 0; i--) {
+			ArchivedMessage message = failed.get(i);
+			pendingInserts.put(message.getId(), message);
+			ArchivedMessage update = pendingUpdates.remove(message.getId());
+			if (update != null) {
+				message.updateStatus(update.getStatus(), update.getUpdatedAt());
+				mergedUpdates.incrementAndGet();
+				writeAheadLog.release(update.getWalSegment());
+			}
+			messages.addFirst(message);
+			size.incrementAndGet();
+		}
+		for (ArchivedMessage update : failedUpdates) {
+			if (!mergeIntoInsert(update)) {
+				addUpdateToMemory(update);
+			}
+		}
+	}
+
+	/**
+	 * Returns the messages of a conversation that may not be written to the
+	 * database yet, queued or being written.
+	 *
+	 * @param conversationId
+	 *            the ID of the conversation.
+	 * @return the messages, in archive order.
+	 */
+	public List<ArchivedMessage> getUnwritten(String conversationId) {
+		NavigableSet<ArchivedMessage> messages = unwritten.get(conversationId);
+		return messages == null ? Collections.emptyList() : Lists.newArrayList(messages);
+	}
+
+	/**
+	 * Queues a status update. If the message is still waiting to be inserted
+	 * the update is applied to it, otherwise it is merged with any other
+	 * update pending for the same message.
+	 *
+	 * @param update
+	 *            message carrying the ID, status and update time.
+	 */
+	public void addStatusUpdate(ArchivedMessage update) {
+		if (mergeIntoInsert(update)) {
+			return;
+		}
+		if ((spilling || isFull()) && spill(record(WalRecord.status(update), update))) {
+			return;
+		}
+		addUpdateToMemory(update);
+	}
+
+	private boolean mergeIntoInsert(ArchivedMessage update) {
+		ArchivedMessage merged = pendingInserts.computeIfPresent(update.getId(), (id, message) -> {
+			message.updateStatus(update.getStatus(), update.getUpdatedAt());
+			return message;
+		});
+		if (merged != null) {
+			mergedUpdates.incrementAndGet();
+			writeAheadLog.release(update.getWalSegment());
+			return true;
+		}
+		return false;
+	}
+
+	private void addUpdateToMemory(ArchivedMessage update) {
+		pendingUpdates.merge(update.getId(), update, (current, received) -> {
+			collapsedUpdates.incrementAndGet();
+			if (isAtLeast(received.getStatus(), current.getStatus())) {
+				writeAheadLog.release(current.getWalSegment());
+				return received;
+			}
+			writeAheadLog.release(received.getWalSegment());
+			return current;
+		});
+	}
+
+	/**
+	 * Removes and returns every pending status update.
+	 *
+	 * @return the status updates to write.
+	 */
+	public List<ArchivedMessage> drainStatusUpdates() {
+		List<ArchivedMessage> drained = Lists.newArrayListWithCapacity(pendingUpdates.size());
+		for (Map.Entry<String, ArchivedMessage> entry : pendingUpdates.entrySet()) {
+			if (pendingUpdates.remove(entry.getKey(), entry.getValue())) {
+				drained.add(entry.getValue());
+			}
+		}
+		return drained;
+	}
+
+	public boolean isEmpty() {
+		return messages.isEmpty() && pendingUpdates.isEmpty() && !spilling;
+	}
+
+	/**
+	 * Returns the number of messages waiting to be inserted, in memory or
+	 * spilled to disk.
+	 *
+	 * @return the number of pending messages.
+	 */
+	public int size() {
+		return size.get() + spilledMessages.get();
+	}
+
+	/**
+	 * Returns the number of messages and status updates held in memory.
+	 *
+	 * @return the in-memory queue depth.
+	 */
+	public int getMemoryDepth() {
+		return size.get() + pendingUpdates.size();
+	}
+
+	/**
+	 * Returns the number of messages and status updates spilled to disk and
+	 * not read back yet.
+	 *
+	 * @return the on-disk queue depth.
+	 */
+	public long getSpillDepth() {
+		return spill.size();
+	}
+
+	/**
+	 * Returns the total number of records spilled to disk.
+	 *
+	 * @return the number of spilled records.
+	 */
+	public long getSpilledRecords() {
+		return spill.getSpilledRecords();
+	}
+
+	/**
+	 * Returns the total number of bytes spilled to disk.
+	 *
+	 * @return the number of spilled bytes.
+	 */
+	public long getSpilledBytes() {
+		return spill.getSpilledBytes();
+	}
+
+	/**
+	 * Returns the total number of spilled records that could not be read
+	 * back.
+	 *
+	 * @return the number of skipped records.
+	 */
+	public long getSkippedRecords() {
+		return spill.getSkippedRecords();
+	}
+
+	/**
+	 * Returns the number of status updates waiting to be written.
+	 *
+	 * @return the number of pending status updates.
+	 */
+	public int getStatusUpdateCount() {
+		return pendingUpdates.size();
+	}
+
+	/**
+	 * Returns the number of status updates applied to messages before they
+	 * were inserted.
+	 *
+	 * @return the number of merged status updates.
+	 */
+	public long getMergedUpdates() {
+		return mergedUpdates.get();
+	}
+
+	/**
+	 * Returns the number of status updates collapsed into another pending
+	 * update of the same message.
+	 *
+	 * @return the number of collapsed status updates.
+	 */
+	public long getCollapsedUpdates() {
+		return collapsedUpdates.get();
+	}
+
+	private boolean isFull() {
+		int max = capacity.getAsInt();
+		return max > 0 && getMemoryDepth() >= max;
+	}
+
+	/**
+	 * Spills a record to disk if records are being spilled or memory is full.
+	 *
+	 * @return false if the record has to be held in memory.
+	 */
+	private boolean spill(WalRecord record) {
+		synchronized (spillLock) {
+			if (!spilling && !isFull()) {
+				return false;
+			}
+			try {
+				spill.add(record);
+			} catch (IOException e) {
+				// Better to exceed the bound than to lose the record.
+				log.error("Unable to spill a queued record to disk, keeping it in memory", e);
+				return false;
+			}
+			if (record.getType() == WalRecord.Type.MESSAGE) {
+				spilledMessages.incrementAndGet();
+			}
+			if (!spilling) {
+				spilling = true;
+				log.warn("Archive queue is full, spilling to disk");
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Moves the oldest spilled records back to memory. Records keep being
+	 * spilled until all of them have been read back, so that they stay in
+	 * order.
+	 *
+	 * Spilled records that cannot be read back are given up on. The
+	 * write-ahead log, if enabled, replays them on the next start; otherwise
+	 * they are lost.
+	 *
+	 * @return false if nothing could be read back.
+	 */
+	private boolean readBack() {
+		synchronized (spillLock) {
+			List<WalRecord> records;
+			try {
+				int max = capacity.getAsInt();
+				records = spill.poll(max > 0 ? Math.max(1, Math.min(READ_BACK_BATCH, max - getMemoryDepth()))
+						: READ_BACK_BATCH);
+			} catch (IOException e) {
+				log.error("Unable to read spilled records back from disk, dropping " + spill.size() + " records"
+						+ (spill.isLogged() ? " left to the write-ahead log" : ", they are lost"), e);
+				spill.clear();
+				records = Collections.emptyList();
+			}
+			for (WalRecord record : records) {
+				record.getMessage().setWalSegment(record.getSegment());
+				if (record.getType() == WalRecord.Type.MESSAGE) {
+					spilledMessages.decrementAndGet();
+					addToMemory(record.getMessage());
+				} else if (!mergeIntoInsert(record.getMessage())) {
+					addUpdateToMemory(record.getMessage());
+				}
+			}
+			if (spill.isEmpty()) {
+				// Nothing left on disk, including the messages skipped.
+				spilledMessages.set(0);
+				spilling = false;
+				log.info("Archive queue caught up with the records spilled to disk");
+			}
+			return !records.isEmpty();
+		}
+	}
+
+	/**
+	 * Carries the write-ahead log segment of a message over to its spilled
+	 * record.
+	 */
+	private static WalRecord record(WalRecord record, ArchivedMessage message) {
+		record.setSegment(message.getWalSegment());
+		return record;
+	}
+
+	private static boolean isAtLeast(MessageStatus status, MessageStatus other) {
+		return status.getValue() >= other.getValue();
+	}
+}
@@ -2,6 +2,7 @@ package com.i7.openfire.archive;
 
 import java.util.Date;
 import java.util.List;
+import java.util.function.Consumer;
 
 import com.i7.openfire.archive.model.ArchivedMessage;
 import com.i7.openfire.archive.xep.xep0059.XmppResultSet;
@@ -25,4 +26,13 @@ public interface PersistenceManager {
 	 * Searches for messages by conversation id.
 	 */
 	List<ArchivedMessage> getMessages(String conversationId, Date startDate, Date endDate, XmppResultSet xmppResultSet);
+
+	/**
+	 * Searches for messages by conversation id, handing each message to the
+	 * consumer as soon as it is read rather than collecting the page first.
+	 *
+	 * @return the number of messages handed to the consumer.
+	 */
+	int streamMessages(String conversationId, Date startDate, Date endDate, XmppResultSet xmppResultSet,
+			Consumer<ArchivedMessage> consumer);
 }
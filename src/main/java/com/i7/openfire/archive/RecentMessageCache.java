@@ -0,0 +1,310 @@
+package com.i7.openfire.archive;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.i7.openfire.archive.model.ArchivedMessage;
+import com.i7.openfire.archive.xep.xep0059.ResultSetCursor;
+import com.i7.openfire.archive.xep.xep0059.XmppResultSet;
+
+/**
+ * Keeps the last messages of each conversation that received messages since
+ * this cluster member became the senior one, which processes every message,
+ * so that the archive queries asking for the latest messages of an active
+ * conversation, the most common ones, are answered without reading the
+ * database.
+ *
+ * The messages of a conversation are kept in a ring, ordered as the archive
+ * is, holding up to a fixed number of messages. A ring holds every message of
+ * its conversation from its oldest one on, so a page is answered from the ring
+ * if it falls within those messages. Rings are bounded as a whole by an
+ * estimate of the heap they use; the least recently used ones are evicted
+ * first.
+ *
+ * Mutating methods must be called holding the conversation lock of the
+ * conversation.
+ */
+public class RecentMessageCache {
+
+	/**
+	 * Estimated bytes used by a message besides its strings: the message, its
+	 * JIDs and the list node.
+	 */
+	private static final int MESSAGE_OVERHEAD = 256;
+
+	/**
+	 * Estimated bytes used by a ring besides its messages.
+	 */
+	private static final int RING_OVERHEAD = 128;
+
+	private final int ringSize;
+	private final Cache<String, Ring> rings;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param ringSize
+	 *            maximum number of messages kept for a conversation.
+	 * @param maxBytes
+	 *            maximum estimated heap, in bytes, used by all the rings.
+	 */
+	public RecentMessageCache(int ringSize, long maxBytes) {
+		this.ringSize = ringSize;
+		this.rings = CacheBuilder.newBuilder().maximumWeight(maxBytes)
+				.weigher((String conversationId, Ring ring) -> ring.estimatedBytes).recordStats().build();
+	}
+
+	/**
+	 * Adds a message received by a conversation.
+	 *
+	 * @param message
+	 *            the message.
+	 * @param olderMessages
+	 *            number of messages the conversation had before this one.
+	 */
+	public void add(ArchivedMessage message, int olderMessages) {
+		if (ringSize <= 0) {
+			return;
+		}
+		Ring ring = rings.getIfPresent(message.getConversationID());
+		if (ring == null) {
+			ring = new Ring(olderMessages);
+		}
+		ring.add(message, ringSize);
+		// Put back to have its weight computed again.
+		rings.put(message.getConversationID(), ring);
+	}
+
+	/**
+	 * Applies a status update to the message it updates, if kept.
+	 *
+	 * @param update
+	 *            the status update.
+	 */
+	public void updateStatus(ArchivedMessage update) {
+		Ring ring = rings.getIfPresent(update.getConversationID());
+		if (ring != null) {
+			ring.updateStatus(update);
+		}
+	}
+
+	/**
+	 * Discards the messages kept for a conversation.
+	 *
+	 * @param conversationId
+	 *            the ID of the conversation.
+	 */
+	public void invalidate(String conversationId) {
+		rings.invalidate(conversationId);
+	}
+
+	/**
+	 * Discards the messages kept for every conversation.
+	 */
+	public void invalidateAll() {
+		rings.invalidateAll();
+	}
+
+	/**
+	 * Returns a page of the messages of a conversation, if the kept messages
+	 * hold all of it. The result set is updated as
+	 * {@link PersistenceManager#getMessages(String, Date, Date, XmppResultSet)}
+	 * does.
+	 *
+	 * @param conversationId
+	 *            the ID of the conversation.
+	 * @param startDate
+	 *            earliest creation date of the messages, or <tt>null</tt>.
+	 * @param endDate
+	 *            latest creation date of the messages, or <tt>null</tt>.
+	 * @param xmppResultSet
+	 *            the requested page, or <tt>null</tt> for the first one.
+	 * @param defaultLimit
+	 *            the page size if none is requested.
+	 * @return the messages, or <tt>null</tt> if the page has to be read from
+	 *         the database.
+	 */
+	public List<ArchivedMessage> find(String conversationId, Date startDate, Date endDate,
+			XmppResultSet xmppResultSet, int defaultLimit) {
+		Ring ring = conversationId == null ? null : rings.getIfPresent(conversationId);
+		List<ArchivedMessage> messages = ring == null ? null
+				: ring.find(startDate, endDate, xmppResultSet, defaultLimit);
+		if (messages == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return messages;
+	}
+
+	public long size() {
+		return rings.size();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public double getHitRate() {
+		long requests = hits.get() + misses.get();
+		return requests == 0 ? 0 : (double) hits.get() / requests;
+	}
+
+	/**
+	 * Returns the number of rings evicted to stay within the memory budget.
+	 *
+	 * @return the number of evictions.
+	 */
+	public long getEvictions() {
+		return rings.stats().evictionCount();
+	}
+
+	private static int estimateSize(ArchivedMessage message) {
+		return MESSAGE_OVERHEAD + estimateSize(message.getId()) + estimateSize(message.getBody());
+	}
+
+	private static int estimateSize(String value) {
+		// Object header, hash and array header plus two bytes per character.
+		return value == null ? 0 : 40 + 2 * value.length();
+	}
+
+	/**
+	 * The last messages of a conversation, oldest first.
+	 */
+	private static class Ring {
+		private final LinkedList<ArchivedMessage> messages = new LinkedList<>();
+
+		/**
+		 * Number of messages of the conversation, kept or not.
+		 */
+		private int totalMessages;
+
+		/**
+		 * Whether the conversation has messages older than the kept ones.
+		 */
+		private boolean truncated;
+
+		private volatile int estimatedBytes = RING_OVERHEAD;
+
+		Ring(int olderMessages) {
+			this.totalMessages = olderMessages;
+			this.truncated = olderMessages > 0;
+		}
+
+		synchronized void add(ArchivedMessage message, int ringSize) {
+			// Messages mostly come in order, look for their place from the end.
+			ListIterator<ArchivedMessage> iterator = messages.listIterator(messages.size());
+			while (iterator.hasPrevious()) {
+				if (ArchivedMessage.ARCHIVE_ORDER.compare(iterator.previous(), message) <= 0) {
+					iterator.next();
+					break;
+				}
+			}
+			iterator.add(message);
+			totalMessages++;
+			int bytes = estimatedBytes + estimateSize(message);
+			while (messages.size() > ringSize) {
+				bytes -= estimateSize(messages.removeFirst());
+				truncated = true;
+			}
+			estimatedBytes = bytes;
+		}
+
+		synchronized void updateStatus(ArchivedMessage update) {
+			for (Iterator<ArchivedMessage> iterator = messages.descendingIterator(); iterator.hasNext();) {
+				ArchivedMessage message = iterator.next();
+				if (message.getId().equals(update.getId())) {
+					message.updateStatus(update.getStatus(), update.getUpdatedAt());
+					return;
+				}
+			}
+		}
+
+		synchronized List<ArchivedMessage> find(Date startDate, Date endDate, XmppResultSet xmppResultSet,
+				int defaultLimit) {
+			Integer max = xmppResultSet == null ? null : xmppResultSet.getMax();
+			int limit = max != null ? max : defaultLimit;
+			if (xmppResultSet != null && xmppResultSet.getIndex() != null) {
+				return null;
+			}
+			ResultSetCursor after = xmppResultSet == null ? null : xmppResultSet.getAfter();
+			ResultSetCursor before = xmppResultSet == null ? null : xmppResultSet.getBefore();
+
+			// Messages of the requested range that are kept.
+			List<ArchivedMessage> range = Lists.newArrayList();
+			for (ArchivedMessage message : messages) {
+				if ((startDate == null || message.getCreatedAt() >= startDate.getTime())
+						&& (endDate == null || message.getCreatedAt() <= endDate.getTime())) {
+					range.add(message);
+				}
+			}
+			// Whether the whole requested range is kept.
+			boolean covered = !truncated
+					|| (startDate != null && !messages.isEmpty() && startDate.getTime() > messages.getFirst().getCreatedAt());
+
+			List<ArchivedMessage> page;
+			boolean more;
+			if (after != null) {
+				// Kept messages follow the cursor only if it is a kept message.
+				if (!covered && (messages.isEmpty() || after.compareTo(messages.getFirst()) > 0)) {
+					return null;
+				}
+				int from = 0;
+				while (from < range.size() && after.compareTo(range.get(from)) <= 0) {
+					from++;
+				}
+				page = range.subList(from, Math.min(range.size(), from + limit));
+				more = range.size() - from > limit;
+			} else if (before != null) {
+				int to = range.size();
+				while (to > 0 && before.compareTo(range.get(to - 1)) >= 0) {
+					to--;
+				}
+				more = to > limit;
+				if (!more && !covered) {
+					return null;
+				}
+				page = range.subList(Math.max(0, to - limit), to);
+			} else {
+				if (!covered) {
+					return null;
+				}
+				page = range.subList(0, Math.min(range.size(), limit));
+				more = range.size() > limit;
+			}
+
+			Integer count;
+			if (covered) {
+				count = range.size();
+			} else if (startDate == null && endDate == null) {
+				count = totalMessages;
+			} else {
+				// The count of a partly kept range is unknown.
+				return null;
+			}
+
+			page = Lists.newArrayList(page);
+			if (xmppResultSet != null) {
+				xmppResultSet.setCount(count);
+				if (!page.isEmpty()) {
+					xmppResultSet.setFirst(ResultSetCursor.of(page.get(0)));
+					xmppResultSet.setLast(ResultSetCursor.of(page.get(page.size() - 1)));
+				}
+				xmppResultSet.setComplete(!more);
+			}
+			return page;
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package com.i7.openfire.archive.cluster;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Collection;
+import java.util.List;
+
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.util.cache.ClusterTask;
+import org.jivesoftware.util.cache.ExternalizableUtil;
+
+import com.google.common.collect.Lists;
+import com.i7.openfire.archive.ConversationManager;
+import com.i7.openfire.archive.model.Conversation;
+import com.i7.openfire.archive.plugin.ArchivingPlugin;
+
+/**
+ * Task that returns the specified conversations, leaving out the ones not
+ * found, so that a page of conversations is fetched from the senior cluster
+ * member at once.
+ */
+public class GetConversationsByIdTask implements ClusterTask<Collection<Conversation>> {
+	private List<String> conversationIDs;
+	private Collection<Conversation> conversations;
+
+	public GetConversationsByIdTask() {
+	}
+
+	public GetConversationsByIdTask(Collection<String> conversationIDs) {
+		this.conversationIDs = Lists.newArrayList(conversationIDs);
+	}
+
+	@Override
+	public Collection<Conversation> getResult() {
+		return conversations;
+	}
+
+	@Override
+	public void run() {
+		ArchivingPlugin plugin = (ArchivingPlugin) XMPPServer.getInstance().getPluginManager()
+				.getPlugin(ArchivingPlugin.NAME);
+
+		ConversationManager conversationManager = plugin.getArchiveInterceptor().getConversationManager();
+		conversations = Lists.newArrayList(conversationManager.getConversations(conversationIDs).values());
+	}
+
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		ExternalizableUtil.getInstance().writeStringList(out, conversationIDs);
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		conversationIDs = ExternalizableUtil.getInstance().readStringList(in);
+	}
+}
@@ -47,7 +47,7 @@ public class SendConversationEventsTask implements ClusterTask<Void> {
 		ConversationManager conversationManager = plugin.getArchiveInterceptor().getConversationManager();
 		for (ConversationEvent event : events) {
 			try {
-				event.run(conversationManager);
+				conversationManager.getIngestPipeline().addChatEvent(event);
 			} catch (Exception e) {
 				Log.error("Error while processing chat archiving event", e);
 			}
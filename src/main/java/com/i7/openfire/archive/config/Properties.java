@@ -22,15 +22,74 @@ public class Properties implements PropertyEventListener {
 	private static final long DEFAULT_MAX_RETRIEVABLE = 15;
 	
 	private static final int DEFAULT_MAX_MESSAGES = 100;
+	private static final int DEFAULT_LOCK_STRIPES = 1024;
+	private static final int DEFAULT_INGEST_SHARD_CAPACITY = 8192;
+	private static final long DEFAULT_INGEST_OFFER_TIMEOUT = 100;
+	private static final long DEFAULT_LOOKUP_CACHE_SIZE = 100000;
+	private static final int DEFAULT_MAX_CONVERSATIONS = 100000;
+	private static final long DEFAULT_MAX_CONVERSATIONS_MEMORY = 0;
+	private static final long DEFAULT_LOOKUP_CACHE_TTL = 30 * JiveConstants.MINUTE;
+	private static final int DEFAULT_FLUSH_BATCH_SIZE = 500;
+	private static final long DEFAULT_FLUSH_MAX_DELAY = JiveConstants.SECOND;
+	private static final long DEFAULT_FLUSH_TARGET_LATENCY = 250;
+	private static final int DEFAULT_FLUSH_WRITERS = 4;
+	private static final int DEFAULT_FLUSH_MAX_STATEMENT_BYTES = 1024 * 1024;
+	private static final int DEFAULT_WAL_SEGMENT_SIZE = 16 * 1024 * 1024;
+	private static final long DEFAULT_WAL_SYNC_INTERVAL = 100;
+	private static final int DEFAULT_MAX_QUEUED_RECORDS = 100000;
+	private static final long DEFAULT_SPILL_FILE_SIZE = 64 * 1024 * 1024;
+	private static final int DEFAULT_RECENT_MESSAGES = 100;
+	private static final int DEFAULT_QUERY_FETCH_SIZE = 100;
+	private static final int DEFAULT_QUERY_THREADS = 8;
+	private static final int DEFAULT_QUERY_QUEUE_SIZE = 256;
+	private static final int DEFAULT_QUERY_MAX_PER_USER = 2;
+	private static final long DEFAULT_QUERY_QUEUE_TIMEOUT = 10 * JiveConstants.SECOND;
+	private static final int DEFAULT_RETENTION_WINDOW_START = 0;
+	private static final int DEFAULT_RETENTION_WINDOW_END = 0;
+	private static final int DEFAULT_RETENTION_CHUNK_SIZE = 1000;
+	private static final long DEFAULT_RETENTION_CHUNK_DELAY = 500;
+	private static final int DEFAULT_PARTITIONS_AHEAD = 3;
+	private static final long DEFAULT_RECENT_MESSAGES_MEMORY = 64 * 1024 * 1024;
 	
 	private boolean enabled;
 	private boolean hotChatterEnabled;
+	private boolean walEnabled;
+	private boolean partitioningEnabled;
 	
     private long maxAge;
     private long idleTime;
     private long maxRetrievable;
+    private long lookupCacheSize;
+    private long lookupCacheTtl;
     
     private int maxMessages;
+    private int lockStripes;
+    private int maxConversations;
+    private long maxConversationsMemory;
+    private int ingestShards;
+    private int ingestShardCapacity;
+    private long ingestOfferTimeout;
+    private int flushBatchSize;
+    private long flushMaxDelay;
+    private long flushTargetLatency;
+    private int flushWriters;
+    private int flushMaxStatementBytes;
+    private int walSegmentSize;
+    private long walSyncInterval;
+    private int maxQueuedRecords;
+    private long spillFileSize;
+    private int recentMessages;
+    private int queryFetchSize;
+    private int queryThreads;
+    private int queryQueueSize;
+    private int queryMaxPerUser;
+    private long queryQueueTimeout;
+    private int retentionWindowStart;
+    private int retentionWindowEnd;
+    private int retentionChunkSize;
+    private long retentionChunkDelay;
+    private int partitionsAhead;
+    private long recentMessagesMemory;
     private int redisTimeOut;
     private int redisMaxRedirects;
     
@@ -39,16 +98,47 @@ public class Properties implements PropertyEventListener {
     private Properties(){
     	enabled = JiveGlobals.getBooleanProperty(Conf.ENABLED.toString(), false);
     	hotChatterEnabled = JiveGlobals.getBooleanProperty(Conf.HOT_CHATTER_ENABLED.toString(), false);
+    	walEnabled = JiveGlobals.getBooleanProperty(Conf.WAL_ENABLED.toString(), true);
+    	partitioningEnabled = JiveGlobals.getBooleanProperty(Conf.PARTITIONING_ENABLED.toString(), false);
     	
-    	maxAge = JiveGlobals.getLongProperty(Conf.MAX_AGE.toString(), DEFAULT_MAX_AGE);
+    	maxAge = JiveGlobals.getLongProperty(Conf.MAX_AGE.toString(), DEFAULT_MAX_AGE) * JiveConstants.DAY;
     	idleTime = JiveGlobals.getLongProperty(Conf.IDLE_TIME.toString(), DEFAULT_IDLE_TIME);
     	maxRetrievable = JiveGlobals.getLongProperty(Conf.MAX_RETRIEVABLE.toString(), DEFAULT_MAX_RETRIEVABLE);
+    	lookupCacheSize = JiveGlobals.getLongProperty(Conf.LOOKUP_CACHE_SIZE.toString(), DEFAULT_LOOKUP_CACHE_SIZE);
+    	lookupCacheTtl = JiveGlobals.getLongProperty(Conf.LOOKUP_CACHE_TTL.toString(), DEFAULT_LOOKUP_CACHE_TTL);
     	
     	redisTimeOut = JiveGlobals.getIntProperty(Conf.REDIS_TIMEOUT.toString(), 0);
     	redisMaxRedirects = JiveGlobals.getIntProperty(Conf.REDIS_MAX_REDIRECTS.toString(), 0);
     	redisNodes = Sets.newHashSet(Arrays.asList(JiveGlobals.getProperty(Conf.REDIS_NODES.toString()).split(",")));
     	
     	maxMessages = JiveGlobals.getIntProperty(Conf.MAX_MESSAGES.toString(), DEFAULT_MAX_MESSAGES);
+    	lockStripes = JiveGlobals.getIntProperty(Conf.LOCK_STRIPES.toString(), DEFAULT_LOCK_STRIPES);
+    	maxConversations = JiveGlobals.getIntProperty(Conf.MAX_CONVERSATIONS.toString(), DEFAULT_MAX_CONVERSATIONS);
+    	maxConversationsMemory = JiveGlobals.getLongProperty(Conf.MAX_CONVERSATIONS_MEMORY.toString(), DEFAULT_MAX_CONVERSATIONS_MEMORY);
+    	ingestShards = JiveGlobals.getIntProperty(Conf.INGEST_SHARDS.toString(), Runtime.getRuntime().availableProcessors());
+    	ingestShardCapacity = JiveGlobals.getIntProperty(Conf.INGEST_SHARD_CAPACITY.toString(), DEFAULT_INGEST_SHARD_CAPACITY);
+    	ingestOfferTimeout = JiveGlobals.getLongProperty(Conf.INGEST_OFFER_TIMEOUT.toString(), DEFAULT_INGEST_OFFER_TIMEOUT);
+    	flushBatchSize = JiveGlobals.getIntProperty(Conf.FLUSH_BATCH_SIZE.toString(), DEFAULT_FLUSH_BATCH_SIZE);
+    	flushMaxDelay = JiveGlobals.getLongProperty(Conf.FLUSH_MAX_DELAY.toString(), DEFAULT_FLUSH_MAX_DELAY);
+    	flushTargetLatency = JiveGlobals.getLongProperty(Conf.FLUSH_TARGET_LATENCY.toString(), DEFAULT_FLUSH_TARGET_LATENCY);
+    	flushWriters = JiveGlobals.getIntProperty(Conf.FLUSH_WRITERS.toString(), DEFAULT_FLUSH_WRITERS);
+    	flushMaxStatementBytes = JiveGlobals.getIntProperty(Conf.FLUSH_MAX_STATEMENT_BYTES.toString(), DEFAULT_FLUSH_MAX_STATEMENT_BYTES);
+    	walSegmentSize = JiveGlobals.getIntProperty(Conf.WAL_SEGMENT_SIZE.toString(), DEFAULT_WAL_SEGMENT_SIZE);
+    	walSyncInterval = JiveGlobals.getLongProperty(Conf.WAL_SYNC_INTERVAL.toString(), DEFAULT_WAL_SYNC_INTERVAL);
+    	maxQueuedRecords = JiveGlobals.getIntProperty(Conf.MAX_QUEUED_RECORDS.toString(), DEFAULT_MAX_QUEUED_RECORDS);
+    	spillFileSize = JiveGlobals.getLongProperty(Conf.SPILL_FILE_SIZE.toString(), DEFAULT_SPILL_FILE_SIZE);
+    	recentMessages = JiveGlobals.getIntProperty(Conf.RECENT_MESSAGES.toString(), DEFAULT_RECENT_MESSAGES);
+    	recentMessagesMemory = JiveGlobals.getLongProperty(Conf.RECENT_MESSAGES_MEMORY.toString(), DEFAULT_RECENT_MESSAGES_MEMORY);
+    	queryFetchSize = JiveGlobals.getIntProperty(Conf.QUERY_FETCH_SIZE.toString(), DEFAULT_QUERY_FETCH_SIZE);
+    	queryThreads = JiveGlobals.getIntProperty(Conf.QUERY_THREADS.toString(), DEFAULT_QUERY_THREADS);
+    	queryQueueSize = JiveGlobals.getIntProperty(Conf.QUERY_QUEUE_SIZE.toString(), DEFAULT_QUERY_QUEUE_SIZE);
+    	queryMaxPerUser = JiveGlobals.getIntProperty(Conf.QUERY_MAX_PER_USER.toString(), DEFAULT_QUERY_MAX_PER_USER);
+    	queryQueueTimeout = JiveGlobals.getLongProperty(Conf.QUERY_QUEUE_TIMEOUT.toString(), DEFAULT_QUERY_QUEUE_TIMEOUT);
+    	retentionWindowStart = JiveGlobals.getIntProperty(Conf.RETENTION_WINDOW_START.toString(), DEFAULT_RETENTION_WINDOW_START);
+    	retentionWindowEnd = JiveGlobals.getIntProperty(Conf.RETENTION_WINDOW_END.toString(), DEFAULT_RETENTION_WINDOW_END);
+    	retentionChunkSize = JiveGlobals.getIntProperty(Conf.RETENTION_CHUNK_SIZE.toString(), DEFAULT_RETENTION_CHUNK_SIZE);
+    	retentionChunkDelay = JiveGlobals.getLongProperty(Conf.RETENTION_CHUNK_DELAY.toString(), DEFAULT_RETENTION_CHUNK_DELAY);
+    	partitionsAhead = JiveGlobals.getIntProperty(Conf.PARTITIONS_AHEAD.toString(), DEFAULT_PARTITIONS_AHEAD);
     }
     
     public static Properties getInstance() {
@@ -69,6 +159,35 @@ public class Properties implements PropertyEventListener {
 		return hotChatterEnabled;
 	}
 
+	/**
+	 * Whether queued records are kept in a write-ahead log to survive crashes.
+	 */
+	public boolean isWalEnabled() {
+		return walEnabled;
+	}
+
+	/**
+	 * Whether <tt>ofMessage</tt> is partitioned by month of creation, see
+	 * <tt>database/partitioning/archiving_mysql.sql</tt>. Expired messages are
+	 * then dropped a partition at a time instead of deleted by the retention
+	 * task.
+	 */
+	public boolean isPartitioningEnabled() {
+		return partitioningEnabled;
+	}
+
+	/**
+	 * Number of monthly partitions of <tt>ofMessage</tt> created ahead of the
+	 * current month.
+	 */
+	public int getPartitionsAhead() {
+		return partitionsAhead;
+	}
+
+	/**
+	 * Age, in milliseconds, of the messages and idle conversations deleted by
+	 * the retention task, 0 to keep them forever. Set in days.
+	 */
 	public long getMaxAge() {
 		return maxAge;
 	}
@@ -81,10 +200,222 @@ public class Properties implements PropertyEventListener {
 		return maxRetrievable;
 	}
 	
+	public long getLookupCacheSize() {
+		return lookupCacheSize;
+	}
+
+	public long getLookupCacheTtl() {
+		return lookupCacheTtl;
+	}
+	
 	public int getMaxMessages() {
 		return maxMessages;
 	}
 	
+	/**
+	 * Maximum number of active conversations kept in memory, 0 for no limit.
+	 */
+	public int getMaxConversations() {
+		return maxConversations;
+	}
+
+	/**
+	 * Maximum estimated heap, in bytes, used by active conversations, 0 for no
+	 * limit.
+	 */
+	public long getMaxConversationsMemory() {
+		return maxConversationsMemory;
+	}
+
+	public int getLockStripes() {
+		return lockStripes;
+	}
+	
+	public int getIngestShards() {
+		return ingestShards;
+	}
+	
+	public int getIngestShardCapacity() {
+		return ingestShardCapacity;
+	}
+
+	/**
+	 * Time, in milliseconds, a routing thread waits for room in a full ingest
+	 * ring before the wait is reported. It keeps waiting after that, so that
+	 * events are neither lost nor processed out of order.
+	 */
+	public long getIngestOfferTimeout() {
+		return ingestOfferTimeout;
+	}
+	
+	/**
+	 * Maximum number of pending messages written in a single flush; reaching
+	 * it triggers a flush.
+	 */
+	public int getFlushBatchSize() {
+		return flushBatchSize;
+	}
+
+	/**
+	 * Maximum time, in milliseconds, between two flushes.
+	 */
+	public long getFlushMaxDelay() {
+		return flushMaxDelay;
+	}
+
+	/**
+	 * Time, in milliseconds, a flush should take; slower flushes reduce the
+	 * batch size.
+	 */
+	public long getFlushTargetLatency() {
+		return flushTargetLatency;
+	}
+
+	/**
+	 * Number of threads, each with its own connection, writing a flush.
+	 */
+	public int getFlushWriters() {
+		return flushWriters;
+	}
+
+	/**
+	 * Maximum estimated size, in bytes, of a multi-row statement. Must stay
+	 * below the packet limit of the database driver.
+	 */
+	public int getFlushMaxStatementBytes() {
+		return flushMaxStatementBytes;
+	}
+
+	/**
+	 * Size, in bytes, of a write-ahead log segment file.
+	 */
+	public int getWalSegmentSize() {
+		return walSegmentSize;
+	}
+
+	/**
+	 * Time, in milliseconds, between forcing the write-ahead log to disk.
+	 */
+	public long getWalSyncInterval() {
+		return walSyncInterval;
+	}
+
+	/**
+	 * Maximum number of messages and status updates queued in memory, 0 for no
+	 * limit. Once reached, new ones are spilled to disk.
+	 */
+	public int getMaxQueuedRecords() {
+		return maxQueuedRecords;
+	}
+
+	/**
+	 * Size, in bytes, after which a new spill file is started.
+	 */
+	public long getSpillFileSize() {
+		return spillFileSize;
+	}
+
+	/**
+	 * Number of recent messages of each conversation kept in memory to answer
+	 * archive queries, 0 to keep none.
+	 */
+	public int getRecentMessages() {
+		return recentMessages;
+	}
+
+	/**
+	 * Maximum estimated heap, in bytes, used by the recent messages kept in
+	 * memory.
+	 */
+	public long getRecentMessagesMemory() {
+		return recentMessagesMemory;
+	}
+
+	/**
+	 * Number of rows fetched from the database at a time when reading archive
+	 * query results. Ignored on MySQL, where rows are streamed one at a time.
+	 */
+	public int getQueryFetchSize() {
+		return queryFetchSize;
+	}
+
+	/**
+	 * Number of archive IQ requests handled at a time, off the IQ router
+	 * threads.
+	 */
+	public int getQueryThreads() {
+		return queryThreads;
+	}
+
+	/**
+	 * Number of archive IQ requests that can wait to be handled. Further
+	 * requests are rejected.
+	 */
+	public int getQueryQueueSize() {
+		return queryQueueSize;
+	}
+
+	/**
+	 * Number of archive IQ requests a user can have waiting or being handled,
+	 * 0 for no limit.
+	 */
+	public int getQueryMaxPerUser() {
+		return queryMaxPerUser;
+	}
+
+	/**
+	 * Time, in milliseconds, an archive IQ request can wait to be handled
+	 * before being rejected.
+	 */
+	public long getQueryQueueTimeout() {
+		return queryQueueTimeout;
+	}
+
+	/**
+	 * Hour of the day, server time, from which the retention task deletes
+	 * expired messages. The task runs at any time if it is the same as the end
+	 * hour.
+	 */
+	public int getRetentionWindowStart() {
+		return retentionWindowStart;
+	}
+
+	/**
+	 * Hour of the day, server time, at which the retention task stops deleting
+	 * expired messages until the next window.
+	 */
+	public int getRetentionWindowEnd() {
+		return retentionWindowEnd;
+	}
+
+	/**
+	 * Number of messages or conversations deleted by each statement of the
+	 * retention task.
+	 */
+	public int getRetentionChunkSize() {
+		return retentionChunkSize;
+	}
+
+	/**
+	 * Time, in milliseconds, the retention task waits after each chunk, to
+	 * leave the database to other work.
+	 */
+	public long getRetentionChunkDelay() {
+		return retentionChunkDelay;
+	}
+
+	/**
+	 * Creation time of the oldest message that may not have been deleted by
+	 * the retention task. Older messages were all deleted.
+	 */
+	public long getRetentionCheckpoint() {
+		return JiveGlobals.getLongProperty(Conf.RETENTION_CHECKPOINT.toString(), 0);
+	}
+
+	public void setRetentionCheckpoint(long checkpoint) {
+		JiveGlobals.setProperty(Conf.RETENTION_CHECKPOINT.toString(), Long.toString(checkpoint));
+	}
+	
 	public Set<String> getRedisNodes() {
 		return redisNodes;
 	}
@@ -105,6 +436,30 @@ public class Properties implements PropertyEventListener {
 			maxAge = DEFAULT_MAX_AGE * JiveConstants.DAY;
 		} else if (property.equals(Conf.MAX_RETRIEVABLE.toString())) {
 			maxRetrievable = DEFAULT_MAX_RETRIEVABLE * JiveConstants.DAY;
+		} else if (property.equals(Conf.MAX_CONVERSATIONS.toString())) {
+			maxConversations = DEFAULT_MAX_CONVERSATIONS;
+		} else if (property.equals(Conf.MAX_CONVERSATIONS_MEMORY.toString())) {
+			maxConversationsMemory = DEFAULT_MAX_CONVERSATIONS_MEMORY;
+		} else if (property.equals(Conf.FLUSH_BATCH_SIZE.toString())) {
+			flushBatchSize = DEFAULT_FLUSH_BATCH_SIZE;
+		} else if (property.equals(Conf.FLUSH_MAX_DELAY.toString())) {
+			flushMaxDelay = DEFAULT_FLUSH_MAX_DELAY;
+		} else if (property.equals(Conf.FLUSH_TARGET_LATENCY.toString())) {
+			flushTargetLatency = DEFAULT_FLUSH_TARGET_LATENCY;
+		} else if (property.equals(Conf.FLUSH_MAX_STATEMENT_BYTES.toString())) {
+			flushMaxStatementBytes = DEFAULT_FLUSH_MAX_STATEMENT_BYTES;
+		} else if (property.equals(Conf.MAX_QUEUED_RECORDS.toString())) {
+			maxQueuedRecords = DEFAULT_MAX_QUEUED_RECORDS;
+		} else if (property.equals(Conf.QUERY_FETCH_SIZE.toString())) {
+			queryFetchSize = DEFAULT_QUERY_FETCH_SIZE;
+		} else if (property.equals(Conf.RETENTION_WINDOW_START.toString())) {
+			retentionWindowStart = DEFAULT_RETENTION_WINDOW_START;
+		} else if (property.equals(Conf.RETENTION_WINDOW_END.toString())) {
+			retentionWindowEnd = DEFAULT_RETENTION_WINDOW_END;
+		} else if (property.equals(Conf.RETENTION_CHUNK_SIZE.toString())) {
+			retentionChunkSize = DEFAULT_RETENTION_CHUNK_SIZE;
+		} else if (property.equals(Conf.RETENTION_CHUNK_DELAY.toString())) {
+			retentionChunkDelay = DEFAULT_RETENTION_CHUNK_DELAY;
 		}
 	}
 
@@ -134,6 +489,102 @@ public class Properties implements PropertyEventListener {
 				log.error(e.getMessage(), e);
 				maxRetrievable = DEFAULT_MAX_RETRIEVABLE * JiveConstants.DAY;
 			}
+		} else if (property.equals(Conf.MAX_CONVERSATIONS.toString())) {
+			String value = (String) params.get("value");
+			try {
+				maxConversations = Integer.parseInt(value);
+			} catch (Exception e) {
+				log.error(e.getMessage(), e);
+				maxConversations = DEFAULT_MAX_CONVERSATIONS;
+			}
+		} else if (property.equals(Conf.MAX_CONVERSATIONS_MEMORY.toString())) {
+			String value = (String) params.get("value");
+			try {
+				maxConversationsMemory = Long.parseLong(value);
+			} catch (Exception e) {
+				log.error(e.getMessage(), e);
+				maxConversationsMemory = DEFAULT_MAX_CONVERSATIONS_MEMORY;
+			}
+		} else if (property.equals(Conf.FLUSH_BATCH_SIZE.toString())) {
+			String value = (String) params.get("value");
+			try {
+				flushBatchSize = Integer.parseInt(value);
+			} catch (Exception e) {
+				log.error(e.getMessage(), e);
+				flushBatchSize = DEFAULT_FLUSH_BATCH_SIZE;
+			}
+		} else if (property.equals(Conf.FLUSH_MAX_DELAY.toString())) {
+			String value = (String) params.get("value");
+			try {
+				flushMaxDelay = Long.parseLong(value);
+			} catch (Exception e) {
+				log.error(e.getMessage(), e);
+				flushMaxDelay = DEFAULT_FLUSH_MAX_DELAY;
+			}
+		} else if (property.equals(Conf.FLUSH_TARGET_LATENCY.toString())) {
+			String value = (String) params.get("value");
+			try {
+				flushTargetLatency = Long.parseLong(value);
+			} catch (Exception e) {
+				log.error(e.getMessage(), e);
+				flushTargetLatency = DEFAULT_FLUSH_TARGET_LATENCY;
+			}
+		} else if (property.equals(Conf.FLUSH_MAX_STATEMENT_BYTES.toString())) {
+			String value = (String) params.get("value");
+			try {
+				flushMaxStatementBytes = Integer.parseInt(value);
+			} catch (Exception e) {
+				log.error(e.getMessage(), e);
+				flushMaxStatementBytes = DEFAULT_FLUSH_MAX_STATEMENT_BYTES;
+			}
+		} else if (property.equals(Conf.MAX_QUEUED_RECORDS.toString())) {
+			String value = (String) params.get("value");
+			try {
+				maxQueuedRecords = Integer.parseInt(value);
+			} catch (Exception e) {
+				log.error(e.getMessage(), e);
+				maxQueuedRecords = DEFAULT_MAX_QUEUED_RECORDS;
+			}
+		} else if (property.equals(Conf.QUERY_FETCH_SIZE.toString())) {
+			String value = (String) params.get("value");
+			try {
+				queryFetchSize = Integer.parseInt(value);
+			} catch (Exception e) {
+				log.error(e.getMessage(), e);
+				queryFetchSize = DEFAULT_QUERY_FETCH_SIZE;
+			}
+		} else if (property.equals(Conf.RETENTION_WINDOW_START.toString())) {
+			String value = (String) params.get("value");
+			try {
+				retentionWindowStart = Integer.parseInt(value);
+			} catch (Exception e) {
+				log.error(e.getMessage(), e);
+				retentionWindowStart = DEFAULT_RETENTION_WINDOW_START;
+			}
+		} else if (property.equals(Conf.RETENTION_WINDOW_END.toString())) {
+			String value = (String) params.get("value");
+			try {
+				retentionWindowEnd = Integer.parseInt(value);
+			} catch (Exception e) {
+				log.error(e.getMessage(), e);
+				retentionWindowEnd = DEFAULT_RETENTION_WINDOW_END;
+			}
+		} else if (property.equals(Conf.RETENTION_CHUNK_SIZE.toString())) {
+			String value = (String) params.get("value");
+			try {
+				retentionChunkSize = Integer.parseInt(value);
+			} catch (Exception e) {
+				log.error(e.getMessage(), e);
+				retentionChunkSize = DEFAULT_RETENTION_CHUNK_SIZE;
+			}
+		} else if (property.equals(Conf.RETENTION_CHUNK_DELAY.toString())) {
+			String value = (String) params.get("value");
+			try {
+				retentionChunkDelay = Long.parseLong(value);
+			} catch (Exception e) {
+				log.error(e.getMessage(), e);
+				retentionChunkDelay = DEFAULT_RETENTION_CHUNK_DELAY;
+			}
 		}
 	}
 
@@ -154,6 +605,38 @@ public class Properties implements PropertyEventListener {
 		REDIS_TIMEOUT("i7.redis.timeout"),
 		IDLE_TIME("i7.archiving.idle.time"),
 		MAX_MESSAGES("i7.archiving.max.messages"),
+		LOCK_STRIPES("i7.archiving.lock.stripes"),
+		MAX_CONVERSATIONS("i7.archiving.max.conversations"),
+		MAX_CONVERSATIONS_MEMORY("i7.archiving.max.conversations.memory"),
+		INGEST_SHARDS("i7.archiving.ingest.shards"),
+		INGEST_SHARD_CAPACITY("i7.archiving.ingest.shard.capacity"),
+		INGEST_OFFER_TIMEOUT("i7.archiving.ingest.offer.timeout"),
+		FLUSH_BATCH_SIZE("i7.archiving.flush.batch.size"),
+		FLUSH_MAX_DELAY("i7.archiving.flush.max.delay"),
+		FLUSH_TARGET_LATENCY("i7.archiving.flush.target.latency"),
+		FLUSH_WRITERS("i7.archiving.flush.writers"),
+		FLUSH_MAX_STATEMENT_BYTES("i7.archiving.flush.max.statement.bytes"),
+		WAL_ENABLED("i7.archiving.wal.enabled"),
+		PARTITIONING_ENABLED("i7.archiving.partitioning.enabled"),
+		PARTITIONS_AHEAD("i7.archiving.partitions.ahead"),
+		WAL_SEGMENT_SIZE("i7.archiving.wal.segment.size"),
+		WAL_SYNC_INTERVAL("i7.archiving.wal.sync.interval"),
+		MAX_QUEUED_RECORDS("i7.archiving.max.queued"),
+		SPILL_FILE_SIZE("i7.archiving.spill.file.size"),
+		RECENT_MESSAGES("i7.archiving.recent.messages"),
+		RECENT_MESSAGES_MEMORY("i7.archiving.recent.messages.memory"),
+		QUERY_FETCH_SIZE("i7.archiving.query.fetch.size"),
+		QUERY_THREADS("i7.archiving.query.threads"),
+		QUERY_QUEUE_SIZE("i7.archiving.query.queue.size"),
+		QUERY_MAX_PER_USER("i7.archiving.query.max.per.user"),
+		QUERY_QUEUE_TIMEOUT("i7.archiving.query.queue.timeout"),
+		RETENTION_WINDOW_START("i7.archiving.retention.window.start"),
+		RETENTION_WINDOW_END("i7.archiving.retention.window.end"),
+		RETENTION_CHUNK_SIZE("i7.archiving.retention.chunk.size"),
+		RETENTION_CHUNK_DELAY("i7.archiving.retention.chunk.delay"),
+		RETENTION_CHECKPOINT("i7.archiving.retention.checkpoint"),
+		LOOKUP_CACHE_SIZE("i7.archiving.lookup.cache.size"),
+		LOOKUP_CACHE_TTL("i7.archiving.lookup.cache.ttl"),
 		REDIS_MAX_REDIRECTS("i7.redis.max.redirects"),
 		MAX_RETRIEVABLE("i7.archiving.max.retrievable"),
 		HOT_CHATTER_ENABLED("i7.archiving.hot.chatter.enabled");
@@ -0,0 +1,105 @@
+package com.i7.openfire.archive.database;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.jivesoftware.util.JiveConstants;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.i7.openfire.archive.model.ArchivedMessage;
+
+/**
+ * Counts of the archived messages of each conversation by period of time,
+ * kept in <tt>ofMessageBucket</tt> so that the number of messages of a date
+ * range can be told without scanning them.
+ *
+ * Counts are incremented in the transaction inserting the messages, by the
+ * number of messages it actually inserted: messages already stored, written
+ * again after being replayed from the write-ahead log, are not counted.
+ */
+public class MessageBuckets {
+
+	/**
+	 * Period of time covered by a bucket. Buckets already written depend on
+	 * it, it must not change.
+	 */
+	public static final long WIDTH = JiveConstants.HOUR;
+
+	private MessageBuckets() {
+	}
+
+	/**
+	 * Returns the start of the bucket holding a point in time.
+	 *
+	 * @param time
+	 *            time in milliseconds.
+	 * @return the start of the bucket.
+	 */
+	public static long start(long time) {
+		return time - Math.floorMod(time, WIDTH);
+	}
+
+	/**
+	 * Counts messages by conversation and bucket.
+	 *
+	 * @param messages
+	 *            the messages.
+	 * @return the buckets the messages fall in, with the number of messages
+	 *         of each.
+	 */
+	public static List<Bucket> count(Collection<ArchivedMessage> messages) {
+		Map<Bucket, Bucket> buckets = Maps.newLinkedHashMap();
+		for (ArchivedMessage message : messages) {
+			Bucket key = new Bucket(message.getConversationID(), start(message.getCreatedAt()));
+			Bucket bucket = buckets.get(key);
+			if (bucket == null) {
+				bucket = key;
+				buckets.put(key, bucket);
+			}
+			bucket.messageCount++;
+		}
+		return Lists.newArrayList(buckets.values());
+	}
+
+	/**
+	 * The messages of a conversation in a period of time.
+	 */
+	public static class Bucket {
+		private final String conversationID;
+		private final long start;
+		private int messageCount;
+
+		Bucket(String conversationID, long start) {
+			this.conversationID = conversationID;
+			this.start = start;
+		}
+
+		public String getConversationID() {
+			return conversationID;
+		}
+
+		public long getStart() {
+			return start;
+		}
+
+		public int getMessageCount() {
+			return messageCount;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Bucket)) {
+				return false;
+			}
+			Bucket other = (Bucket) obj;
+			return start == other.start && conversationID.equals(other.conversationID);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * conversationID.hashCode() + Long.hashCode(start);
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package com.i7.openfire.archive.database;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Layout of the partitions of <tt>ofMessage</tt> when it is partitioned by
+ * range of <tt>createdAt</tt>: a partition per calendar month, in UTC, named
+ * after it, plus a last partition with no upper bound that is kept empty.
+ *
+ * A month starts at an hour, so each of the {@link MessageBuckets} lies in a
+ * single partition.
+ */
+public class MessagePartitions {
+
+	/**
+	 * Name of the partition with no upper bound.
+	 */
+	public static final String LAST = "pmax";
+
+	private static final DateTimeFormatter NAME = DateTimeFormatter.ofPattern("'p'yyyyMM");
+
+	private MessagePartitions() {
+	}
+
+	/**
+	 * Returns the start of the partition holding a point in time.
+	 *
+	 * @param time
+	 *            time in milliseconds.
+	 * @return the start of the partition.
+	 */
+	public static long start(long time) {
+		LocalDate date = Instant.ofEpochMilli(time).atOffset(ZoneOffset.UTC).toLocalDate().withDayOfMonth(1);
+		return toMillis(date);
+	}
+
+	/**
+	 * Returns the start of the partition following the one starting at a
+	 * point in time, which is its upper bound.
+	 *
+	 * @param start
+	 *            start of a partition.
+	 * @return the start of the next partition.
+	 */
+	public static long next(long start) {
+		return toMillis(toDate(start).plusMonths(1));
+	}
+
+	/**
+	 * Returns the name of the partition starting at a point in time.
+	 *
+	 * @param start
+	 *            start of the partition.
+	 * @return the name of the partition.
+	 */
+	public static String name(long start) {
+		return NAME.format(toDate(start));
+	}
+
+	private static LocalDate toDate(long time) {
+		return Instant.ofEpochMilli(time).atOffset(ZoneOffset.UTC).toLocalDate();
+	}
+
+	private static long toMillis(LocalDate date) {
+		return date.atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+	}
+}
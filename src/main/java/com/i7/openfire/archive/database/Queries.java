@@ -6,6 +6,7 @@ public class Queries {
 	public static final String INSERT_MESSAGE = "INSERT INTO ofMessage(id, conversationID, fromJID, toJID, statusCode, body, createdAt, updatedAt) VALUES (?,?,?,?,?,?,?,?)";
 
 	public static final String LOAD_CONVERSATION = "SELECT participantOneJID, participantTwoJID, createdAt, updatedAt, messageCount FROM ofConversation WHERE id=?";
+	public static final String LOAD_CONVERSATIONS = "SELECT id, participantOneJID, participantTwoJID, createdAt, updatedAt, messageCount FROM ofConversation WHERE id IN ";
 	public static final String LOAD_MESSAGE = "SELECT fromJID, toJID, statusCode, createdAt, updatedAt, body FROM ofMessage WHERE id=?";
 
 	public static final String UPDATE_CONVERSATION = "UPDATE ofConversation SET updatedAt=?, messageCount=? WHERE id=?";
@@ -14,14 +15,28 @@ public class Queries {
 	public static final String CONVERSATION_COUNT = "SELECT COUNT(*) FROM ofConversation";
 	public static final String MESSAGE_COUNT = "SELECT COUNT(*) FROM ofMessage";
 
-	public static final String DELETE_CONVERSATION = "DELETE FROM ofMessage WHERE conversationID=?";
-	public static final String DELETE_CONVERSATION_2 = "DELETE FROM ofConversation WHERE id=?";
 	
 	public static final String SEARCH_CONVERSATIONS = "SELECT id FROM ofConversation WHERE participantOneJID=? OR participantTwoJID=? ORDER BY updatedAt LIMIT ?, ?";
 	public static final String SEARCH_CONVERSATION = "SELECT id FROM ofConversation WHERE (participantOneJID=? AND participantTwoJID=?) OR (participantOneJID=? AND participantTwoJID=?)";
 
-	public static final String SEARCH_MESSAGES = "SELECT id, conversationID, fromJID, toJID, statusCode, createdAt, updatedAt, body FROM ofMessage WHERE conversationID=? ORDER BY createdAt LIMIT ?, ?";
+	public static final String SEARCH_MESSAGES = "SELECT id, conversationID, fromJID, toJID, statusCode, createdAt, updatedAt, body FROM ofMessage WHERE conversationID=?";
+	public static final String MESSAGE_EXISTS = "SELECT 1 FROM ofMessage WHERE conversationID=?";
 	public static final String SEARCH_MESSAGES_LAST = "SELECT id, conversationID, fromJID, toJID, statusCode, createdAt, updatedAt, body FROM ofMessage WHERE (fromJID=? OR toJID=?) AND createdAt > ? AND createdAt <= ? GROUP BY conversationID ORDER BY createdAt LIMIT ?";
 
-	public static final String COUNT_MESSAGES = "SELECT COUNT FROM ofMessage WHERE conversationID=?";
+	public static final String SEARCH_EXPIRED_MESSAGES = "SELECT id, conversationID, createdAt FROM ofMessage WHERE createdAt >= ? AND createdAt < ? ORDER BY createdAt";
+	public static final String SEARCH_EXPIRED_CONVERSATIONS = "SELECT id, updatedAt FROM ofConversation WHERE updatedAt < ? AND (updatedAt > ? OR (updatedAt = ? AND id > ?)) ORDER BY updatedAt, id";
+	public static final String DELETE_MESSAGES = "DELETE FROM ofMessage WHERE id IN ";
+	public static final String DELETE_CONVERSATIONS = "DELETE FROM ofConversation WHERE id IN ";
+	public static final String DELETE_CONVERSATIONS_BUCKETS = "DELETE FROM ofMessageBucket WHERE conversationID IN ";
+	public static final String DELETE_EXPIRED_BUCKETS = "DELETE FROM ofMessageBucket WHERE conversationID=? AND bucketStart < ?";
+	public static final String SEARCH_MESSAGE_PARTITIONS = "SELECT PARTITION_NAME, PARTITION_DESCRIPTION FROM INFORMATION_SCHEMA.PARTITIONS WHERE TABLE_SCHEMA=DATABASE() AND LOWER(TABLE_NAME)='ofmessage' AND PARTITION_NAME IS NOT NULL ORDER BY PARTITION_ORDINAL_POSITION";
+	public static final String ADD_MESSAGE_PARTITIONS = "ALTER TABLE ofMessage ADD PARTITION ";
+	public static final String REORGANIZE_MESSAGE_PARTITION = "ALTER TABLE ofMessage REORGANIZE PARTITION ";
+	public static final String DROP_MESSAGE_PARTITION = "ALTER TABLE ofMessage DROP PARTITION ";
+	public static final String SUM_EXPIRED_BUCKETS = "SELECT conversationID, SUM(messageCount) FROM ofMessageBucket WHERE bucketStart < ? GROUP BY conversationID";
+	public static final String DELETE_BUCKETS_BEFORE = "DELETE FROM ofMessageBucket WHERE bucketStart < ? LIMIT ?";
+	public static final String DECREMENT_CONVERSATION = "UPDATE ofConversation SET messageCount=CASE WHEN messageCount > ? THEN messageCount - ? ELSE 0 END WHERE id=?";
+
+	public static final String COUNT_MESSAGES = "SELECT COUNT(*) FROM ofMessage WHERE conversationID=?";
+	public static final String SUM_MESSAGE_BUCKETS = "SELECT SUM(messageCount) FROM ofMessageBucket WHERE conversationID=?";
 }
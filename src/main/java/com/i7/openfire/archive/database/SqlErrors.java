@@ -0,0 +1,70 @@
+package com.i7.openfire.archive.database;
+
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+
+/**
+ * Classifies the errors of the write path by SQLState.
+ *
+ * <ul>
+ * <li>Transient errors (connection exceptions, class 08; transaction
+ * rollbacks such as deadlocks, class 40; lock wait timeouts) may succeed if
+ * the statement is retried.</li>
+ * <li>Systemic errors (syntax errors and access rule violations, class 42;
+ * invalid authorization, class 28; unsupported features, class 0A) fail
+ * whatever the rows are.</li>
+ * <li>Data exceptions (class 22) and integrity constraint violations (class
+ * 23) are caused by the rows written.</li>
+ * </ul>
+ *
+ * Errors of any other class, or without a SQLState, are not known to be caused
+ * by the rows and are handled as failures of the whole write.
+ */
+public class SqlErrors {
+
+	/**
+	 * MySQL error code of a lock wait timeout, reported with the general
+	 * SQLState HY000.
+	 */
+	private static final int MYSQL_LOCK_WAIT_TIMEOUT = 1205;
+
+	private SqlErrors() {
+	}
+
+	public static boolean isTransient(SQLException e) {
+		for (SQLException error = e; error != null; error = error.getNextException()) {
+			if (error instanceof SQLTransientException || error instanceof SQLRecoverableException
+					|| hasClass(error, "08") || hasClass(error, "40")
+					|| error.getErrorCode() == MYSQL_LOCK_WAIT_TIMEOUT) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public static boolean isSystemic(SQLException e) {
+		return hasClass(e, "42") || hasClass(e, "28") || hasClass(e, "0A");
+	}
+
+	/**
+	 * Returns true if the error is caused by the rows written, so that
+	 * writing the rows apart isolates the offending ones.
+	 */
+	public static boolean isDataError(SQLException e) {
+		if (isTransient(e) || isSystemic(e)) {
+			return false;
+		}
+		for (SQLException error = e; error != null; error = error.getNextException()) {
+			if (hasClass(error, "22") || hasClass(error, "23")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean hasClass(SQLException e, String sqlStateClass) {
+		String state = e.getSQLState();
+		return state != null && state.startsWith(sqlStateClass);
+	}
+}
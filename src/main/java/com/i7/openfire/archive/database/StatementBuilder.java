@@ -0,0 +1,277 @@
+package com.i7.openfire.archive.database;
+
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+import org.jivesoftware.database.DbConnectionManager.DatabaseType;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Builds the statements of the write path for the database in use: multi-row
+ * inserts, sized so that a statement stays within the packet limit of the
+ * driver, and native conversation upserts.
+ *
+ * Databases without multi-row inserts get single-row statements, to be sent
+ * in JDBC batches. Databases without a native upsert get no upsert statement
+ * and conversations have to be written with an update followed by an insert of
+ * the missing rows.
+ *
+ * Message inserts skip messages that are already stored where the database
+ * allows it, since queued messages may be written more than once after being
+ * replayed from the write-ahead log.
+ */
+public class StatementBuilder {
+
+	private static final String MESSAGE_COLUMNS = "ofMessage(id, conversationID, fromJID, toJID, statusCode, body, createdAt, updatedAt)";
+	private static final String CONVERSATION_COLUMNS = "ofConversation(id, participantOneJID, participantTwoJID, createdAt, updatedAt, messageCount)";
+	private static final String BUCKET_COLUMNS = "ofMessageBucket(conversationID, bucketStart, messageCount)";
+
+	public static final int MESSAGE_PARAMETERS = 8;
+	public static final int CONVERSATION_PARAMETERS = 6;
+	public static final int BUCKET_PARAMETERS = 3;
+
+	public static final String INSERT_CONVERSATION = "INSERT INTO " + CONVERSATION_COLUMNS + " VALUES (?,?,?,?,?,?)";
+	public static final String INSERT_BUCKET = "INSERT INTO " + BUCKET_COLUMNS + " VALUES (?,?,?)";
+	public static final String INCREMENT_BUCKET = "UPDATE ofMessageBucket SET messageCount=messageCount+? WHERE conversationID=? AND bucketStart=?";
+
+	/**
+	 * Estimated bytes of a row besides its values: placeholders, separators
+	 * and the numeric columns.
+	 */
+	private static final int ROW_OVERHEAD = 96;
+
+	private final DatabaseType databaseType;
+	private final int maxStatementBytes;
+	private final int maxRows;
+	private final int maxParameters;
+
+	/**
+	 * @param databaseType
+	 *            type of the database in use.
+	 * @param maxStatementBytes
+	 *            maximum estimated size of a statement in bytes.
+	 */
+	public StatementBuilder(DatabaseType databaseType, int maxStatementBytes) {
+		this.databaseType = databaseType;
+		this.maxStatementBytes = maxStatementBytes;
+		switch (databaseType) {
+		case mysql:
+			maxRows = Integer.MAX_VALUE;
+			maxParameters = 65535;
+			break;
+		case postgresql:
+			maxRows = Integer.MAX_VALUE;
+			maxParameters = 32767;
+			break;
+		case sqlserver:
+			maxRows = 1000;
+			maxParameters = 2100;
+			break;
+		case hsqldb:
+		case db2:
+			maxRows = Integer.MAX_VALUE;
+			maxParameters = 32767;
+			break;
+		default:
+			if (isH2()) {
+				maxRows = Integer.MAX_VALUE;
+				maxParameters = 32767;
+			} else {
+				// Oracle and Interbase have no multi-row VALUES.
+				maxRows = 1;
+				maxParameters = Integer.MAX_VALUE;
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Returns true if several rows can be inserted with a single statement.
+	 *
+	 * @return true if multi-row inserts are supported.
+	 */
+	public boolean isMultiRowSupported() {
+		return maxRows > 1;
+	}
+
+	/**
+	 * Returns true if conversations can be upserted with a single statement.
+	 *
+	 * @return true if a native upsert is supported.
+	 */
+	public boolean isUpsertSupported() {
+		return databaseType == DatabaseType.mysql || databaseType == DatabaseType.postgresql || isH2();
+	}
+
+	/**
+	 * Returns true if message buckets can be incremented, or inserted if they
+	 * do not exist, with a single statement.
+	 *
+	 * @return true if a native incrementing upsert is supported.
+	 */
+	public boolean isBucketUpsertSupported() {
+		return databaseType == DatabaseType.mysql || databaseType == DatabaseType.postgresql;
+	}
+
+	/**
+	 * Splits rows in chunks that fit in a single statement.
+	 *
+	 * @param rows
+	 *            the rows to write.
+	 * @param parametersPerRow
+	 *            number of parameters bound for each row.
+	 * @param valueBytes
+	 *            estimated size in bytes of the values of a row.
+	 * @return the chunks, each holding at least one row.
+	 */
+	public <T> List<List<T>> chunk(List<T> rows, int parametersPerRow, ToIntFunction<T> valueBytes) {
+		List<List<T>> chunks = Lists.newArrayList();
+		int rowLimit = Math.max(1, Math.min(maxRows, maxParameters / parametersPerRow));
+		List<T> chunk = Lists.newArrayList();
+		long bytes = 0;
+		for (T row : rows) {
+			long rowBytes = ROW_OVERHEAD + (long) valueBytes.applyAsInt(row);
+			if (!chunk.isEmpty() && (chunk.size() >= rowLimit || bytes + rowBytes > maxStatementBytes)) {
+				chunks.add(chunk);
+				chunk = Lists.newArrayList();
+				bytes = 0;
+			}
+			chunk.add(row);
+			bytes += rowBytes;
+		}
+		if (!chunk.isEmpty()) {
+			chunks.add(chunk);
+		}
+		return chunks;
+	}
+
+	/**
+	 * Returns the statement inserting a number of messages.
+	 *
+	 * @param rows
+	 *            number of messages.
+	 * @return the insert statement.
+	 */
+	public String insertMessages(int rows) {
+		String values = values(rows, MESSAGE_PARAMETERS);
+		switch (databaseType) {
+		case mysql:
+			return "INSERT INTO " + MESSAGE_COLUMNS + " VALUES " + values + " ON DUPLICATE KEY UPDATE id=id";
+		case postgresql:
+			return "INSERT INTO " + MESSAGE_COLUMNS + " VALUES " + values + " ON CONFLICT (id) DO NOTHING";
+		default:
+			if (isH2()) {
+				return "MERGE INTO " + MESSAGE_COLUMNS + " KEY(id) VALUES " + values;
+			}
+			return "INSERT INTO " + MESSAGE_COLUMNS + " VALUES " + values;
+		}
+	}
+
+	/**
+	 * Returns true if the statements of {@link #insertMessages(int)} skip the
+	 * messages already stored instead of failing. The rows they inserted are
+	 * not told apart by their update count.
+	 *
+	 * @return true if message inserts skip stored messages.
+	 */
+	public boolean isDuplicateSkipped() {
+		return databaseType == DatabaseType.mysql || databaseType == DatabaseType.postgresql || isH2();
+	}
+
+	/**
+	 * Returns the query selecting which of a number of message IDs are stored.
+	 *
+	 * @param rows
+	 *            number of message IDs.
+	 * @return the select statement.
+	 */
+	public String selectMessageIds(int rows) {
+		StringBuilder sql = new StringBuilder("SELECT id FROM ofMessage WHERE id IN (?");
+		for (int i = 1; i < rows; i++) {
+			sql.append(",?");
+		}
+		return sql.append(')').toString();
+	}
+
+	/**
+	 * Returns the statement inserting or, if they already exist, updating a
+	 * number of conversations.
+	 *
+	 * @param rows
+	 *            number of conversations.
+	 * @return the upsert statement.
+	 * @throws UnsupportedOperationException
+	 *             if the database has no native upsert.
+	 */
+	public String upsertConversations(int rows) {
+		String values = values(rows, CONVERSATION_PARAMETERS);
+		switch (databaseType) {
+		case mysql:
+			return "INSERT INTO " + CONVERSATION_COLUMNS + " VALUES " + values
+					+ " ON DUPLICATE KEY UPDATE updatedAt=VALUES(updatedAt), messageCount=VALUES(messageCount)";
+		case postgresql:
+			return "INSERT INTO " + CONVERSATION_COLUMNS + " VALUES " + values
+					+ " ON CONFLICT (id) DO UPDATE SET updatedAt=EXCLUDED.updatedAt, messageCount=EXCLUDED.messageCount";
+		default:
+			if (isH2()) {
+				return "MERGE INTO " + CONVERSATION_COLUMNS + " KEY(id) VALUES " + values;
+			}
+			throw new UnsupportedOperationException("No conversation upsert for " + databaseType);
+		}
+	}
+
+	/**
+	 * Returns the statement adding to the message count of a number of
+	 * buckets, inserting the ones that do not exist.
+	 *
+	 * @param rows
+	 *            number of buckets.
+	 * @return the upsert statement.
+	 * @throws UnsupportedOperationException
+	 *             if the database has no native incrementing upsert.
+	 */
+	public String upsertBuckets(int rows) {
+		String values = values(rows, BUCKET_PARAMETERS);
+		switch (databaseType) {
+		case mysql:
+			return "INSERT INTO " + BUCKET_COLUMNS + " VALUES " + values
+					+ " ON DUPLICATE KEY UPDATE messageCount=messageCount+VALUES(messageCount)";
+		case postgresql:
+			return "INSERT INTO " + BUCKET_COLUMNS + " VALUES " + values
+					+ " ON CONFLICT (conversationID, bucketStart) DO UPDATE SET messageCount=ofMessageBucket.messageCount+EXCLUDED.messageCount";
+		default:
+			throw new UnsupportedOperationException("No message bucket upsert for " + databaseType);
+		}
+	}
+
+	/**
+	 * Estimated size in bytes of a string value, assuming the worst case of
+	 * its encoding and escaping.
+	 */
+	public static int bytes(String value) {
+		return value == null ? 4 : 4 * value.length();
+	}
+
+	private boolean isH2() {
+		// Only recent Openfire versions know about H2.
+		return "h2".equals(databaseType.name());
+	}
+
+	private static String values(int rows, int parameters) {
+		StringBuilder row = new StringBuilder("(?");
+		for (int i = 1; i < parameters; i++) {
+			row.append(",?");
+		}
+		row.append(')');
+
+		StringBuilder values = new StringBuilder(rows * (row.length() + 1));
+		for (int i = 0; i < rows; i++) {
+			if (i > 0) {
+				values.append(',');
+			}
+			values.append(row);
+		}
+		return values.toString();
+	}
+}
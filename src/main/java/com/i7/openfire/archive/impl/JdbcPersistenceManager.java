@@ -4,22 +4,34 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
 import org.jivesoftware.database.CachedPreparedStatement;
 import org.jivesoftware.database.DbConnectionManager;
+import org.jivesoftware.database.DbConnectionManager.DatabaseType;
+import org.jivesoftware.util.NotFoundException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmpp.packet.JID;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.i7.openfire.archive.ConversationManager;
 import com.i7.openfire.archive.PersistenceManager;
 import com.i7.openfire.archive.config.Properties;
+import com.i7.openfire.archive.database.MessageBuckets;
+import com.i7.openfire.archive.database.MessagePartitions;
 import com.i7.openfire.archive.database.Queries;
 import com.i7.openfire.archive.enums.MessageStatus;
 import com.i7.openfire.archive.model.ArchivedMessage;
+import com.i7.openfire.archive.model.Conversation;
+import com.i7.openfire.archive.plugin.ArchivingPlugin;
+import com.i7.openfire.archive.xep.xep0059.ResultSetCursor;
 import com.i7.openfire.archive.xep.xep0059.XmppResultSet;
 
 /**
@@ -108,135 +120,362 @@ public class JdbcPersistenceManager implements PersistenceManager {
 
 	@Override
 	public List<ArchivedMessage> getMessages(String conversationId, Date startDate, Date endDate, XmppResultSet xmppResultSet) {
-		int limit = 0, offset = 0;
 		List<ArchivedMessage> messages = Lists.newArrayList();
-		
-		if (conversationId != null) {
-			if (xmppResultSet != null) {
-				limit = xmppResultSet.getMax() != null ? xmppResultSet.getMax() : Properties.getInstance().getMaxMessages();
-				int count = countMessages(conversationId, startDate, endDate);
-				boolean reverse = false;
-
-				xmppResultSet.setCount(count);
-				if (xmppResultSet.getIndex() != null) {
-					offset = xmppResultSet.getIndex();
-				} else if (xmppResultSet.getAfter() != null) {
-					offset = countMessagesBefore(conversationId, startDate, endDate, xmppResultSet.getAfter());
-					offset += 1;
-				} else if (xmppResultSet.getBefore() != null) {
-					int messagesBeforeCount = countMessagesBefore(conversationId, startDate, endDate,
-							xmppResultSet.getBefore());
-					offset = messagesBeforeCount;
-					offset -= limit;
-
-					// Reduce result limit to number of results before (if less than
-					// a page remaining)
-					if (messagesBeforeCount < limit) {
-						limit = messagesBeforeCount;
-					}
-
-					reverse = true;
-					if (offset < 0) {
-						offset = 0;
-					}
-				}
-				xmppResultSet.setFirstIndex(offset);
+		streamMessages(conversationId, startDate, endDate, xmppResultSet, messages::add);
+		return messages;
+	}
 
-				if (isLastPage(offset, count, limit, reverse)) {
-					xmppResultSet.setComplete(true);
+	/**
+	 * Pages are read with keyset queries on the (conversationID, createdAt)
+	 * index: a page seeks to the position given by the RSM <tt>after</tt> or
+	 * <tt>before</tt> UID and reads the next rows in (createdAt, id) order, so
+	 * its cost does not depend on how deep in the conversation it is. Only
+	 * pages requested by index are read with an offset. Pages before a
+	 * position are read backwards in a subquery and returned in archive order.
+	 *
+	 * Rows are read from a forward-only result set and handed to the consumer
+	 * as they are read. Messages queued and not written to the database yet
+	 * are merged into the pages as they come, so a client finds the messages
+	 * it just sent. They are taken before reading the database: a message
+	 * written in between is then found twice rather than not at all, and the
+	 * copies are merged by ID.
+	 */
+	@Override
+	public int streamMessages(String conversationId, Date startDate, Date endDate, XmppResultSet xmppResultSet,
+			Consumer<ArchivedMessage> consumer) {
+		if (conversationId == null) {
+			return 0;
+		}
+
+		int limit = Properties.getInstance().getMaxMessages();
+		if (xmppResultSet != null && xmppResultSet.getMax() != null) {
+			limit = xmppResultSet.getMax();
+		}
+
+		// Without a date range, the conversation bounds the partitions read
+		// and holds the message count. It is looked up once, as on other
+		// cluster members each lookup is a cluster task.
+		Conversation conversation = null;
+		if (startDate == null && (Properties.getInstance().isPartitioningEnabled()
+				|| (xmppResultSet != null && limit != 0 && endDate == null))) {
+			conversation = findConversation(conversationId);
+		}
+
+		Integer index = null;
+		ResultSetCursor after = null;
+		ResultSetCursor before = null;
+		if (xmppResultSet != null) {
+			xmppResultSet.setCount(limit == 0 ? countMessages(conversationId, startDate, endDate)
+					: estimateMessages(conversation, conversationId, startDate, endDate));
+			index = xmppResultSet.getIndex();
+			after = xmppResultSet.getAfter();
+			before = xmppResultSet.getBefore();
+		}
+		if (index != null) {
+			after = null;
+		}
+		boolean reverse = index == null && after == null && before != null;
+		List<ArchivedMessage> unwritten = index == null
+				? getUnwritten(conversationId, startDate, endDate, after, reverse ? before : null)
+				: Collections.<ArchivedMessage> emptyList();
+
+		// Without a start date, bound the rows by the creation of the
+		// conversation so that older partitions are not read.
+		Date queryStart = startDate != null ? startDate : getPartitionStart(conversation);
+
+		Page page = new Page(consumer, limit);
+		Connection con = null;
+		PreparedStatement pstmt = null;
+		ResultSet rs = null;
+		try {
+			con = DbConnectionManager.getConnection();
+			if (!reverse) {
+				pstmt = prepareStreaming(con, pageQuery(Queries.SEARCH_MESSAGES, queryStart, endDate, after, false)
+						+ (index != null ? " LIMIT ? OFFSET ?" : " LIMIT ?"));
+				int parameterIndex = bindPageQuery(pstmt, conversationId, queryStart, endDate, after);
+				// One more row than the page tells whether it is the last one.
+				pstmt.setInt(parameterIndex++, limit + 1);
+				if (index != null) {
+					pstmt.setInt(parameterIndex, index);
+				}
+				rs = pstmt.executeQuery();
+				mergeRows(rs, unwritten, page);
+			} else if (unwritten.isEmpty()) {
+				pstmt = prepareStreaming(con, "SELECT * FROM ("
+						+ pageQuery(Queries.SEARCH_MESSAGES, queryStart, endDate, before, true)
+						+ " LIMIT ?) page ORDER BY createdAt, id");
+				int parameterIndex = bindPageQuery(pstmt, conversationId, queryStart, endDate, before);
+				pstmt.setInt(parameterIndex, limit);
+				rs = pstmt.executeQuery();
+				while (rs.next()) {
+					page.add(readMessage(rs));
+				}
+				DbConnectionManager.closeStatement(rs, pstmt);
+				rs = null;
+				pstmt = null;
+				page.more = page.first != null
+						&& existsBefore(con, conversationId, queryStart, endDate, ResultSetCursor.of(page.first));
+			} else {
+				// Where the page starts depends on how the unwritten messages
+				// fall between the rows, it is read whole.
+				pstmt = prepareStreaming(con, pageQuery(Queries.SEARCH_MESSAGES, queryStart, endDate, before, true)
+						+ " LIMIT ?");
+				int parameterIndex = bindPageQuery(pstmt, conversationId, queryStart, endDate, before);
+				pstmt.setInt(parameterIndex, limit + 1);
+				rs = pstmt.executeQuery();
+				List<ArchivedMessage> rows = Lists.newArrayList();
+				while (rs.next() && rows.size() <= limit) {
+					rows.add(readMessage(rs));
 				}
+				rows = mergeUnwritten(rows, unwritten);
+				page.more = rows.size() > limit;
+				for (ArchivedMessage message : Lists.reverse(rows.subList(0, Math.min(limit, rows.size())))) {
+					page.add(message);
+				}
+			}
+		} catch (SQLException sqle) {
+			log.error(sqle.getMessage(), sqle);
+		} finally {
+			DbConnectionManager.closeConnection(rs, pstmt, con);
+		}
+
+		if (xmppResultSet != null) {
+			if (page.first != null) {
+				xmppResultSet.setFirst(ResultSetCursor.of(page.first));
+				xmppResultSet.setLast(ResultSetCursor.of(page.last));
+				xmppResultSet.setFirstIndex(index);
 			}
+			xmppResultSet.setComplete(!page.more);
+		}
+		return page.count;
+	}
 
-			CachedPreparedStatement cachedPstmt = new CachedPreparedStatement();
-			cachedPstmt.setSQL(Queries.SEARCH_MESSAGES);
-			cachedPstmt.addString(conversationId);
-			cachedPstmt.addInt(limit);
-			cachedPstmt.addInt(offset);
-
-			// Get all matching messages from the database.
-			Connection con = null;
-			PreparedStatement pstmt = null;
-			try {
-				con = DbConnectionManager.getConnection();
-				pstmt = DbConnectionManager.createScrollablePreparedStatement(con, cachedPstmt.getSQL());
-				cachedPstmt.setParams(pstmt);
-
-				ResultSet rs = pstmt.executeQuery();
-
-				// Keep reading results until the result set is exhausted or
-				// we come to the end of the block.
-				int count = 0;
-				ArchivedMessage message;
-				while (rs.next() && count < limit) {
-					message = ArchivedMessage.builder().id(rs.getString(1)).conversationID(rs.getString(2))
-							.from(new JID(rs.getString(3))).to(new JID(rs.getString(4)))
-							.status(MessageStatus.findByValue(rs.getInt(5))).createdAt(rs.getLong(6))
-							.updatedAt(rs.getLong(7)).body(rs.getString(8)).build();
-
-					if (message != null)
-						messages.add(message);
+	/**
+	 * Hands the rows of a result set in archive order to a page, merging them
+	 * with unwritten messages, until the page is full.
+	 */
+	private void mergeRows(ResultSet rs, List<ArchivedMessage> unwritten, Page page) throws SQLException {
+		Iterator<ArchivedMessage> pending = unwritten.iterator();
+		ArchivedMessage row = rs.next() ? readMessage(rs) : null;
+		ArchivedMessage queued = pending.hasNext() ? pending.next() : null;
+		while (!page.isFull() && (row != null || queued != null)) {
+			int order = row == null ? 1 : queued == null ? -1 : ArchivedMessage.ARCHIVE_ORDER.compare(row, queued);
+			if (order < 0) {
+				page.add(row);
+				row = rs.next() ? readMessage(rs) : null;
+			} else {
+				if (order == 0) {
+					// The queued copy has the latest status.
+					row = rs.next() ? readMessage(rs) : null;
 				}
-				rs.close();
-			} catch (SQLException sqle) {
-				log.error(sqle.getMessage(), sqle);
-			} finally {
-				DbConnectionManager.closeConnection(pstmt, con);
+				page.add(queued);
+				queued = pending.hasNext() ? pending.next() : null;
 			}
 		}
+		page.more = row != null || queued != null;
+	}
+
+	/**
+	 * Merges unwritten messages into the rows read backwards for a page.
+	 *
+	 * @return the messages, in reverse archive order.
+	 */
+	private List<ArchivedMessage> mergeUnwritten(List<ArchivedMessage> rows, List<ArchivedMessage> unwritten) {
+		Map<String, ArchivedMessage> merged = Maps.newHashMap();
+		for (ArchivedMessage row : rows) {
+			merged.put(row.getId(), row);
+		}
+		for (ArchivedMessage message : unwritten) {
+			// The queued copy has the latest status.
+			merged.put(message.getId(), message);
+		}
+		List<ArchivedMessage> messages = Lists.newArrayList(merged.values());
+		messages.sort(ArchivedMessage.ARCHIVE_ORDER.reversed());
 		return messages;
 	}
 
-	private Integer countMessages(String conversationId, Date startDate, Date endDate) {
-		StringBuilder querySB = new StringBuilder(Queries.COUNT_MESSAGES);
+	/**
+	 * Returns a conversation, or <tt>null</tt> if it is not known.
+	 */
+	private Conversation findConversation(String conversationId) {
+		try {
+			return ArchivingPlugin.getInstance().getConversationManager().getConversation(conversationId);
+		} catch (NotFoundException e) {
+			return null;
+		}
+	}
 
-		if (startDate != null) {
-			querySB.append(" AND createdAt >= ?");
+	/**
+	 * Returns the start of the partition of <tt>ofMessage</tt> the first
+	 * message of a conversation falls in, or <tt>null</tt> if the table is not
+	 * partitioned or the conversation is not known. The whole partition is
+	 * kept, in case messages were stamped before the conversation.
+	 */
+	private Date getPartitionStart(Conversation conversation) {
+		if (!Properties.getInstance().isPartitioningEnabled() || conversation == null) {
+			return null;
 		}
-		if (endDate != null) {
-			querySB.append(" AND createdAt <= ?");
+		return new Date(MessagePartitions.start(conversation.getCreatedAt()));
+	}
+
+	/**
+	 * Returns the messages of a conversation not written to the database yet
+	 * that belong to a page.
+	 */
+	private List<ArchivedMessage> getUnwritten(String conversationId, Date startDate, Date endDate,
+			ResultSetCursor after, ResultSetCursor before) {
+		List<ArchivedMessage> messages = Lists.newArrayList();
+		for (ArchivedMessage message : ArchivingPlugin.getInstance().getConversationManager().getPendingMessages()
+				.getUnwritten(conversationId)) {
+			if ((startDate == null || message.getCreatedAt() >= startDate.getTime())
+					&& (endDate == null || message.getCreatedAt() <= endDate.getTime())
+					&& (after == null || after.compareTo(message) > 0)
+					&& (before == null || before.compareTo(message) < 0)) {
+				messages.add(message);
+			}
+		}
+		return messages;
+	}
+
+	private boolean existsBefore(Connection con, String conversationId, Date startDate, Date endDate,
+			ResultSetCursor cursor) throws SQLException {
+		PreparedStatement pstmt = null;
+		ResultSet rs = null;
+		try {
+			pstmt = con.prepareStatement(pageQuery(Queries.MESSAGE_EXISTS, startDate, endDate, cursor, true)
+					+ " LIMIT 1");
+			bindPageQuery(pstmt, conversationId, startDate, endDate, cursor);
+			rs = pstmt.executeQuery();
+			return rs.next();
+		} finally {
+			DbConnectionManager.closeStatement(rs, pstmt);
+		}
+	}
+
+	/**
+	 * Returns the query of the messages of a conversation in a date range,
+	 * from a position on in archive order or, if descending, backwards from
+	 * it.
+	 */
+	private String pageQuery(String select, Date startDate, Date endDate, ResultSetCursor cursor,
+			boolean descending) {
+		StringBuilder querySB = new StringBuilder(select);
+		appendDateFilters(querySB, startDate, endDate);
+		if (cursor != null) {
+			appendSeek(querySB, cursor, descending ? "<" : ">");
+		}
+		querySB.append(descending ? " ORDER BY createdAt DESC, id DESC" : " ORDER BY createdAt, id");
+		return querySB.toString();
+	}
+
+	private int bindPageQuery(PreparedStatement pstmt, String conversationId, Date startDate, Date endDate,
+			ResultSetCursor cursor) throws SQLException {
+		int parameterIndex = bindMessageParameters(conversationId, startDate, endDate, pstmt);
+		if (cursor != null) {
+			parameterIndex = bindSeek(pstmt, parameterIndex, cursor);
+		}
+		return parameterIndex;
+	}
+
+	/**
+	 * Prepares a statement whose rows are read once, in order, and fetched
+	 * from the database a few at a time.
+	 */
+	private PreparedStatement prepareStreaming(Connection con, String sql) throws SQLException {
+		PreparedStatement pstmt = con.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		if (DbConnectionManager.getDatabaseType() == DatabaseType.mysql) {
+			// The MySQL driver only streams rows with this fetch size.
+			pstmt.setFetchSize(Integer.MIN_VALUE);
+		} else {
+			DbConnectionManager.setFetchSize(pstmt, Properties.getInstance().getQueryFetchSize());
+		}
+		return pstmt;
+	}
+
+	/**
+	 * Returns the number of messages of a conversation without scanning them:
+	 * the message count of the conversation if the range is not bounded, or
+	 * else the counts of the {@link MessageBuckets} covered by the range plus
+	 * the messages of the partly covered buckets at its ends. Clients asking
+	 * for the count alone, with a page size of 0, get the exact count.
+	 *
+	 * @param conversation
+	 *            the conversation, looked up by the caller if the range is not
+	 *            bounded, or <tt>null</tt> if it is not known.
+	 */
+	private Integer estimateMessages(Conversation conversation, String conversationId, Date startDate,
+			Date endDate) {
+		if (startDate == null && endDate == null) {
+			if (conversation != null) {
+				return conversation.getMessageCount();
+			}
+			return countMessages(conversationId, startDate, endDate);
+		}
+
+		// Bounds of the buckets fully covered by the range.
+		long firstBucket = startDate == null ? Long.MIN_VALUE
+				: MessageBuckets.start(startDate.getTime() + MessageBuckets.WIDTH - 1);
+		long endBucket = endDate == null ? Long.MAX_VALUE : MessageBuckets.start(endDate.getTime() + 1);
+		if (firstBucket >= endBucket) {
+			// The range lies within two buckets, counting is cheap.
+			return countMessages(conversationId, startDate, endDate);
+		}
+
+		int count = sumMessageBuckets(conversationId, startDate == null ? null : firstBucket,
+				endDate == null ? null : endBucket);
+		if (startDate != null && startDate.getTime() < firstBucket) {
+			count += countMessages(conversationId, startDate, new Date(firstBucket - 1));
+		}
+		if (endDate != null && endBucket <= endDate.getTime()) {
+			count += countMessages(conversationId, new Date(endBucket), endDate);
+		}
+		return count;
+	}
+
+	private int sumMessageBuckets(String conversationId, Long firstBucket, Long endBucket) {
+		StringBuilder querySB = new StringBuilder(Queries.SUM_MESSAGE_BUCKETS);
+		if (firstBucket != null) {
+			querySB.append(" AND bucketStart >= ?");
+		}
+		if (endBucket != null) {
+			querySB.append(" AND bucketStart < ?");
 		}
 
 		Connection con = null;
 		PreparedStatement pstmt = null;
 		ResultSet rs = null;
 		try {
+			int parameterIndex = 1;
 			con = DbConnectionManager.getConnection();
 			pstmt = con.prepareStatement(querySB.toString());
-			bindMessageParameters(conversationId, startDate, endDate, pstmt);
-			rs = pstmt.executeQuery();
-			if (rs.next()) {
-				return rs.getInt(1);
-			} else {
-				return 0;
+			pstmt.setString(parameterIndex++, conversationId);
+			if (firstBucket != null) {
+				pstmt.setLong(parameterIndex++, firstBucket);
 			}
+			if (endBucket != null) {
+				pstmt.setLong(parameterIndex++, endBucket);
+			}
+			rs = pstmt.executeQuery();
+			return rs.next() ? rs.getInt(1) : 0;
 		} catch (SQLException sqle) {
-			log.error("Error counting conversations", sqle);
+			log.error("Error counting messages", sqle);
 			return 0;
 		} finally {
 			DbConnectionManager.closeConnection(rs, pstmt, con);
 		}
 	}
 
-	private Integer countMessagesBefore(String conversationId, Date startDate, Date endDate, Long before) {
+	private Integer countMessages(String conversationId, Date startDate, Date endDate) {
 		StringBuilder querySB = new StringBuilder(Queries.COUNT_MESSAGES);
-
-		if (startDate != null) {
-			querySB.append(" AND createdAt >= ?");
-		}
-		if (endDate != null) {
-			querySB.append(" AND createdAt <= ?");
-		}
-		querySB.append(" AND createdAt < ?");
+		appendDateFilters(querySB, startDate, endDate);
 
 		Connection con = null;
 		PreparedStatement pstmt = null;
 		ResultSet rs = null;
 		try {
-			int parameterIndex;
 			con = DbConnectionManager.getConnection();
 			pstmt = con.prepareStatement(querySB.toString());
-			parameterIndex = bindMessageParameters(conversationId, startDate, endDate, pstmt);
-			pstmt.setLong(parameterIndex, before);
+			bindMessageParameters(conversationId, startDate, endDate, pstmt);
 			rs = pstmt.executeQuery();
 			if (rs.next()) {
 				return rs.getInt(1);
@@ -251,6 +490,75 @@ public class JdbcPersistenceManager implements PersistenceManager {
 		}
 	}
 
+	private void appendDateFilters(StringBuilder querySB, Date startDate, Date endDate) {
+		if (startDate != null) {
+			querySB.append(" AND createdAt >= ?");
+		}
+		if (endDate != null) {
+			querySB.append(" AND createdAt <= ?");
+		}
+	}
+
+	/**
+	 * Appends the condition of the rows past a position, in the direction of
+	 * the operator. The bound on createdAt alone keeps it a range scan of the
+	 * index on every database.
+	 */
+	private void appendSeek(StringBuilder querySB, ResultSetCursor cursor, String operator) {
+		if (cursor.getId() == null) {
+			querySB.append(" AND createdAt ").append(operator).append(" ?");
+		} else {
+			querySB.append(" AND createdAt ").append(operator).append("= ? AND (createdAt ").append(operator)
+					.append(" ? OR id ").append(operator).append(" ?)");
+		}
+	}
+
+	private int bindSeek(PreparedStatement pstmt, int parameterIndex, ResultSetCursor cursor) throws SQLException {
+		pstmt.setLong(parameterIndex++, cursor.getCreatedAt());
+		if (cursor.getId() != null) {
+			pstmt.setLong(parameterIndex++, cursor.getCreatedAt());
+			pstmt.setString(parameterIndex++, cursor.getId());
+		}
+		return parameterIndex;
+	}
+
+	/**
+	 * A page of messages being handed to a consumer.
+	 */
+	private static class Page {
+		private final Consumer<ArchivedMessage> consumer;
+		private final int limit;
+		private int count;
+		private ArchivedMessage first;
+		private ArchivedMessage last;
+		private boolean more;
+
+		Page(Consumer<ArchivedMessage> consumer, int limit) {
+			this.consumer = consumer;
+			this.limit = limit;
+		}
+
+		boolean isFull() {
+			return count >= limit;
+		}
+
+		void add(ArchivedMessage message) {
+			if (first == null) {
+				first = message;
+			}
+			last = message;
+			count++;
+			consumer.accept(message);
+		}
+	}
+
+	private ArchivedMessage readMessage(ResultSet rs) throws SQLException {
+		return ArchivedMessage.builder().id(rs.getString(1)).conversationID(rs.getString(2))
+				.from(new JID(rs.getString(3))).to(new JID(rs.getString(4)))
+				.status(MessageStatus.findByValue(rs.getInt(5))).createdAt(rs.getLong(6))
+				.updatedAt(rs.getLong(7)).body(rs.getString(8)).build();
+	}
+
 	private int bindMessageParameters(String conversationId, Date startDate, Date endDate, PreparedStatement pstmt)
 			throws SQLException {
 
@@ -269,32 +577,4 @@ public class JdbcPersistenceManager implements PersistenceManager {
 	private Long dateToMillis(Date date) {
 		return date == null ? null : date.getTime();
 	}
-
-	/**
-	 * Determines whether a result page is the last of a set.
-	 *
-	 * @param firstItemIndex
-	 *            index (in whole set) of first item in page.
-	 * @param resultCount
-	 *            total number of results in set.
-	 * @param pageSize
-	 *            number of results in a page.
-	 * @param reverse
-	 *            whether paging is being performed in reverse (back to front)
-	 * @return whether results are from last page.
-	 */
-	private boolean isLastPage(int firstItemIndex, int resultCount, int pageSize, boolean reverse) {
-		if (reverse) {
-			// Index of first item in last page always 0 when reverse
-			if (firstItemIndex == 0) {
-				return true;
-			}
-		} else {
-			if ((firstItemIndex + pageSize) >= resultCount) {
-				return true;
-			}
-		}
-
-		return false;
-	}
 }
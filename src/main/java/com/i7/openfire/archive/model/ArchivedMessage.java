@@ -1,12 +1,21 @@
 package com.i7.openfire.archive.model;
 
+import java.util.Comparator;
+
 import org.xmpp.packet.JID;
 
 import com.i7.openfire.archive.enums.MessageStatus;
 import com.i7.openfire.archive.model.builders.ArchivedMessageBuilder;
+import com.i7.openfire.archive.wal.WriteAheadLog;
 
 public class ArchivedMessage {
 
+	/**
+	 * Order of the messages in the archive: by creation time, then by ID.
+	 */
+	public static final Comparator<ArchivedMessage> ARCHIVE_ORDER = Comparator
+			.comparingLong(ArchivedMessage::getCreatedAt).thenComparing(ArchivedMessage::getId);
+
 	private JID to;
 	private JID from;
 	private String body;
@@ -17,6 +26,12 @@ public class ArchivedMessage {
 	private long updatedAt;
 	private String conversationID;
 
+	/**
+	 * Write-ahead log segment referenced by the message while it is waiting to
+	 * be written, see {@link com.i7.openfire.archive.wal.WriteAheadLog}.
+	 */
+	private transient long walSegment = WriteAheadLog.NO_SEGMENT;
+
 	public ArchivedMessage(String id, JID to, JID from, String body, long createdAt, long updatedAt,
 			String conversationID, MessageStatus status) {
 
@@ -62,6 +77,26 @@ public class ArchivedMessage {
 		return status;
 	}
 
+	public long getWalSegment() {
+		return walSegment;
+	}
+
+	public void setWalSegment(long walSegment) {
+		this.walSegment = walSegment;
+	}
+
+	/**
+	 * Applies a status update received while the message was pending to be
+	 * stored. The status never goes back: updates to a lower status than the
+	 * current one are ignored.
+	 */
+	public void updateStatus(MessageStatus status, long updatedAt) {
+		if (status.getValue() >= this.status.getValue()) {
+			this.status = status;
+			this.updatedAt = Math.max(this.updatedAt, updatedAt);
+		}
+	}
+
 	public static ArchivedMessageBuilder builder() {
 		return new ArchivedMessageBuilder();
 	}
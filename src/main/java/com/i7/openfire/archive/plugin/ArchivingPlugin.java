@@ -27,6 +27,7 @@ public class ArchivingPlugin implements Plugin {
 	private boolean shuttingDown = false;
 
 	private ArchiveSearcher archiveSearcher;
+	private ConversationManager conversationManager;
 	private PersistenceManager persistenceManager;
 	private ArchiveInterceptor archiveInterceptor;
 	private PropertyEventListener propertyListener;
@@ -59,11 +60,12 @@ public class ArchivingPlugin implements Plugin {
 			dir.mkdirs();
 		}
 
-		ConversationManager conversationManager = new ConversationManager(TaskEngine.getInstance());
+		conversationManager = new ConversationManager(TaskEngine.getInstance());
 
 		archiveSearcher = new ArchiveSearcher(conversationManager);
 		archiveInterceptor = new ArchiveInterceptor(conversationManager);
 
+		conversationManager.start();
 		archiveSearcher.start();
 		archiveInterceptor.start();
 	}
@@ -76,8 +78,12 @@ public class ArchivingPlugin implements Plugin {
 		PropertyEventDispatcher.removeListener(propertyListener);
 		propertyListener = null;
 
-		archiveSearcher.stop();
+		// Stop receiving packets first, then let the conversation manager
+		// process and archive what is still pending.
 		archiveInterceptor.stop();
+		conversationManager.stop();
+		archiveSearcher.stop();
+		conversationManager = null;
 		
 		instance = null;
 	}
@@ -90,6 +96,10 @@ public class ArchivingPlugin implements Plugin {
 		return shuttingDown;
 	}
 
+	public ConversationManager getConversationManager() {
+		return conversationManager;
+	}
+
 	public ArchiveSearcher getArchiveSearcher() {
 		return archiveSearcher;
 	}
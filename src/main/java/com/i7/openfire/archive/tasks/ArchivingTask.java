@@ -2,159 +2,661 @@ package com.i7.openfire.archive.tasks;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
-import java.util.Queue;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
 import org.jivesoftware.database.DbConnectionManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.i7.openfire.archive.DirtyConversationSet;
+import com.i7.openfire.archive.DirtyConversationSet.Mark;
+import com.i7.openfire.archive.PendingMessageQueue;
+import com.i7.openfire.archive.config.Properties;
+import com.i7.openfire.archive.database.MessageBuckets;
+import com.i7.openfire.archive.database.MessageBuckets.Bucket;
 import com.i7.openfire.archive.database.Queries;
+import com.i7.openfire.archive.database.SqlErrors;
+import com.i7.openfire.archive.database.StatementBuilder;
 import com.i7.openfire.archive.model.ArchivedMessage;
 import com.i7.openfire.archive.model.Conversation;
+import com.i7.openfire.archive.wal.DeadLetterLog;
+import com.i7.openfire.archive.wal.WalRecord;
+import com.i7.openfire.archive.wal.WriteAheadLog;
 
 /**
  * A task that persists conversation meta-data and messages to the database.
+ *
+ * The pending work is partitioned by conversation ID and each partition is
+ * written by its own writer, on its own connection. Everything belonging to a
+ * conversation lands in the same partition, where it is written in order: new
+ * and changed conversations, messages along with the message counts of
+ * {@link MessageBuckets}, and message status updates.
+ *
+ * Conversations are upserted and messages inserted with multi-row statements
+ * where the database supports them, see {@link StatementBuilder}. Rows the
+ * database refuses are isolated and sent to the dead letter log, so they do not
+ * take the rest of their chunk down with them.
+ *
+ * The write-ahead log records of the rows written, or sent to the dead letter
+ * log, are released once their partition is done. The rows of a failed
+ * partition that were not written are queued again, to be retried by the next
+ * task.
  */
 public class ArchivingTask implements Runnable {
 	private static final Logger log = LoggerFactory.getLogger(ArchivingTask.class);
 
-	private static boolean archivingRunning = false;
+	/**
+	 * Only batch up to this many items at a time.
+	 */
+	private static final int BATCH_SIZE = 500;
 
-	private Queue<ArchivedMessage> messageQueue;
-	private Queue<Conversation> conversationQueue;
-	private Queue<ArchivedMessage> messageUpdatedQueue;
-	private Queue<Conversation> conversationUpdatedQueue;
+	/**
+	 * Times a chunk failing with a transient error is retried, waiting twice
+	 * as long before each retry.
+	 */
+	private static final int MAX_RETRIES = 5;
+	private static final long RETRY_BACKOFF = 200;
 
-	public ArchivingTask(Queue<ArchivedMessage> messageQueue, Queue<Conversation> conversationQueue,
-			Queue<ArchivedMessage> messageUpdatedQueue, Queue<Conversation> conversationUpdatedQueue) {
+	private static final AtomicLong retries = new AtomicLong();
+	private static final AtomicLong bisections = new AtomicLong();
+
+	/**
+	 * Tasks must not overlap, or a later status update could be written before
+	 * the message it updates.
+	 */
+	private static final AtomicBoolean archivingRunning = new AtomicBoolean();
+
+	private PendingMessageQueue messageQueue;
+	private DirtyConversationSet dirtyConversations;
+	private WriteAheadLog writeAheadLog;
+	private int maxMessages;
+	private int insertedMessages;
+	private boolean committed;
+	private StatementBuilder statements;
+	private DeadLetterLog deadLetters;
+	private Partition[] partitions;
+	private ExecutorService writers;
+
+	/**
+	 * @param writeAheadLog
+	 *            log releasing the records written.
+	 * @param deadLetters
+	 *            log receiving the rows refused by the database.
+	 * @param maxMessages
+	 *            maximum number of messages inserted by this task, 0 for no
+	 *            limit.
+	 * @param writers
+	 *            executor running the writers of the partitions, if
+	 *            <tt>null</tt> the partitions are written by the calling
+	 *            thread.
+	 * @param partitionCount
+	 *            number of partitions the work is split into.
+	 */
+	public ArchivingTask(PendingMessageQueue messageQueue, DirtyConversationSet dirtyConversations,
+			WriteAheadLog writeAheadLog, DeadLetterLog deadLetters, int maxMessages, ExecutorService writers,
+			int partitionCount) {
 
 		this.messageQueue = messageQueue;
-		this.conversationQueue = conversationQueue;
-		this.messageUpdatedQueue = messageUpdatedQueue;
-		this.conversationUpdatedQueue = conversationUpdatedQueue;
+		this.dirtyConversations = dirtyConversations;
+		this.writeAheadLog = writeAheadLog;
+		this.deadLetters = deadLetters;
+		this.maxMessages = maxMessages;
+		this.writers = writers;
+		this.statements = new StatementBuilder(DbConnectionManager.getDatabaseType(),
+				Properties.getInstance().getFlushMaxStatementBytes());
+		this.partitions = new Partition[Math.max(1, partitionCount)];
+	}
+
+	/**
+	 * Returns the number of messages inserted by the last run of this task.
+	 *
+	 * @return the number of inserted messages.
+	 */
+	public int getInsertedMessages() {
+		return insertedMessages;
+	}
+
+	/**
+	 * Returns the number of chunks retried after a transient error.
+	 *
+	 * @return the number of retries.
+	 */
+	public static long getRetries() {
+		return retries.get();
+	}
+
+	/**
+	 * Returns the number of chunks split to isolate offending rows.
+	 *
+	 * @return the number of bisections.
+	 */
+	public static long getBisections() {
+		return bisections.get();
+	}
+
+	/**
+	 * Returns true if the last run of this task committed everything it took
+	 * from the queues to the database.
+	 *
+	 * @return true if every partition was written.
+	 */
+	public boolean isCommitted() {
+		return committed;
 	}
 
 	@Override
 	public void run() {
-		synchronized (this) {
-			if (archivingRunning) {
-				return;
+		if (!archivingRunning.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			if (!messageQueue.isEmpty() || !dirtyConversations.isEmpty()) {
+				collect();
+				committed = write();
+			} else {
+				committed = true;
 			}
-			archivingRunning = true;
+		} finally {
+			// Set archiving running back to false.
+			archivingRunning.set(false);
+		}
+	}
+
+	private void collect() {
+		int count = 0;
+		ArchivedMessage message;
+		while ((maxMessages == 0 || count < maxMessages) && (message = messageQueue.poll()) != null) {
+			partition(message.getConversationID()).messages.add(message);
+			count++;
+		}
+
+		for (Mark dirty : dirtyConversations.drain()) {
+			String id = dirty.getConversation().getId();
+			partition(id).conversations.put(id, dirty);
 		}
 
-		if (!messageQueue.isEmpty() || !messageUpdatedQueue.isEmpty() || !conversationUpdatedQueue.isEmpty()) {
-			Connection con = null;
-			PreparedStatement pstmt = null;
+		// Status updates of messages that were still queued have already been
+		// applied to them, only the remaining ones are written.
+		for (ArchivedMessage update : messageQueue.drainStatusUpdates()) {
+			partition(update.getConversationID()).statusUpdates.add(update);
+		}
+	}
+
+	private boolean write() {
+		List<Future<?>> futures = Lists.newArrayListWithCapacity(partitions.length);
+		for (Partition partition : partitions) {
+			if (partition == null) {
+				continue;
+			}
+			if (writers == null) {
+				partition.run();
+			} else {
+				futures.add(writers.submit(partition));
+			}
+		}
+		for (Future<?> future : futures) {
 			try {
-				con = DbConnectionManager.getConnection();
-
-				int count = 0;
-				Conversation conversation;
-				pstmt = con.prepareStatement(Queries.INSERT_CONVERSATION);
-				while ((conversation = conversationQueue.poll()) != null) {
-					pstmt.setString(1, conversation.getId());
-					pstmt.setString(2, conversation.getParticipantOne());
-					pstmt.setString(3, conversation.getParticipantTwo());
-					pstmt.setLong(4, conversation.getCreatedAt());
-					pstmt.setLong(5, conversation.getUpdatedAt());
-					pstmt.setInt(6, conversation.getMessageCount());
-					if (DbConnectionManager.isBatchUpdatesSupported()) {
-						pstmt.addBatch();
-					} else {
-						pstmt.execute();
-					}
-					// Only batch up to 500 items at a time.
-					if (count % 500 == 0 && DbConnectionManager.isBatchUpdatesSupported()) {
-						pstmt.executeBatch();
-					}
-					count++;
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				log.warn("Interrupted while waiting for the archiving writers");
+				return false;
+			} catch (ExecutionException e) {
+				log.error(e.getMessage(), e);
+				return false;
+			}
+		}
+		boolean written = true;
+		for (Partition partition : partitions) {
+			if (partition != null) {
+				insertedMessages += partition.insertedMessages;
+				written &= !partition.failed;
+			}
+		}
+		return written;
+	}
+
+	private Partition partition(String conversationID) {
+		int hash = conversationID.hashCode();
+		int index = Math.floorMod(hash ^ (hash >>> 16), partitions.length);
+		if (partitions[index] == null) {
+			partitions[index] = new Partition(messageQueue, dirtyConversations, statements, writeAheadLog,
+					deadLetters);
+		}
+		return partitions[index];
+	}
+
+	private static void bindMessage(PreparedStatement pstmt, int index, ArchivedMessage message) throws SQLException {
+		pstmt.setString(index, message.getId());
+		pstmt.setString(index + 1, message.getConversationID());
+		pstmt.setString(index + 2, message.getFrom().toBareJID());
+		pstmt.setString(index + 3, message.getTo().toBareJID());
+		pstmt.setInt(index + 4, message.getStatus().getValue());
+		DbConnectionManager.setLargeTextField(pstmt, index + 5, message.getBody());
+		pstmt.setLong(index + 6, message.getCreatedAt());
+		pstmt.setLong(index + 7, message.getUpdatedAt());
+	}
+
+	private static void bindConversation(PreparedStatement pstmt, int index, Conversation conversation)
+			throws SQLException {
+		pstmt.setString(index, conversation.getId());
+		pstmt.setString(index + 1, conversation.getParticipantOne());
+		pstmt.setString(index + 2, conversation.getParticipantTwo());
+		pstmt.setLong(index + 3, conversation.getCreatedAt());
+		pstmt.setLong(index + 4, conversation.getUpdatedAt());
+		pstmt.setInt(index + 5, conversation.getMessageCount());
+	}
+
+	private static void bindStatusUpdate(PreparedStatement pstmt, int index, ArchivedMessage update)
+			throws SQLException {
+		pstmt.setInt(index, update.getStatus().getValue());
+		pstmt.setLong(index + 1, update.getUpdatedAt());
+		pstmt.setString(index + 2, update.getId());
+	}
+
+	private static void bindBucket(PreparedStatement pstmt, int index, Bucket bucket) throws SQLException {
+		pstmt.setString(index, bucket.getConversationID());
+		pstmt.setLong(index + 1, bucket.getStart());
+		pstmt.setInt(index + 2, bucket.getMessageCount());
+	}
+
+	private static int messageBytes(ArchivedMessage message) {
+		return StatementBuilder.bytes(message.getId()) + StatementBuilder.bytes(message.getConversationID())
+				+ StatementBuilder.bytes(message.getFrom().toBareJID())
+				+ StatementBuilder.bytes(message.getTo().toBareJID()) + StatementBuilder.bytes(message.getBody());
+	}
+
+	private static int conversationBytes(Conversation conversation) {
+		return StatementBuilder.bytes(conversation.getId()) + StatementBuilder.bytes(conversation.getParticipantOne())
+				+ StatementBuilder.bytes(conversation.getParticipantTwo());
+	}
+
+	private interface StatementBinder<T> {
+		void bind(PreparedStatement pstmt, int index, T item) throws SQLException;
+	}
+
+	@VisibleForTesting
+	interface ChunkWriter<T> {
+		void write(List<T> chunk) throws SQLException;
+	}
+
+	/**
+	 * The work of the conversations assigned to a writer.
+	 *
+	 * Rows are written in chunks, each in its own transaction. A chunk failing
+	 * with a transient error is retried with exponential backoff on a new
+	 * connection; if it keeps failing the partition fails. A chunk failing
+	 * because of its rows is split in halves that are written apart, until the
+	 * offending rows are isolated and sent to the dead letter log. Any other
+	 * error fails the partition.
+	 */
+	@VisibleForTesting
+	static class Partition implements Runnable {
+		private final PendingMessageQueue messageQueue;
+		private final DirtyConversationSet dirtyConversations;
+		private final StatementBuilder statements;
+		private final WriteAheadLog writeAheadLog;
+		private final DeadLetterLog deadLetters;
+		private final Map<String, Mark> conversations = Maps.newLinkedHashMap();
+		private final List<ArchivedMessage> messages = Lists.newArrayList();
+		private final List<ArchivedMessage> statusUpdates = Lists.newArrayList();
+		private int insertedMessages;
+		private boolean failed;
+
+		/**
+		 * Rows committed or sent to the dead letter log.
+		 */
+		@VisibleForTesting
+		final Set<Object> written = Sets.newIdentityHashSet();
+
+		@VisibleForTesting
+		Connection con;
+		private final Map<String, PreparedStatement> prepared = Maps.newHashMap();
+
+		Partition(PendingMessageQueue messageQueue, DirtyConversationSet dirtyConversations,
+				StatementBuilder statements, WriteAheadLog writeAheadLog, DeadLetterLog deadLetters) {
+			this.messageQueue = messageQueue;
+			this.dirtyConversations = dirtyConversations;
+			this.statements = statements;
+			this.writeAheadLog = writeAheadLog;
+			this.deadLetters = deadLetters;
+		}
+
+		@Override
+		public void run() {
+			try {
+				con = DbConnectionManager.getTransactionConnection();
+
+				// New and changed conversations are written once, with their
+				// latest state.
+				List<Conversation> rows = Lists.newArrayListWithCapacity(conversations.size());
+				for (Mark mark : conversations.values()) {
+					rows.add(mark.getConversation());
 				}
-				if (DbConnectionManager.isBatchUpdatesSupported()) {
-					pstmt.executeBatch();
+				if (statements.isMultiRowSupported()) {
+					writeChunks(statements.chunk(rows, StatementBuilder.CONVERSATION_PARAMETERS,
+							ArchivingTask::conversationBytes), this::writeConversations, WalRecord::conversation);
+				} else {
+					writeChunks(Lists.partition(rows, BATCH_SIZE), this::writeConversations, WalRecord::conversation);
 				}
-				DbConnectionManager.closeStatement(pstmt);
 
-				count = 0;
-				ArchivedMessage message;
-				pstmt = con.prepareStatement(Queries.INSERT_MESSAGE);
-				while ((message = messageQueue.poll()) != null) {
-					pstmt.setString(1, message.getId());
-					pstmt.setString(2, message.getConversationID());
-					pstmt.setString(3, message.getFrom().toBareJID());
-					pstmt.setString(4, message.getTo().toBareJID());
-					pstmt.setInt(5, message.getStatus().getValue());
-					DbConnectionManager.setLargeTextField(pstmt, 6, message.getBody());
-					pstmt.setString(6, message.getBody());
-					pstmt.setLong(7, message.getCreatedAt());
-					pstmt.setLong(8, message.getUpdatedAt());
-
-					if (DbConnectionManager.isBatchUpdatesSupported()) {
-						pstmt.addBatch();
-					} else {
-						pstmt.execute();
-					}
-					// Only batch up to 500 items at a time.
-					if (count % 500 == 0 && DbConnectionManager.isBatchUpdatesSupported()) {
-						pstmt.executeBatch();
-					}
-					count++;
+				if (statements.isMultiRowSupported()) {
+					writeChunks(statements.chunk(messages, StatementBuilder.MESSAGE_PARAMETERS,
+							ArchivingTask::messageBytes), this::insertMessageRows, WalRecord::message);
+				} else {
+					writeChunks(Lists.partition(messages, BATCH_SIZE), this::insertMessageBatch, WalRecord::message);
 				}
-				if (DbConnectionManager.isBatchUpdatesSupported()) {
-					pstmt.executeBatch();
+
+				writeChunks(Lists.partition(statusUpdates, BATCH_SIZE),
+						chunk -> executeBatch(Queries.UPDATE_MESSAGE, chunk, ArchivingTask::bindStatusUpdate),
+						WalRecord::status);
+			} catch (Exception e) {
+				failed = true;
+				log.error(e.getMessage(), e);
+			} finally {
+				close(failed);
+				finish();
+			}
+		}
+
+		/**
+		 * Releases the write-ahead log records of the rows written and queues
+		 * the other rows again, along with their records.
+		 */
+		private void finish() {
+			for (Mark mark : conversations.values()) {
+				if (written.contains(mark.getConversation())) {
+					writeAheadLog.release(mark.getWalSegment());
+				} else {
+					dirtyConversations.requeue(mark);
 				}
-				DbConnectionManager.closeStatement(pstmt);
+			}
 
-				count = 0;
-				pstmt = con.prepareStatement(Queries.UPDATE_CONVERSATION);
-				while ((conversation = conversationUpdatedQueue.poll()) != null) {
-					pstmt.setLong(1, conversation.getUpdatedAt());
-					pstmt.setInt(2, conversation.getMessageCount());
-					pstmt.setString(3, conversation.getId());
-					if (DbConnectionManager.isBatchUpdatesSupported()) {
-						pstmt.addBatch();
-					} else {
-						pstmt.execute();
-					}
-					// Only batch up to 500 items at a time.
-					if (count % 500 == 0 && DbConnectionManager.isBatchUpdatesSupported()) {
-						pstmt.executeBatch();
-					}
-					count++;
+			List<ArchivedMessage> done = Lists.newArrayListWithCapacity(messages.size());
+			// Dead-lettered messages are accounted for as well.
+			List<ArchivedMessage> failedMessages = Lists.newArrayList();
+			for (ArchivedMessage message : messages) {
+				if (written.contains(message)) {
+					writeAheadLog.release(message.getWalSegment());
+					done.add(message);
+				} else {
+					failedMessages.add(message);
 				}
-				if (DbConnectionManager.isBatchUpdatesSupported()) {
-					pstmt.executeBatch();
+			}
+			List<ArchivedMessage> failedUpdates = Lists.newArrayList();
+			for (ArchivedMessage update : statusUpdates) {
+				if (written.contains(update)) {
+					writeAheadLog.release(update.getWalSegment());
+				} else {
+					failedUpdates.add(update);
 				}
-				DbConnectionManager.closeStatement(pstmt);
+			}
+			if (!failedMessages.isEmpty() || !failedUpdates.isEmpty()) {
+				log.warn("Queuing again {} messages and {} status updates not written", failedMessages.size(),
+						failedUpdates.size());
+				messageQueue.requeue(failedMessages, failedUpdates);
+			}
+			// Readers no longer merge the written messages with the stored
+			// ones, the others are still queued.
+			messageQueue.removeWritten(done);
+			insertedMessages = done.size();
+		}
 
-				count = 0;
-				pstmt = con.prepareStatement(Queries.UPDATE_MESSAGE);
-				while ((message = messageQueue.poll()) != null) {
-					pstmt.setInt(1, message.getStatus().getValue());
-					pstmt.setLong(2, message.getUpdatedAt());
-					pstmt.setString(3, message.getId());
-
-					if (DbConnectionManager.isBatchUpdatesSupported()) {
-						pstmt.addBatch();
-					} else {
-						pstmt.execute();
+		private <T> void writeChunks(List<List<T>> chunks, ChunkWriter<T> writer, Function<T, WalRecord> record)
+				throws SQLException {
+			for (List<T> chunk : chunks) {
+				writeChunk(chunk, writer, record);
+			}
+		}
+
+		/**
+		 * Writes a chunk of rows. Rows refused by the database are sent to
+		 * the dead letter log as the record returned for them, or dropped if
+		 * there is none.
+		 */
+		@VisibleForTesting
+		<T> void writeChunk(List<T> chunk, ChunkWriter<T> writer, Function<T, WalRecord> record)
+				throws SQLException {
+			for (int attempt = 0;; attempt++) {
+				try {
+					writer.write(chunk);
+					con.commit();
+					written.addAll(chunk);
+					return;
+				} catch (SQLException e) {
+					rollback();
+					if (SqlErrors.isTransient(e)) {
+						if (attempt >= MAX_RETRIES) {
+							throw e;
+						}
+						retries.incrementAndGet();
+						log.warn("Transient error writing {} rows, retrying: {}", chunk.size(), e.getMessage());
+						backOff(attempt, e);
+						reconnect();
+						continue;
 					}
-					// Only batch up to 500 items at a time.
-					if (count % 500 == 0 && DbConnectionManager.isBatchUpdatesSupported()) {
-						pstmt.executeBatch();
+					if (!SqlErrors.isDataError(e)) {
+						throw e;
 					}
-					count++;
+					if (chunk.size() == 1) {
+						if (record != null) {
+							deadLetters.add(record.apply(chunk.get(0)), e);
+						} else {
+							log.error("Dropping a row refused by the database: " + e.getMessage(), e);
+						}
+						written.add(chunk.get(0));
+						return;
+					}
+					// Write each half apart to isolate the offending rows.
+					bisections.incrementAndGet();
+					int middle = chunk.size() / 2;
+					writeChunk(chunk.subList(0, middle), writer, record);
+					writeChunk(chunk.subList(middle, chunk.size()), writer, record);
+					return;
+				}
+			}
+		}
+
+		private void writeConversations(List<Conversation> chunk) throws SQLException {
+			if (statements.isUpsertSupported()) {
+				executeRows(statements.upsertConversations(chunk.size()), chunk,
+						StatementBuilder.CONVERSATION_PARAMETERS, ArchivingTask::bindConversation);
+				return;
+			}
+
+			// Update the conversations, then insert the ones that did not exist.
+			List<Conversation> missing = Lists.newArrayList();
+			PreparedStatement pstmt = prepare(Queries.UPDATE_CONVERSATION);
+			for (Conversation conversation : chunk) {
+				pstmt.setLong(1, conversation.getUpdatedAt());
+				pstmt.setInt(2, conversation.getMessageCount());
+				pstmt.setString(3, conversation.getId());
+				if (pstmt.executeUpdate() == 0) {
+					missing.add(conversation);
+				}
+			}
+			executeBatch(StatementBuilder.INSERT_CONVERSATION, missing, ArchivingTask::bindConversation);
+		}
+
+		/**
+		 * Inserts messages with a multi-row statement and counts the ones
+		 * inserted in their buckets, in the same transaction.
+		 */
+		private void insertMessageRows(List<ArchivedMessage> chunk) throws SQLException {
+			// Only the messages not stored yet are inserted.
+			Set<String> stored = statements.isDuplicateSkipped() ? selectStored(chunk) : Collections.emptySet();
+			executeRows(statements.insertMessages(chunk.size()), chunk, StatementBuilder.MESSAGE_PARAMETERS,
+					ArchivingTask::bindMessage);
+			List<ArchivedMessage> inserted = Lists.newArrayListWithCapacity(chunk.size());
+			for (ArchivedMessage message : chunk) {
+				if (!stored.contains(message.getId())) {
+					inserted.add(message);
+				}
+			}
+			writeBuckets(MessageBuckets.count(inserted));
+		}
+
+		/**
+		 * Inserts messages with a single-row statement and counts the ones
+		 * inserted, according to their update counts, in their buckets in the
+		 * same transaction.
+		 */
+		private void insertMessageBatch(List<ArchivedMessage> chunk) throws SQLException {
+			int[] counts = executeBatch(statements.insertMessages(1), chunk, ArchivingTask::bindMessage);
+			List<ArchivedMessage> inserted = Lists.newArrayListWithCapacity(chunk.size());
+			for (int i = 0; i < chunk.size(); i++) {
+				if (counts[i] > 0 || counts[i] == Statement.SUCCESS_NO_INFO) {
+					inserted.add(chunk.get(i));
+				}
+			}
+			writeBuckets(MessageBuckets.count(inserted));
+		}
+
+		/**
+		 * Returns the IDs of the messages of a chunk already stored.
+		 */
+		private Set<String> selectStored(List<ArchivedMessage> chunk) throws SQLException {
+			PreparedStatement pstmt = prepare(statements.selectMessageIds(chunk.size()));
+			for (int i = 0; i < chunk.size(); i++) {
+				pstmt.setString(i + 1, chunk.get(i).getId());
+			}
+			Set<String> stored = Sets.newHashSet();
+			try (ResultSet rs = pstmt.executeQuery()) {
+				while (rs.next()) {
+					stored.add(rs.getString(1));
+				}
+			}
+			return stored;
+		}
+
+		private void writeBuckets(List<Bucket> buckets) throws SQLException {
+			for (List<Bucket> chunk : Lists.partition(buckets, BATCH_SIZE)) {
+				writeBucketChunk(chunk);
+			}
+		}
+
+		private void writeBucketChunk(List<Bucket> chunk) throws SQLException {
+			if (statements.isBucketUpsertSupported()) {
+				executeRows(statements.upsertBuckets(chunk.size()), chunk, StatementBuilder.BUCKET_PARAMETERS,
+						ArchivingTask::bindBucket);
+				return;
+			}
+
+			// Increment the buckets, then insert the ones that did not exist.
+			List<Bucket> missing = Lists.newArrayList();
+			PreparedStatement pstmt = prepare(StatementBuilder.INCREMENT_BUCKET);
+			for (Bucket bucket : chunk) {
+				pstmt.setInt(1, bucket.getMessageCount());
+				pstmt.setString(2, bucket.getConversationID());
+				pstmt.setLong(3, bucket.getStart());
+				if (pstmt.executeUpdate() == 0) {
+					missing.add(bucket);
 				}
+			}
+			executeBatch(StatementBuilder.INSERT_BUCKET, missing, ArchivingTask::bindBucket);
+		}
+
+		/**
+		 * Writes rows with a single multi-row statement.
+		 */
+		private <T> void executeRows(String sql, List<T> rows, int parametersPerRow, StatementBinder<T> binder)
+				throws SQLException {
+			PreparedStatement pstmt = prepare(sql);
+			int index = 1;
+			for (T row : rows) {
+				binder.bind(pstmt, index, row);
+				index += parametersPerRow;
+			}
+			pstmt.executeUpdate();
+		}
+
+		/**
+		 * Writes rows with a single-row statement, in a JDBC batch if supported.
+		 *
+		 * @return the update count of each row.
+		 */
+		private <T> int[] executeBatch(String sql, List<T> rows, StatementBinder<T> binder) throws SQLException {
+			if (rows.isEmpty()) {
+				return new int[0];
+			}
+			PreparedStatement pstmt = prepare(sql);
+			int[] counts = new int[rows.size()];
+			for (int i = 0; i < rows.size(); i++) {
+				binder.bind(pstmt, 1, rows.get(i));
 				if (DbConnectionManager.isBatchUpdatesSupported()) {
-					pstmt.executeBatch();
+					pstmt.addBatch();
+				} else {
+					counts[i] = pstmt.executeUpdate();
 				}
-			} catch (Exception e) {
-				log.error(e.getMessage(), e);
-			} finally {
-				DbConnectionManager.closeConnection(pstmt, con);
+			}
+			if (DbConnectionManager.isBatchUpdatesSupported()) {
+				counts = pstmt.executeBatch();
+			}
+			return counts;
+		}
+
+		/**
+		 * Returns the statement prepared for some SQL on the current
+		 * connection, preparing it if needed.
+		 */
+		private PreparedStatement prepare(String sql) throws SQLException {
+			PreparedStatement pstmt = prepared.get(sql);
+			if (pstmt == null) {
+				pstmt = con.prepareStatement(sql);
+				prepared.put(sql, pstmt);
+			}
+			pstmt.clearParameters();
+			return pstmt;
+		}
+
+		private void rollback() {
+			try {
+				con.rollback();
+			} catch (SQLException e) {
+				// The connection may be broken, it is replaced if retried.
+				log.debug("Rollback failed", e);
+			}
+		}
+
+		private void reconnect() throws SQLException {
+			close(true);
+			con = DbConnectionManager.getTransactionConnection();
+		}
+
+		private void close(boolean abort) {
+			for (PreparedStatement pstmt : prepared.values()) {
+				DbConnectionManager.closeStatement(pstmt);
+			}
+			prepared.clear();
+			if (con != null) {
+				DbConnectionManager.closeTransactionConnection(con, abort);
+				con = null;
+			}
+		}
+
+		private static void backOff(int attempt, SQLException e) throws SQLException {
+			try {
+				Thread.sleep(RETRY_BACKOFF << attempt);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw e;
 			}
 		}
-		// Set archiving running back to false.
-		archivingRunning = false;
 	}
 }
@@ -0,0 +1,263 @@
+package com.i7.openfire.archive.tasks;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.jivesoftware.database.DbConnectionManager;
+import org.jivesoftware.database.DbConnectionManager.DatabaseType;
+import org.jivesoftware.openfire.cluster.ClusterManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.i7.openfire.archive.ConversationManager;
+import com.i7.openfire.archive.config.Properties;
+import com.i7.openfire.archive.database.MessagePartitions;
+import com.i7.openfire.archive.database.Queries;
+
+/**
+ * A task that maintains the monthly partitions of <tt>ofMessage</tt>, when it
+ * is partitioned, see {@link MessagePartitions}.
+ *
+ * The partitions of the next months are created ahead of time, splitting the
+ * last partition while it is still empty. The partitions whose months are all
+ * older than the maximum age are dropped whole, which takes the same time
+ * whatever the number of messages they hold, instead of having their messages
+ * deleted by the {@link RetentionTask}. The message counts of the conversations
+ * are lowered by the counts of the buckets of the dropped months, and the
+ * buckets deleted.
+ *
+ * Partitions are only dropped within the hours of the retention window, and
+ * only by the senior cluster member. Only MySQL is supported.
+ */
+public class PartitionMaintenanceTask extends TimerTask {
+	private static final Logger log = LoggerFactory.getLogger(PartitionMaintenanceTask.class);
+
+	/**
+	 * Only batch up to this many items at a time.
+	 */
+	private static final int BATCH_SIZE = 500;
+
+	private final AtomicBoolean running = new AtomicBoolean();
+	private boolean unsupportedLogged;
+
+	private final ConversationManager conversationManager;
+
+	public PartitionMaintenanceTask(ConversationManager conversationManager) {
+		this.conversationManager = conversationManager;
+	}
+
+	@Override
+	public void run() {
+		Properties properties = Properties.getInstance();
+		if (!properties.isPartitioningEnabled() || !ClusterManager.isSeniorClusterMember()) {
+			return;
+		}
+		if (DbConnectionManager.getDatabaseType() != DatabaseType.mysql) {
+			if (!unsupportedLogged) {
+				log.warn("Partitioning of ofMessage is only supported on MySQL");
+				unsupportedLogged = true;
+			}
+			return;
+		}
+		if (!running.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			List<Partition> partitions = readPartitions();
+			if (partitions.isEmpty()) {
+				if (!unsupportedLogged) {
+					log.warn("Partitioning is enabled but ofMessage is not partitioned, see "
+							+ "database/partitioning/archiving_mysql.sql");
+					unsupportedLogged = true;
+				}
+				return;
+			}
+			createPartitions(partitions, properties.getPartitionsAhead());
+			if (properties.getMaxAge() > 0 && RetentionTask.isInWindow(properties)) {
+				dropPartitions(partitions, System.currentTimeMillis() - properties.getMaxAge());
+			}
+		} catch (Exception e) {
+			log.error(e.getMessage(), e);
+		} finally {
+			running.set(false);
+		}
+	}
+
+	/**
+	 * Creates the partitions missing up to a number of months ahead.
+	 */
+	private void createPartitions(List<Partition> partitions, int monthsAhead) throws SQLException {
+		long horizon = MessagePartitions.next(MessagePartitions.start(System.currentTimeMillis()));
+		for (int i = 0; i < monthsAhead; i++) {
+			horizon = MessagePartitions.next(horizon);
+		}
+
+		Partition last = Iterables.getLast(partitions);
+		Long end = null;
+		for (Partition partition : partitions) {
+			if (partition.bound != null) {
+				end = partition.bound;
+			}
+		}
+		long start = end != null ? end : MessagePartitions.start(System.currentTimeMillis());
+		if (start >= horizon) {
+			return;
+		}
+
+		StringBuilder definitions = new StringBuilder("(");
+		for (; start < horizon; start = MessagePartitions.next(start)) {
+			definitions.append("PARTITION ").append(MessagePartitions.name(start)).append(" VALUES LESS THAN (")
+					.append(MessagePartitions.next(start)).append("), ");
+		}
+		String sql;
+		if (last.bound == null) {
+			// The last partition is kept empty, splitting it moves no row.
+			sql = Queries.REORGANIZE_MESSAGE_PARTITION + last.name + " INTO " + definitions + "PARTITION "
+					+ last.name + " VALUES LESS THAN MAXVALUE)";
+		} else {
+			sql = Queries.ADD_MESSAGE_PARTITIONS + definitions.substring(0, definitions.length() - 2) + ")";
+		}
+		execute(sql);
+		log.info("Created the partitions of ofMessage up to " + new Date(horizon));
+	}
+
+	/**
+	 * Drops the partitions whose messages are all older than the cutoff.
+	 */
+	private void dropPartitions(List<Partition> partitions, long cutoff) throws SQLException {
+		Properties properties = Properties.getInstance();
+		for (Partition partition : partitions) {
+			if (partition.bound == null || partition.bound > cutoff) {
+				break;
+			}
+			Map<String, Integer> counts = sumBuckets(partition.bound);
+			execute(Queries.DROP_MESSAGE_PARTITION + partition.name);
+			log.info("Dropped partition " + partition.name + " of ofMessage, holding messages older than "
+					+ new Date(partition.bound));
+
+			deleteBuckets(counts, partition.bound);
+			conversationManager.messagesDeleted(counts);
+			if (properties.getRetentionCheckpoint() < partition.bound) {
+				properties.setRetentionCheckpoint(partition.bound);
+			}
+		}
+	}
+
+	/**
+	 * Returns the partitions of <tt>ofMessage</tt>, in order, none if it is
+	 * not partitioned.
+	 */
+	private List<Partition> readPartitions() throws SQLException {
+		List<Partition> partitions = Lists.newArrayList();
+		Connection con = null;
+		PreparedStatement pstmt = null;
+		ResultSet rs = null;
+		try {
+			con = DbConnectionManager.getConnection();
+			pstmt = con.prepareStatement(Queries.SEARCH_MESSAGE_PARTITIONS);
+			rs = pstmt.executeQuery();
+			while (rs.next()) {
+				String description = rs.getString(2);
+				partitions.add(new Partition(rs.getString(1),
+						description == null || description.equalsIgnoreCase("MAXVALUE") ? null
+								: Long.valueOf(description.trim())));
+			}
+		} finally {
+			DbConnectionManager.closeConnection(rs, pstmt, con);
+		}
+		return partitions;
+	}
+
+	/**
+	 * Returns the number of messages of each conversation counted by the
+	 * buckets older than a point in time.
+	 */
+	private Map<String, Integer> sumBuckets(long end) throws SQLException {
+		Map<String, Integer> counts = Maps.newHashMap();
+		Connection con = null;
+		PreparedStatement pstmt = null;
+		ResultSet rs = null;
+		try {
+			con = DbConnectionManager.getConnection();
+			pstmt = con.prepareStatement(Queries.SUM_EXPIRED_BUCKETS);
+			pstmt.setLong(1, end);
+			rs = pstmt.executeQuery();
+			while (rs.next()) {
+				counts.put(rs.getString(1), rs.getInt(2));
+			}
+		} finally {
+			DbConnectionManager.closeConnection(rs, pstmt, con);
+		}
+		return counts;
+	}
+
+	/**
+	 * Lowers the message counts of the conversations and deletes the buckets
+	 * older than a point in time.
+	 */
+	private void deleteBuckets(Map<String, Integer> counts, long end) throws SQLException {
+		Connection con = null;
+		PreparedStatement pstmt = null;
+		try {
+			con = DbConnectionManager.getConnection();
+			pstmt = con.prepareStatement(Queries.DECREMENT_CONVERSATION);
+			for (List<Map.Entry<String, Integer>> chunk : Iterables.partition(counts.entrySet(), BATCH_SIZE)) {
+				for (Map.Entry<String, Integer> entry : chunk) {
+					pstmt.setInt(1, entry.getValue());
+					pstmt.setInt(2, entry.getValue());
+					pstmt.setString(3, entry.getKey());
+					pstmt.addBatch();
+				}
+				pstmt.executeBatch();
+			}
+			DbConnectionManager.closeStatement(pstmt);
+
+			pstmt = con.prepareStatement(Queries.DELETE_BUCKETS_BEFORE);
+			pstmt.setLong(1, end);
+			pstmt.setInt(2, BATCH_SIZE);
+			int deleted;
+			do {
+				deleted = pstmt.executeUpdate();
+			} while (deleted >= BATCH_SIZE);
+		} finally {
+			DbConnectionManager.closeConnection(pstmt, con);
+		}
+	}
+
+	private void execute(String sql) throws SQLException {
+		Connection con = null;
+		Statement stmt = null;
+		try {
+			con = DbConnectionManager.getConnection();
+			stmt = con.createStatement();
+			stmt.execute(sql);
+		} finally {
+			DbConnectionManager.closeConnection(stmt, con);
+		}
+	}
+
+	/**
+	 * A partition of <tt>ofMessage</tt> and its upper bound, exclusive,
+	 * <tt>null</tt> for no bound.
+	 */
+	private static class Partition {
+		private final String name;
+		private final Long bound;
+
+		Partition(String name, Long bound) {
+			this.name = name;
+			this.bound = bound;
+		}
+	}
+}
@@ -0,0 +1,307 @@
+package com.i7.openfire.archive.tasks;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalTime;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.jivesoftware.database.DbConnectionManager;
+import org.jivesoftware.openfire.cluster.ClusterManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.i7.openfire.archive.ConversationManager;
+import com.i7.openfire.archive.config.Properties;
+import com.i7.openfire.archive.database.MessageBuckets;
+import com.i7.openfire.archive.database.Queries;
+
+/**
+ * A task that deletes the messages older than the maximum age, and then the
+ * conversations idle for longer than it.
+ *
+ * Expired rows are found through the indexes on their creation and update
+ * times and deleted in chunks, each in its own transaction, waiting between
+ * chunks so the database keeps serving the archiving and the archive queries.
+ * The message counts of the conversations and their buckets are lowered along
+ * with their messages.
+ *
+ * When <tt>ofMessage</tt> is partitioned, expired messages are left to the
+ * {@link PartitionMaintenanceTask}, which drops them a month at a time, and
+ * only the conversations are deleted here.
+ *
+ * The task only runs on the senior cluster member, and only within the
+ * configured hours of the day. The creation time of the last deleted message
+ * is kept as a checkpoint, so that a run stopped by the end of the window or a
+ * restart resumes where it left off without scanning the rows already deleted.
+ * The checkpoint is only persisted when messages are deleted, runs finding
+ * nothing to delete only move it in memory.
+ */
+public class RetentionTask extends TimerTask {
+	private static final Logger log = LoggerFactory.getLogger(RetentionTask.class);
+
+	/**
+	 * Runs must not overlap, a run can outlast the period of the task.
+	 */
+	private final AtomicBoolean running = new AtomicBoolean();
+	private volatile boolean stopped;
+
+	/**
+	 * Messages created before it were all deleted. Ahead of the persisted
+	 * checkpoint when the last runs found nothing to delete.
+	 */
+	private long checkpoint;
+
+	private final ConversationManager conversationManager;
+
+	public RetentionTask(ConversationManager conversationManager) {
+		this.conversationManager = conversationManager;
+	}
+
+	@Override
+	public void run() {
+		Properties properties = Properties.getInstance();
+		if (properties.getMaxAge() <= 0 || !ClusterManager.isSeniorClusterMember() || !isInWindow(properties)) {
+			return;
+		}
+		if (!running.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			long cutoff = System.currentTimeMillis() - properties.getMaxAge();
+			// Partitioned messages are dropped with their partitions.
+			int messages = properties.isPartitioningEnabled() ? 0 : deleteMessages(properties, cutoff);
+			// Conversations are only deleted once their messages are.
+			long conversationCutoff = Math.min(cutoff,
+					Math.max(checkpoint, properties.getRetentionCheckpoint()));
+			int conversations = canContinue(properties) ? deleteConversations(properties, conversationCutoff) : 0;
+			if (messages > 0 || conversations > 0) {
+				log.info("Deleted " + messages + " messages and " + conversations
+						+ " conversations older than " + new Date(cutoff));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			log.error(e.getMessage(), e);
+		} finally {
+			running.set(false);
+		}
+	}
+
+	@Override
+	public boolean cancel() {
+		stopped = true;
+		return super.cancel();
+	}
+
+	/**
+	 * Deletes the expired messages, from the checkpoint on.
+	 *
+	 * @return the number of deleted messages.
+	 */
+	private int deleteMessages(Properties properties, long cutoff) throws SQLException, InterruptedException {
+		long persisted = properties.getRetentionCheckpoint();
+		long deletedUntil = persisted;
+		checkpoint = Math.max(checkpoint, persisted);
+		int deleted = 0;
+		try {
+			while (checkpoint < cutoff && canContinue(properties)) {
+				List<String> ids = Lists.newArrayList();
+				Map<String, Integer> counts = Maps.newHashMap();
+				long last = findExpiredMessages(properties.getRetentionChunkSize(), checkpoint, cutoff, ids, counts);
+				if (ids.isEmpty()) {
+					// Nothing older than the cutoff is left.
+					checkpoint = cutoff;
+					break;
+				}
+				deleteMessages(ids, counts, MessageBuckets.start(cutoff));
+				conversationManager.messagesDeleted(counts);
+				deleted += ids.size();
+				checkpoint = last;
+				deletedUntil = last;
+				pause(properties);
+			}
+		} finally {
+			if (deletedUntil > persisted) {
+				properties.setRetentionCheckpoint(deletedUntil);
+			}
+		}
+		return deleted;
+	}
+
+	/**
+	 * Reads a chunk of the expired messages, oldest first.
+	 *
+	 * @return the creation time of the last message read.
+	 */
+	private long findExpiredMessages(int chunkSize, long checkpoint, long cutoff, List<String> ids,
+			Map<String, Integer> counts) throws SQLException {
+		long last = checkpoint;
+		Connection con = null;
+		PreparedStatement pstmt = null;
+		ResultSet rs = null;
+		try {
+			con = DbConnectionManager.getConnection();
+			pstmt = con.prepareStatement(Queries.SEARCH_EXPIRED_MESSAGES);
+			DbConnectionManager.limitRowsAndFetchSize(pstmt, 0, chunkSize);
+			pstmt.setLong(1, checkpoint);
+			pstmt.setLong(2, cutoff);
+			rs = pstmt.executeQuery();
+			while (rs.next() && ids.size() < chunkSize) {
+				ids.add(rs.getString(1));
+				counts.merge(rs.getString(2), 1, Integer::sum);
+				last = rs.getLong(3);
+			}
+		} finally {
+			DbConnectionManager.closeConnection(rs, pstmt, con);
+		}
+		return last;
+	}
+
+	/**
+	 * Deletes a chunk of messages, lowers the message counts of their
+	 * conversations and deletes the expired buckets of the conversations.
+	 */
+	private void deleteMessages(List<String> ids, Map<String, Integer> counts, long bucketCutoff)
+			throws SQLException {
+		Connection con = null;
+		boolean abort = true;
+		try {
+			con = DbConnectionManager.getTransactionConnection();
+			try (PreparedStatement pstmt = con.prepareStatement(inClause(Queries.DELETE_MESSAGES, ids.size()))) {
+				for (int i = 0; i < ids.size(); i++) {
+					pstmt.setString(i + 1, ids.get(i));
+				}
+				pstmt.executeUpdate();
+			}
+			try (PreparedStatement pstmt = con.prepareStatement(Queries.DECREMENT_CONVERSATION)) {
+				for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+					pstmt.setInt(1, entry.getValue());
+					pstmt.setInt(2, entry.getValue());
+					pstmt.setString(3, entry.getKey());
+					pstmt.addBatch();
+				}
+				pstmt.executeBatch();
+			}
+			try (PreparedStatement pstmt = con.prepareStatement(Queries.DELETE_EXPIRED_BUCKETS)) {
+				for (String conversationId : counts.keySet()) {
+					pstmt.setString(1, conversationId);
+					pstmt.setLong(2, bucketCutoff);
+					pstmt.addBatch();
+				}
+				pstmt.executeBatch();
+			}
+			abort = false;
+		} finally {
+			DbConnectionManager.closeTransactionConnection(con, abort);
+		}
+	}
+
+	/**
+	 * Deletes the conversations not updated since the cutoff, skipping the
+	 * active ones. Their messages were deleted before.
+	 *
+	 * @return the number of deleted conversations.
+	 */
+	private int deleteConversations(Properties properties, long cutoff) throws SQLException, InterruptedException {
+		long lastUpdatedAt = -1;
+		String lastId = "";
+		int deleted = 0;
+		while (canContinue(properties)) {
+			List<String> ids = Lists.newArrayList();
+			int read = 0;
+			Connection con = null;
+			PreparedStatement pstmt = null;
+			ResultSet rs = null;
+			try {
+				con = DbConnectionManager.getConnection();
+				pstmt = con.prepareStatement(Queries.SEARCH_EXPIRED_CONVERSATIONS);
+				DbConnectionManager.limitRowsAndFetchSize(pstmt, 0, properties.getRetentionChunkSize());
+				pstmt.setLong(1, cutoff);
+				pstmt.setLong(2, lastUpdatedAt);
+				pstmt.setLong(3, lastUpdatedAt);
+				pstmt.setString(4, lastId);
+				rs = pstmt.executeQuery();
+				while (rs.next() && read < properties.getRetentionChunkSize()) {
+					read++;
+					lastId = rs.getString(1);
+					lastUpdatedAt = rs.getLong(2);
+					if (!conversationManager.isActive(lastId)) {
+						ids.add(lastId);
+					}
+				}
+			} finally {
+				DbConnectionManager.closeConnection(rs, pstmt, con);
+			}
+			if (!ids.isEmpty()) {
+				deleteConversations(ids);
+				conversationManager.conversationsDeleted(ids);
+				deleted += ids.size();
+			}
+			if (read < properties.getRetentionChunkSize()) {
+				break;
+			}
+			pause(properties);
+		}
+		return deleted;
+	}
+
+	private void deleteConversations(List<String> ids) throws SQLException {
+		Connection con = null;
+		boolean abort = true;
+		try {
+			con = DbConnectionManager.getTransactionConnection();
+			for (String query : new String[] { Queries.DELETE_CONVERSATIONS_BUCKETS, Queries.DELETE_CONVERSATIONS }) {
+				try (PreparedStatement pstmt = con.prepareStatement(inClause(query, ids.size()))) {
+					for (int i = 0; i < ids.size(); i++) {
+						pstmt.setString(i + 1, ids.get(i));
+					}
+					pstmt.executeUpdate();
+				}
+			}
+			abort = false;
+		} finally {
+			DbConnectionManager.closeTransactionConnection(con, abort);
+		}
+	}
+
+	private boolean canContinue(Properties properties) {
+		return !stopped && properties.getMaxAge() > 0 && isInWindow(properties);
+	}
+
+	private void pause(Properties properties) throws InterruptedException {
+		long delay = properties.getRetentionChunkDelay();
+		if (delay > 0) {
+			Thread.sleep(delay);
+		}
+	}
+
+	/**
+	 * Returns true if the current hour is within the retention window. The
+	 * window can wrap around midnight.
+	 */
+	static boolean isInWindow(Properties properties) {
+		int start = properties.getRetentionWindowStart();
+		int end = properties.getRetentionWindowEnd();
+		if (start == end) {
+			return true;
+		}
+		int hour = LocalTime.now().getHour();
+		return start < end ? hour >= start && hour < end : hour >= start || hour < end;
+	}
+
+	private static String inClause(String query, int size) {
+		StringBuilder sql = new StringBuilder(query).append("(?");
+		for (int i = 1; i < size; i++) {
+			sql.append(",?");
+		}
+		return sql.append(')').toString();
+	}
+}
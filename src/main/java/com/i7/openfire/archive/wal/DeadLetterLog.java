@@ -0,0 +1,76 @@
+package com.i7.openfire.archive.wal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the records the database refused to store, so that they are not lost
+ * and can be inspected or written again once the cause is fixed. Records are
+ * appended to a file per day, encoded with {@link WalCodec}, and each of them
+ * is logged along with the database error.
+ */
+public class DeadLetterLog {
+	private static final Logger log = LoggerFactory.getLogger(DeadLetterLog.class);
+
+	private final File directory;
+	private final AtomicLong records = new AtomicLong();
+
+	/**
+	 * @param directory
+	 *            directory holding the dead letter files.
+	 */
+	public DeadLetterLog(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Stores a record refused by the database.
+	 *
+	 * @param record
+	 *            the record.
+	 * @param cause
+	 *            the error returned by the database.
+	 */
+	public synchronized void add(WalRecord record, SQLException cause) {
+		records.incrementAndGet();
+		log.error("Dead-lettering {} {}: [{}] {}", record.getType(), describe(record), cause.getSQLState(),
+				cause.getMessage());
+
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			log.error("Unable to create the dead letter directory {}", directory);
+			return;
+		}
+		String name = "deadletter-" + new SimpleDateFormat("yyyyMMdd").format(new Date()) + ".wal";
+		try (FileOutputStream out = new FileOutputStream(new File(directory, name), true)) {
+			out.write(WalCodec.encode(record));
+			// It may be the only copy left of the record.
+			out.getChannel().force(false);
+		} catch (IOException e) {
+			log.error("Unable to write to the dead letter file " + name, e);
+		}
+	}
+
+	/**
+	 * Returns the number of records refused by the database.
+	 *
+	 * @return the number of dead-lettered records.
+	 */
+	public long getRecords() {
+		return records.get();
+	}
+
+	private static String describe(WalRecord record) {
+		if (record.getType() == WalRecord.Type.CONVERSATION) {
+			return record.getConversation().getId();
+		}
+		return record.getMessage().getId() + " of conversation " + record.getMessage().getConversationID();
+	}
+}
@@ -0,0 +1,366 @@
+package com.i7.openfire.archive.wal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+
+/**
+ * First-in first-out queue of {@link WalRecord}s kept in files on local disk,
+ * used to hold the records that do not fit in memory. Records are encoded with
+ * {@link WalCodec}, preceded by their write-ahead log segment, and written to
+ * a sequence of files of bounded size; files are deleted once read back.
+ *
+ * When the {@link WriteAheadLog} is enabled, spill files are scratch space:
+ * they are cleared on start, as the write-ahead log replays their records. A
+ * record that cannot be read back, along with the rest of its file, is
+ * skipped; it is still in the write-ahead log, which replays it on the next
+ * start. Without the write-ahead log, the files left by a previous run are
+ * recovered on start instead, see {@link #recover(Consumer)}, and a record
+ * that cannot be read back is lost.
+ */
+public class SpillQueue {
+	private static final Logger log = LoggerFactory.getLogger(SpillQueue.class);
+
+	private static final String FILE_PREFIX = "spill-";
+	private static final String FILE_SUFFIX = ".dat";
+
+	private final File directory;
+	private final long fileSize;
+	private final boolean logged;
+
+	/**
+	 * Files written and not completely read, oldest first.
+	 */
+	private final Deque<SpillFile> files = new ArrayDeque<>();
+	private long nextFileId;
+
+	private OutputStream out;
+	private long outSize;
+	private DataInputStream in;
+	private long fileRead;
+
+	private long written;
+	private long read;
+	private final AtomicLong spilledRecords = new AtomicLong();
+	private final AtomicLong spilledBytes = new AtomicLong();
+	private final AtomicLong skippedRecords = new AtomicLong();
+
+	/**
+	 * @param directory
+	 *            directory holding the spill files.
+	 * @param fileSize
+	 *            size in bytes after which a new file is started.
+	 * @param logged
+	 *            whether the spilled records are also kept in the write-ahead
+	 *            log.
+	 */
+	public SpillQueue(File directory, long fileSize, boolean logged) {
+		this.directory = directory;
+		this.fileSize = fileSize;
+		this.logged = logged;
+	}
+
+	/**
+	 * Removes the files left by a previous run.
+	 */
+	public synchronized void clear() {
+		close();
+		for (File file : listFiles()) {
+			if (!file.delete()) {
+				log.warn("Unable to delete spill file {}", file);
+			}
+		}
+		files.clear();
+		written = 0;
+		read = 0;
+	}
+
+	/**
+	 * Hands over the records of the files left by a previous run, oldest
+	 * first, and deletes the files. Records written while recovering, the
+	 * consumer may spill them again, go to new files. A file is read up to its
+	 * first record that cannot be read, such as the one being written when
+	 * the previous run stopped.
+	 *
+	 * @param consumer
+	 *            consumer of the records.
+	 * @return the number of records recovered.
+	 */
+	public synchronized int recover(Consumer<WalRecord> consumer) {
+		close();
+		files.clear();
+		written = 0;
+		read = 0;
+		File[] stale = listFiles();
+		Arrays.sort(stale);
+		for (File file : stale) {
+			nextFileId = Math.max(nextFileId, fileId(file) + 1);
+		}
+		int recovered = 0;
+		for (File file : stale) {
+			try (DataInputStream input = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(file)))) {
+				while (true) {
+					consumer.accept(readRecord(input, file.length()));
+					recovered++;
+				}
+			} catch (EOFException e) {
+				// End of the file, or of the last record written.
+			} catch (IOException e) {
+				log.error("Unable to recover the rest of spill file " + file + ", its records are lost", e);
+			}
+			if (!file.delete()) {
+				log.warn("Unable to delete spill file {}", file);
+			}
+		}
+		if (recovered > 0) {
+			log.info("Recovered {} records spilled to disk by a previous run", recovered);
+		}
+		return recovered;
+	}
+
+	/**
+	 * Adds a record at the tail of the queue.
+	 *
+	 * @param record
+	 *            the record.
+	 * @throws IOException
+	 *             if the record could not be written.
+	 */
+	public synchronized void add(WalRecord record) throws IOException {
+		byte[] frame = WalCodec.encode(record);
+		if (out == null || outSize >= fileSize) {
+			startFile();
+		}
+		ByteBuffer segment = ByteBuffer.allocate(8).putLong(0, record.getSegment());
+		out.write(segment.array());
+		out.write(frame);
+		outSize += 8 + frame.length;
+		files.peekLast().records++;
+		written++;
+		spilledRecords.incrementAndGet();
+		spilledBytes.addAndGet(8 + frame.length);
+	}
+
+	/**
+	 * Removes and returns up to a number of records from the head of the
+	 * queue.
+	 *
+	 * @param max
+	 *            maximum number of records.
+	 * @return the records, oldest first.
+	 * @throws IOException
+	 *             if the records could not be read.
+	 */
+	public synchronized List<WalRecord> poll(int max) throws IOException {
+		List<WalRecord> records = Lists.newArrayList();
+		if (read == written) {
+			return records;
+		}
+		// Everything written has to be readable.
+		out.flush();
+		while (records.size() < max && read < written && !files.isEmpty()) {
+			WalRecord record;
+			try {
+				if (in == null) {
+					in = new DataInputStream(new BufferedInputStream(new FileInputStream(files.peekFirst().file)));
+				}
+				record = readRecord();
+			} catch (IOException e) {
+				// Done with this file, the writer has moved on to a newer one,
+				// or the rest of the file cannot be read.
+				nextFile(e);
+				continue;
+			}
+			records.add(record);
+			read++;
+			fileRead++;
+		}
+		if (read == written || files.isEmpty()) {
+			// Start over from an empty directory.
+			close();
+			for (SpillFile file : files) {
+				if (!file.file.delete()) {
+					log.warn("Unable to delete spill file {}", file.file);
+				}
+			}
+			files.clear();
+			read = written;
+		}
+		return records;
+	}
+
+	/**
+	 * Deletes the file being read and moves on to the next one, skipping the
+	 * records of the file that were not read.
+	 */
+	private void nextFile(IOException cause) {
+		SpillFile file = files.pollFirst();
+		if (in != null) {
+			try {
+				in.close();
+			} catch (IOException e) {
+				log.debug("Unable to close spill file {}", file.file, e);
+			}
+			in = null;
+		}
+		if (files.isEmpty()) {
+			// The file being written is gone as well.
+			close();
+		}
+		long skipped = file.records - fileRead;
+		fileRead = 0;
+		if (skipped > 0) {
+			read += skipped;
+			skippedRecords.addAndGet(skipped);
+			log.error("Skipping " + skipped + " unreadable records of spill file " + file.file
+					+ (logged ? ", they are replayed from the write-ahead log on the next start" : ", they are lost"),
+					cause);
+		}
+		if (!file.file.delete()) {
+			log.warn("Unable to delete spill file {}", file.file);
+		}
+	}
+
+	public synchronized boolean isEmpty() {
+		return read == written;
+	}
+
+	/**
+	 * Returns the number of records waiting in the queue.
+	 *
+	 * @return the number of records on disk.
+	 */
+	public synchronized long size() {
+		return written - read;
+	}
+
+	/**
+	 * Returns the total number of records ever spilled to disk.
+	 *
+	 * @return the number of spilled records.
+	 */
+	public long getSpilledRecords() {
+		return spilledRecords.get();
+	}
+
+	/**
+	 * Returns the total number of bytes ever spilled to disk.
+	 *
+	 * @return the number of spilled bytes.
+	 */
+	public long getSpilledBytes() {
+		return spilledBytes.get();
+	}
+
+	/**
+	 * Returns the total number of records that could not be read back.
+	 *
+	 * @return the number of skipped records.
+	 */
+	public long getSkippedRecords() {
+		return skippedRecords.get();
+	}
+
+	/**
+	 * Returns whether the spilled records are also kept in the write-ahead
+	 * log, so that the ones lost here are replayed on the next start.
+	 *
+	 * @return true if the records are logged.
+	 */
+	public boolean isLogged() {
+		return logged;
+	}
+
+	private WalRecord readRecord() throws IOException {
+		return readRecord(in, files.peekFirst().file.length());
+	}
+
+	private static WalRecord readRecord(DataInputStream input, long fileLength) throws IOException {
+		long segment = input.readLong();
+		int payloadLength = input.readInt();
+		if (payloadLength < 0 || payloadLength > fileLength) {
+			throw new IOException("Corrupt record length " + payloadLength);
+		}
+		byte[] frame = new byte[payloadLength + WalCodec.FRAME_OVERHEAD];
+		ByteBuffer.wrap(frame).putInt(payloadLength);
+		input.readFully(frame, 4, frame.length - 4);
+		WalRecord record = WalCodec.decode(ByteBuffer.wrap(frame));
+		if (record == null) {
+			throw new IOException("Corrupt record");
+		}
+		record.setSegment(segment);
+		return record;
+	}
+
+	private File[] listFiles() {
+		File[] stale = directory.listFiles((dir, name) -> name.startsWith(FILE_PREFIX));
+		return stale != null ? stale : new File[0];
+	}
+
+	private static long fileId(File file) {
+		String name = file.getName();
+		try {
+			return Long.parseLong(name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length()));
+		} catch (NumberFormatException | IndexOutOfBoundsException e) {
+			return -1;
+		}
+	}
+
+	private void startFile() throws IOException {
+		if (out != null) {
+			out.close();
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create spill directory " + directory);
+		}
+		File file = new File(directory, String.format("%s%016d%s", FILE_PREFIX, nextFileId++, FILE_SUFFIX));
+		out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+		outSize = 0;
+		files.addLast(new SpillFile(file));
+	}
+
+	private void close() {
+		try {
+			if (out != null) {
+				out.close();
+			}
+			if (in != null) {
+				in.close();
+			}
+		} catch (IOException e) {
+			log.warn("Unable to close spill file", e);
+		} finally {
+			out = null;
+			in = null;
+			fileRead = 0;
+		}
+	}
+
+	private static class SpillFile {
+		private final File file;
+		private long records;
+
+		SpillFile(File file) {
+			this.file = file;
+		}
+	}
+}
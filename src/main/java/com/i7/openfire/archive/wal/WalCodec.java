@@ -0,0 +1,188 @@
+package com.i7.openfire.archive.wal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+import org.xmpp.packet.JID;
+
+import com.i7.openfire.archive.enums.MessageStatus;
+import com.i7.openfire.archive.model.ArchivedMessage;
+import com.i7.openfire.archive.model.Conversation;
+
+/**
+ * Binary encoding of {@link WalRecord}s. A record is framed as:
+ *
+ * <pre>
+ * int    payload length
+ * byte   record type
+ * byte[] payload
+ * int    CRC32 of the type and the payload
+ * </pre>
+ *
+ * A frame with a length of 0, a truncated frame or a frame failing its
+ * checksum marks the end of the readable records.
+ */
+public class WalCodec {
+
+	/**
+	 * Bytes of a frame besides its payload.
+	 */
+	public static final int FRAME_OVERHEAD = 4 + 1 + 4;
+
+	private WalCodec() {
+	}
+
+	/**
+	 * Encodes a record into a complete frame.
+	 *
+	 * @param record
+	 *            the record.
+	 * @return the frame.
+	 */
+	public static byte[] encode(WalRecord record) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeInt(0);
+			out.writeByte(record.getType().getCode());
+			switch (record.getType()) {
+			case MESSAGE:
+			case STATUS:
+				writeMessage(out, record.getMessage());
+				break;
+			case CONVERSATION:
+				writeConversation(out, record.getConversation());
+				break;
+			}
+			out.writeInt(0);
+		} catch (IOException e) {
+			// Not thrown by in-memory streams.
+			throw new IllegalStateException(e);
+		}
+
+		byte[] frame = bytes.toByteArray();
+		int payloadLength = frame.length - FRAME_OVERHEAD;
+		CRC32 crc = new CRC32();
+		crc.update(frame, 4, payloadLength + 1);
+		ByteBuffer buffer = ByteBuffer.wrap(frame);
+		buffer.putInt(0, payloadLength);
+		buffer.putInt(frame.length - 4, (int) crc.getValue());
+		return frame;
+	}
+
+	/**
+	 * Reads the next frame of a buffer, leaving the buffer positioned after
+	 * it. Returns <tt>null</tt>, with the buffer position undefined, if there
+	 * are no more readable records.
+	 *
+	 * @param buffer
+	 *            the buffer to read from.
+	 * @return the record, or <tt>null</tt> at the end of the records.
+	 */
+	public static WalRecord decode(ByteBuffer buffer) {
+		if (buffer.remaining() < FRAME_OVERHEAD) {
+			return null;
+		}
+		int start = buffer.position();
+		int payloadLength = buffer.getInt();
+		if (payloadLength <= 0 || payloadLength > buffer.remaining() - 5) {
+			return null;
+		}
+
+		CRC32 crc = new CRC32();
+		byte[] content = new byte[payloadLength + 1];
+		buffer.get(content);
+		crc.update(content, 0, content.length);
+		if ((int) crc.getValue() != buffer.getInt()) {
+			return null;
+		}
+
+		WalRecord.Type type = WalRecord.Type.findByCode(content[0]);
+		if (type == null) {
+			return null;
+		}
+		ByteBuffer payload = ByteBuffer.wrap(content, 1, payloadLength);
+		try {
+			switch (type) {
+			case MESSAGE:
+				return WalRecord.message(readMessage(payload));
+			case STATUS:
+				return WalRecord.status(readMessage(payload));
+			default:
+				return WalRecord.conversation(readConversation(payload));
+			}
+		} catch (BufferUnderflowException | IllegalArgumentException e) {
+			buffer.position(start);
+			return null;
+		}
+	}
+
+	private static void writeMessage(DataOutputStream out, ArchivedMessage message) throws IOException {
+		writeString(out, message.getId());
+		writeString(out, message.getConversationID());
+		writeString(out, message.getFrom().toString());
+		writeString(out, message.getTo().toString());
+		out.writeByte(message.getStatus().getValue());
+		writeString(out, message.getBody());
+		out.writeLong(message.getCreatedAt());
+		out.writeLong(message.getUpdatedAt());
+	}
+
+	private static ArchivedMessage readMessage(ByteBuffer in) {
+		String id = readString(in);
+		String conversationID = readString(in);
+		JID from = new JID(readString(in));
+		JID to = new JID(readString(in));
+		MessageStatus status = MessageStatus.findByValue(in.get());
+		String body = readString(in);
+		long createdAt = in.getLong();
+		long updatedAt = in.getLong();
+		if (status == null) {
+			throw new IllegalArgumentException("Unknown message status");
+		}
+		return new ArchivedMessage(id, to, from, body, createdAt, updatedAt, conversationID, status);
+	}
+
+	private static void writeConversation(DataOutputStream out, Conversation conversation) throws IOException {
+		writeString(out, conversation.getId());
+		writeString(out, conversation.getParticipantOne());
+		writeString(out, conversation.getParticipantTwo());
+		out.writeLong(conversation.getCreatedAt());
+		out.writeLong(conversation.getUpdatedAt());
+		out.writeInt(conversation.getMessageCount());
+	}
+
+	private static Conversation readConversation(ByteBuffer in) {
+		Conversation conversation = new Conversation(readString(in), readString(in), readString(in), in.getLong(),
+				in.getLong());
+		conversation.setMessageCount(in.getInt());
+		return conversation;
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer in) {
+		int length = in.getInt();
+		if (length < 0) {
+			return null;
+		}
+		if (length > in.remaining()) {
+			throw new BufferUnderflowException();
+		}
+		String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+		in.position(in.position() + length);
+		return value;
+	}
+}
@@ -0,0 +1,89 @@
+package com.i7.openfire.archive.wal;
+
+import com.i7.openfire.archive.model.ArchivedMessage;
+import com.i7.openfire.archive.model.Conversation;
+
+/**
+ * A record of the write-ahead log: a message to insert, a message status
+ * update or the latest state of a conversation.
+ */
+public class WalRecord {
+
+	public enum Type {
+		MESSAGE(1), STATUS(2), CONVERSATION(3);
+
+		private final byte code;
+
+		Type(int code) {
+			this.code = (byte) code;
+		}
+
+		public byte getCode() {
+			return code;
+		}
+
+		public static Type findByCode(byte code) {
+			for (Type type : Type.values()) {
+				if (type.code == code) {
+					return type;
+				}
+			}
+			return null;
+		}
+	}
+
+	private final Type type;
+	private final ArchivedMessage message;
+	private final Conversation conversation;
+	private long segment = WriteAheadLog.NO_SEGMENT;
+
+	private WalRecord(Type type, ArchivedMessage message, Conversation conversation) {
+		this.type = type;
+		this.message = message;
+		this.conversation = conversation;
+	}
+
+	public static WalRecord message(ArchivedMessage message) {
+		return new WalRecord(Type.MESSAGE, message, null);
+	}
+
+	public static WalRecord status(ArchivedMessage update) {
+		return new WalRecord(Type.STATUS, update, null);
+	}
+
+	public static WalRecord conversation(Conversation conversation) {
+		return new WalRecord(Type.CONVERSATION, null, conversation);
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * Returns the message of a {@link Type#MESSAGE} or {@link Type#STATUS}
+	 * record.
+	 */
+	public ArchivedMessage getMessage() {
+		return message;
+	}
+
+	/**
+	 * Returns the conversation of a {@link Type#CONVERSATION} record.
+	 */
+	public Conversation getConversation() {
+		return conversation;
+	}
+
+	/**
+	 * Returns the ID of the write-ahead log segment holding the record, or
+	 * {@link WriteAheadLog#NO_SEGMENT} if it is not logged. The segment is kept
+	 * until the reference taken on it for the record is released.
+	 */
+	public long getSegment() {
+		return segment;
+	}
+
+	public void setSegment(long segment) {
+		this.segment = segment;
+	}
+}
@@ -0,0 +1,387 @@
+package com.i7.openfire.archive.wal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import org.jivesoftware.util.JiveConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.i7.openfire.archive.Startable;
+
+/**
+ * Append-only log of the records queued to be archived, kept in memory-mapped
+ * segment files so that queued records survive a crash of the server.
+ *
+ * Records are written to the mapped segment as they are appended, which makes
+ * them safe from a crash of the process. Segments are forced to disk by a
+ * background thread every sync interval, so records appended in the meantime
+ * are group committed to protect them from a crash of the host as well.
+ *
+ * Every appended or replayed record takes a reference on its segment, which
+ * whoever holds the record releases once it is committed to the database, or
+ * once a newer record supersedes it. Segments are only rolled when full, and
+ * {@link #truncate()} deletes the segments older than the oldest one still
+ * referenced. Segments left behind by a crash are replayed on start; records
+ * may be delivered more than once.
+ */
+public class WriteAheadLog implements Startable {
+	private static final Logger log = LoggerFactory.getLogger(WriteAheadLog.class);
+
+	private static final int MAGIC = 0x4937574c;
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".wal";
+
+	/**
+	 * Segment of the records that are not logged.
+	 */
+	public static final long NO_SEGMENT = -1;
+
+	private final boolean enabled;
+	private final File directory;
+	private final int segmentSize;
+	private final long syncInterval;
+
+	/**
+	 * Segments on disk, current one included. Key: Segment ID; Value: segment
+	 * file.
+	 */
+	private final ConcurrentSkipListMap<Long, File> segmentFiles = new ConcurrentSkipListMap<>();
+
+	/**
+	 * Records not released yet. Key: Segment ID; Value: number of records.
+	 */
+	private final Map<Long, AtomicInteger> references = new ConcurrentHashMap<>();
+
+	/**
+	 * Rolled segments not forced to disk yet. Guarded by the instance monitor.
+	 */
+	private final List<Segment> unsynced = Lists.newArrayList();
+	private Segment current;
+	private long nextSegmentId;
+
+	private final AtomicLong appendedRecords = new AtomicLong();
+	private final AtomicLong appendedBytes = new AtomicLong();
+	private final AtomicLong failedAppends = new AtomicLong();
+	private final AtomicLong syncs = new AtomicLong();
+
+	private volatile boolean running;
+	private Thread syncer;
+
+	/**
+	 * @param enabled
+	 *            if false nothing is logged.
+	 * @param directory
+	 *            directory holding the segment files.
+	 * @param segmentSize
+	 *            size in bytes of a segment file.
+	 * @param syncInterval
+	 *            time in milliseconds between forcing segments to disk.
+	 */
+	public WriteAheadLog(boolean enabled, File directory, int segmentSize, long syncInterval) {
+		this.enabled = enabled;
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.syncInterval = syncInterval;
+	}
+
+	/**
+	 * Reads the records of the segments left by a previous run, oldest first.
+	 * Must be called before {@link #start()}. Each record references its
+	 * segment, see {@link WalRecord#getSegment()}.
+	 *
+	 * @param consumer
+	 *            receives the records.
+	 * @return the number of replayed records.
+	 */
+	public int replay(Consumer<WalRecord> consumer) {
+		if (!enabled) {
+			return 0;
+		}
+		File[] files = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX)
+				&& name.endsWith(SEGMENT_SUFFIX));
+		if (files == null) {
+			return 0;
+		}
+		for (File file : files) {
+			try {
+				segmentFiles.put(segmentId(file), file);
+			} catch (NumberFormatException e) {
+				log.warn("Ignoring unexpected file in the write-ahead log: {}", file);
+			}
+		}
+
+		int replayed = 0;
+		for (Map.Entry<Long, File> entry : segmentFiles.entrySet()) {
+			nextSegmentId = entry.getKey() + 1;
+			try (RandomAccessFile raf = new RandomAccessFile(entry.getValue(), "r")) {
+				ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+				if (buffer.remaining() < 4 || buffer.getInt() != MAGIC) {
+					log.warn("Skipping write-ahead log segment without header: {}", entry.getValue());
+					continue;
+				}
+				WalRecord record;
+				while ((record = WalCodec.decode(buffer)) != null) {
+					reference(entry.getKey());
+					record.setSegment(entry.getKey());
+					consumer.accept(record);
+					replayed++;
+				}
+			} catch (IOException e) {
+				log.error("Unable to replay write-ahead log segment " + entry.getValue(), e);
+			}
+		}
+		if (replayed > 0) {
+			log.info("Replayed {} records from {} write-ahead log segments", replayed, segmentFiles.size());
+		}
+		return replayed;
+	}
+
+	@Override
+	public void start() {
+		if (!enabled) {
+			return;
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			log.error("Unable to create the write-ahead log directory {}", directory);
+		}
+		synchronized (this) {
+			try {
+				current = openSegment(segmentSize);
+			} catch (IOException e) {
+				log.error("Unable to open a write-ahead log segment, queued records will not survive a crash", e);
+			}
+		}
+		running = true;
+		syncer = new Thread(this::sync, "archiving-wal-sync");
+		syncer.setDaemon(true);
+		syncer.start();
+	}
+
+	@Override
+	public void stop() {
+		if (!enabled) {
+			return;
+		}
+		running = false;
+		LockSupport.unpark(syncer);
+		try {
+			syncer.join(JiveConstants.MINUTE);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		syncer = null;
+		synchronized (this) {
+			force();
+			current = null;
+		}
+	}
+
+	/**
+	 * Appends records to the log. Each record logged takes a reference on its
+	 * segment, to be released with {@link #release(long)} by the holder of the
+	 * record; records that could not be logged are left with
+	 * {@link #NO_SEGMENT}.
+	 *
+	 * @param records
+	 *            the records.
+	 */
+	public void append(WalRecord... records) {
+		if (!enabled) {
+			return;
+		}
+		try {
+			for (WalRecord record : records) {
+				byte[] frame = WalCodec.encode(record);
+				record.setSegment(write(frame));
+				appendedRecords.incrementAndGet();
+				appendedBytes.addAndGet(frame.length);
+			}
+		} catch (IOException e) {
+			failedAppends.incrementAndGet();
+			log.error("Unable to append to the write-ahead log, queued records will not survive a crash", e);
+		}
+	}
+
+	/**
+	 * Releases the reference a record took on its segment, once the record is
+	 * committed to the database or superseded by a newer one.
+	 *
+	 * @param segment
+	 *            the segment of the record, ignored if it is
+	 *            {@link #NO_SEGMENT}.
+	 */
+	public void release(long segment) {
+		if (segment == NO_SEGMENT) {
+			return;
+		}
+		AtomicInteger count = references.get(segment);
+		if (count == null || count.decrementAndGet() < 0) {
+			log.warn("Write-ahead log segment {} released more times than referenced", segment);
+		}
+	}
+
+	/**
+	 * Deletes the segments older than the oldest segment still referenced.
+	 * The current segment is kept.
+	 */
+	public void truncate() {
+		if (!enabled) {
+			return;
+		}
+		long limit;
+		synchronized (this) {
+			// Only the current segment takes new references.
+			limit = current == null ? Long.MAX_VALUE : current.id;
+		}
+		for (Map.Entry<Long, File> entry : segmentFiles.headMap(limit).entrySet()) {
+			AtomicInteger count = references.get(entry.getKey());
+			if (count != null && count.get() > 0) {
+				break;
+			}
+			synchronized (this) {
+				unsynced.removeIf(segment -> segment.id == entry.getKey());
+			}
+			if (!entry.getValue().delete() && entry.getValue().exists()) {
+				log.warn("Unable to delete write-ahead log segment {}", entry.getValue());
+				break;
+			}
+			segmentFiles.remove(entry.getKey(), entry.getValue());
+			references.remove(entry.getKey());
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Returns the number of segment files on disk.
+	 *
+	 * @return the number of segments.
+	 */
+	public int getSegmentCount() {
+		return segmentFiles.size();
+	}
+
+	public long getAppendedRecords() {
+		return appendedRecords.get();
+	}
+
+	public long getAppendedBytes() {
+		return appendedBytes.get();
+	}
+
+	public long getFailedAppends() {
+		return failedAppends.get();
+	}
+
+	public long getSyncs() {
+		return syncs.get();
+	}
+
+	/**
+	 * Writes a frame to the current segment and references the segment.
+	 *
+	 * @return the ID of the segment.
+	 */
+	private synchronized long write(byte[] frame) throws IOException {
+		if (current == null) {
+			throw new IOException("No write-ahead log segment is open");
+		}
+		// Keep room for an empty frame length marking the end of the segment.
+		if (current.buffer.remaining() < frame.length + 4) {
+			roll(Math.max(segmentSize, frame.length + 8));
+		}
+		current.buffer.put(frame);
+		current.dirty = true;
+		reference(current.id);
+		return current.id;
+	}
+
+	private void reference(long segment) {
+		references.computeIfAbsent(segment, id -> new AtomicInteger()).incrementAndGet();
+	}
+
+	private void roll(int size) throws IOException {
+		Segment previous = current;
+		current = openSegment(size);
+		if (previous != null && previous.dirty) {
+			unsynced.add(previous);
+		}
+	}
+
+	private Segment openSegment(int size) throws IOException {
+		long id = nextSegmentId++;
+		File file = new File(directory, String.format("%s%016d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			buffer.putInt(MAGIC);
+			segmentFiles.put(id, file);
+			return new Segment(id, buffer);
+		}
+	}
+
+	private void sync() {
+		while (running) {
+			LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(syncInterval));
+			try {
+				force();
+			} catch (Exception e) {
+				log.error("Unable to force the write-ahead log to disk", e);
+			}
+		}
+	}
+
+	/**
+	 * Forces the segments written since the previous call to disk. Appends are
+	 * not blocked while the segments are forced.
+	 */
+	private void force() {
+		List<Segment> segments;
+		synchronized (this) {
+			segments = Lists.newArrayList(unsynced);
+			unsynced.clear();
+			if (current != null && current.dirty) {
+				current.dirty = false;
+				segments.add(current);
+			}
+		}
+		for (Segment segment : segments) {
+			segment.buffer.force();
+		}
+		if (!segments.isEmpty()) {
+			syncs.incrementAndGet();
+		}
+	}
+
+	private static long segmentId(File file) {
+		String name = file.getName();
+		return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+	private static class Segment {
+		private final long id;
+		private final MappedByteBuffer buffer;
+		private boolean dirty;
+
+		Segment(long id, MappedByteBuffer buffer) {
+			this.id = id;
+			this.buffer = buffer;
+		}
+	}
+}
@@ -6,6 +6,7 @@ import org.xmpp.packet.IQ;
 import org.xmpp.packet.Packet;
 import org.xmpp.packet.PacketError;
 
+import com.i7.openfire.archive.ConversationManager;
 import com.i7.openfire.archive.PersistenceManager;
 import com.i7.openfire.archive.plugin.ArchivingPlugin;
 
@@ -30,6 +31,10 @@ public abstract class AbstractIQHandler extends IQHandler {
 		return ArchivingPlugin.getInstance().getPersistenceManager();
 	}
 
+	protected ConversationManager getConversationManager() {
+		return ArchivingPlugin.getInstance().getConversationManager();
+	}
+
 	protected IQ error(Packet packet, PacketError.Condition condition) {
 		IQ reply;
 
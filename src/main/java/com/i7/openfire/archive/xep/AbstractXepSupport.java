@@ -17,6 +17,7 @@ import org.slf4j.LoggerFactory;
 import org.xmpp.packet.IQ;
 import org.xmpp.packet.PacketError;
 
+import com.i7.openfire.archive.config.Properties;
 import com.i7.openfire.archive.plugin.ArchivingPlugin;
 
 public abstract class AbstractXepSupport {
@@ -29,6 +30,11 @@ public abstract class AbstractXepSupport {
 
 	protected Collection<IQHandler> iqHandlers;
 
+	/**
+	 * Runs the handlers, away from the IQ router threads.
+	 */
+	protected IQExecutor executor;
+
 	public AbstractXepSupport(XMPPServer server, String namespace, String iqDispatcherNamespace,
 			String iqDispatcherName) {
 
@@ -43,7 +49,9 @@ public abstract class AbstractXepSupport {
 
 				final IQHandler iqHandler = element2Handlers.get(packet.getChildElement().getName());
 				if (iqHandler != null) {
-					return iqHandler.handleIQ(packet);
+					// The executor routes the reply.
+					executor.execute(packet, iqHandler);
+					return null;
 				} else {
 					return error(packet, PacketError.Condition.feature_not_implemented);
 				}
@@ -55,6 +63,11 @@ public abstract class AbstractXepSupport {
 	}
 
 	public void start() {
+		Properties properties = Properties.getInstance();
+		executor = new IQExecutor(server, "archiving-iq", Math.max(1, properties.getQueryThreads()),
+				Math.max(0, properties.getQueryQueueSize()), properties.getQueryMaxPerUser(),
+				properties.getQueryQueueTimeout());
+
 		for (IQHandler iqHandler : iqHandlers) {
 			try {
 				iqHandler.initialize(server);
@@ -99,6 +112,9 @@ public abstract class AbstractXepSupport {
 		if (iqRouter != null) {
 			iqRouter.removeHandler(iqDispatcher);
 		}
+		if (executor != null) {
+			executor.shutdown();
+		}
 	}
 
 }
@@ -0,0 +1,106 @@
+package com.i7.openfire.archive.xep;
+
+import org.dom4j.DocumentFactory;
+import org.dom4j.Element;
+import org.dom4j.QName;
+import org.xmpp.packet.JID;
+
+import com.i7.openfire.archive.model.ArchivedMessage;
+
+/**
+ * Writes archived messages as the XML elements sent to clients.
+ *
+ * The element is the one XStream used to produce for the message: named after
+ * its class, with a child per field holding a value, in declaration order.
+ * Only the whitespace between elements is left out. Elements are built from
+ * the fields directly, instead of serializing the message and parsing the
+ * text back.
+ */
+public class ArchivedMessageWriter {
+
+	private static final DocumentFactory FACTORY = DocumentFactory.getInstance();
+
+	private static final QName MESSAGE = FACTORY.createQName(ArchivedMessage.class.getName());
+	private static final QName TO = FACTORY.createQName("to");
+	private static final QName FROM = FACTORY.createQName("from");
+	private static final QName BODY = FACTORY.createQName("body");
+	private static final QName STATUS = FACTORY.createQName("status");
+	private static final QName ID = FACTORY.createQName("id");
+	private static final QName CREATED_AT = FACTORY.createQName("createdAt");
+	private static final QName UPDATED_AT = FACTORY.createQName("updatedAt");
+	private static final QName CONVERSATION_ID = FACTORY.createQName("conversationID");
+	private static final QName NODE = FACTORY.createQName("node");
+	private static final QName DOMAIN = FACTORY.createQName("domain");
+	private static final QName RESOURCE = FACTORY.createQName("resource");
+
+	private ArchivedMessageWriter() {
+	}
+
+	/**
+	 * Adds the element of a message to a parent element.
+	 *
+	 * @param parent
+	 *            the parent element.
+	 * @param message
+	 *            the message.
+	 * @return the element of the message.
+	 */
+	public static Element write(Element parent, ArchivedMessage message) {
+		Element element = parent.addElement(MESSAGE);
+		addJid(element, TO, message.getTo());
+		addJid(element, FROM, message.getFrom());
+		addText(element, BODY, message.getBody());
+		if (message.getStatus() != null) {
+			addText(element, STATUS, message.getStatus().name());
+		}
+		addText(element, ID, message.getId());
+		addText(element, CREATED_AT, Long.toString(message.getCreatedAt()));
+		addText(element, UPDATED_AT, Long.toString(message.getUpdatedAt()));
+		addText(element, CONVERSATION_ID, message.getConversationID());
+		return element;
+	}
+
+	private static void addJid(Element parent, QName name, JID jid) {
+		if (jid == null) {
+			return;
+		}
+		Element element = parent.addElement(name);
+		addText(element, NODE, jid.getNode());
+		addText(element, DOMAIN, jid.getDomain());
+		addText(element, RESOURCE, jid.getResource());
+	}
+
+	private static void addText(Element parent, QName name, String text) {
+		if (text != null) {
+			parent.addElement(name).addText(toXmlChars(text));
+		}
+	}
+
+	/**
+	 * Removes the characters XML 1.0 does not allow, which would break the
+	 * stream of the client the element is sent to.
+	 */
+	private static String toXmlChars(String text) {
+		int length = text.length();
+		int i = 0;
+		while (i < length && isXmlChar(text.charAt(i))) {
+			i++;
+		}
+		if (i == length) {
+			return text;
+		}
+		StringBuilder builder = new StringBuilder(length).append(text, 0, i);
+		for (; i < length; i++) {
+			char c = text.charAt(i);
+			if (isXmlChar(c)) {
+				builder.append(c);
+			}
+		}
+		return builder.toString();
+	}
+
+	private static boolean isXmlChar(char c) {
+		// Surrogates are allowed, they encode the characters above U+FFFF.
+		return c >= 0x20 ? c != 0xFFFE && c != 0xFFFF : c == '\t' || c == '\n' || c == '\r';
+	}
+}
@@ -0,0 +1,270 @@
+package com.i7.openfire.archive.xep;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.auth.UnauthorizedException;
+import org.jivesoftware.openfire.handler.IQHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.PacketError;
+
+/**
+ * Runs IQ handlers away from the IQ router threads, so that slow archive
+ * queries do not hold up unrelated IQs such as roster requests or pings.
+ *
+ * A fixed number of requests are handled at a time. On Java 21 and later each
+ * request runs on its own virtual thread, waiting for its turn; otherwise
+ * requests wait in the queue of a fixed pool of threads. Requests that find
+ * too many requests pending, that come from a user already having too many
+ * requests pending, or that wait longer than the queue timeout are answered
+ * with a <tt>resource-constraint</tt> error.
+ *
+ * A request is handled from start to end on the same thread, so the messages
+ * it sends and its IQ result are sent in order.
+ */
+public class IQExecutor {
+	private static final Logger log = LoggerFactory.getLogger(IQExecutor.class);
+
+	private final XMPPServer server;
+	private final int threads;
+	private final int maxPending;
+	private final int maxPerUser;
+	private final long queueTimeout;
+
+	private final ExecutorService executor;
+	private final boolean virtualThreads;
+	private final Semaphore slots;
+
+	/**
+	 * Requests queued or running, by user. Key: Bare JID; Value: Requests.
+	 */
+	private final Map<String, Integer> userRequests = new ConcurrentHashMap<>();
+	private final AtomicInteger pending = new AtomicInteger();
+
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong timedOut = new AtomicLong();
+
+	/**
+	 * @param server
+	 *            the server, used to route replies.
+	 * @param name
+	 *            prefix of the names of the threads.
+	 * @param threads
+	 *            number of requests handled at a time.
+	 * @param queueSize
+	 *            number of requests waiting to be handled, beyond which
+	 *            requests are rejected.
+	 * @param maxPerUser
+	 *            number of requests a user can have queued or running.
+	 * @param queueTimeout
+	 *            time, in milliseconds, a request can wait to be handled.
+	 */
+	public IQExecutor(XMPPServer server, String name, int threads, int queueSize, int maxPerUser, long queueTimeout) {
+		this.server = server;
+		this.threads = threads;
+		this.maxPending = threads + queueSize;
+		this.maxPerUser = maxPerUser;
+		this.queueTimeout = queueTimeout;
+		this.slots = new Semaphore(threads, true);
+
+		ExecutorService virtual = newVirtualThreadExecutor();
+		this.virtualThreads = virtual != null;
+		if (virtual != null) {
+			this.executor = virtual;
+		} else {
+			AtomicInteger threadIndex = new AtomicInteger();
+			this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+				Thread thread = new Thread(runnable, name + "-" + threadIndex.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	/**
+	 * Queues a request to be handled. The reply of the handler, or the error
+	 * the request ends with, is routed to the requester.
+	 *
+	 * @param packet
+	 *            the request.
+	 * @param handler
+	 *            the handler of the request.
+	 */
+	public void execute(IQ packet, IQHandler handler) {
+		String user = packet.getFrom() == null ? "" : packet.getFrom().toBareJID();
+		if (!acquire(user)) {
+			reject(packet, "{} has too many archive requests pending", user);
+			return;
+		}
+		if (pending.incrementAndGet() > maxPending) {
+			release(user);
+			reject(packet, "Too many archive requests pending, rejecting the one of {}", user);
+			return;
+		}
+		long queuedAt = System.nanoTime();
+		try {
+			executor.execute(() -> run(packet, handler, user, queuedAt));
+		} catch (RejectedExecutionException e) {
+			release(user);
+			reject(packet, "Archive request of {} received while stopping", user);
+		}
+	}
+
+	private void run(IQ packet, IQHandler handler, String user, long queuedAt) {
+		try {
+			long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - queuedAt);
+			if (!slots.tryAcquire(Math.max(0, queueTimeout - waited), TimeUnit.MILLISECONDS)) {
+				timedOut.incrementAndGet();
+				log.debug("Archive request of {} timed out after waiting {} ms", user, waited);
+				route(error(packet, PacketError.Condition.resource_constraint));
+				return;
+			}
+			try {
+				IQ reply = handler.handleIQ(packet);
+				if (reply != null) {
+					route(reply);
+				}
+				completed.incrementAndGet();
+			} finally {
+				slots.release();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			route(error(packet, PacketError.Condition.resource_constraint));
+		} catch (UnauthorizedException e) {
+			route(error(packet, PacketError.Condition.not_authorized));
+		} catch (Exception e) {
+			log.error("Unable to handle archive request " + packet.toXML(), e);
+			route(error(packet, PacketError.Condition.internal_server_error));
+		} finally {
+			release(user);
+		}
+	}
+
+	/**
+	 * Stops taking requests and waits for the pending ones to be handled.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+				log.warn("Archive requests still running after 30 seconds, interrupting them");
+				executor.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			executor.shutdownNow();
+		}
+	}
+
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * Returns the number of requests waiting to be handled.
+	 *
+	 * @return the number of queued requests.
+	 */
+	public int getQueued() {
+		return Math.max(0, pending.get() - getRunning());
+	}
+
+	/**
+	 * Returns the number of requests being handled.
+	 *
+	 * @return the number of running requests.
+	 */
+	public int getRunning() {
+		return threads - slots.availablePermits();
+	}
+
+	public long getCompleted() {
+		return completed.get();
+	}
+
+	/**
+	 * Returns the number of requests rejected because too many requests, of
+	 * any user or of their user, were pending.
+	 *
+	 * @return the number of rejected requests.
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * Returns the number of requests that waited longer than the queue timeout.
+	 *
+	 * @return the number of timed out requests.
+	 */
+	public long getTimedOut() {
+		return timedOut.get();
+	}
+
+	private boolean acquire(String user) {
+		if (maxPerUser <= 0) {
+			return true;
+		}
+		AtomicBoolean acquired = new AtomicBoolean();
+		userRequests.compute(user, (key, requests) -> {
+			if (requests != null && requests >= maxPerUser) {
+				return requests;
+			}
+			acquired.set(true);
+			return requests == null ? 1 : requests + 1;
+		});
+		return acquired.get();
+	}
+
+	private void release(String user) {
+		pending.decrementAndGet();
+		if (maxPerUser <= 0) {
+			return;
+		}
+		userRequests.computeIfPresent(user, (key, requests) -> requests <= 1 ? null : requests - 1);
+	}
+
+	private void reject(IQ packet, String message, String user) {
+		rejected.incrementAndGet();
+		log.debug(message, user);
+		route(error(packet, PacketError.Condition.resource_constraint));
+	}
+
+	private void route(IQ reply) {
+		server.getIQRouter().route(reply);
+	}
+
+	private static IQ error(IQ packet, PacketError.Condition condition) {
+		IQ reply = IQ.createResultIQ(packet);
+		if (packet.getChildElement() != null) {
+			reply.setChildElement(packet.getChildElement().createCopy());
+		}
+		reply.setError(condition);
+		return reply;
+	}
+
+	/**
+	 * Returns an executor running each task on a new virtual thread, or
+	 * <tt>null</tt> before Java 21.
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package com.i7.openfire.archive.xep.xep0059;
+
+import com.i7.openfire.archive.model.ArchivedMessage;
+
+/**
+ * Position of a message in the archive, used as the UID of the items of a
+ * result set. Messages are ordered by creation time and ID, so a page can be
+ * fetched by seeking to the position of the message next to it, whatever its
+ * index in the set.
+ *
+ * The textual form is <tt>createdAt:id</tt>. A bare creation time is accepted
+ * as well, for clients holding UIDs of earlier versions.
+ */
+public class ResultSetCursor {
+
+	/**
+	 * Position after the last message, to request the last page of a set.
+	 */
+	public static final ResultSetCursor END = new ResultSetCursor(Long.MAX_VALUE, null);
+
+	private final long createdAt;
+	private final String id;
+
+	public ResultSetCursor(long createdAt, String id) {
+		this.createdAt = createdAt;
+		this.id = id;
+	}
+
+	/**
+	 * Returns the position of a message.
+	 *
+	 * @param message
+	 *            the message.
+	 * @return the cursor.
+	 */
+	public static ResultSetCursor of(ArchivedMessage message) {
+		return new ResultSetCursor(message.getCreatedAt(), message.getId());
+	}
+
+	/**
+	 * Parses the textual form of a cursor.
+	 *
+	 * @param text
+	 *            the text.
+	 * @return the cursor, or <tt>null</tt> if the text is not a cursor.
+	 */
+	public static ResultSetCursor parse(String text) {
+		if (text == null) {
+			return null;
+		}
+		int separator = text.indexOf(':');
+		try {
+			long createdAt = Long.parseLong(separator < 0 ? text : text.substring(0, separator));
+			if (createdAt < 0) {
+				return null;
+			}
+			return new ResultSetCursor(createdAt, separator < 0 ? null : text.substring(separator + 1));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	public long getCreatedAt() {
+		return createdAt;
+	}
+
+	/**
+	 * Returns the ID of the message, <tt>null</tt> if the cursor only holds a
+	 * creation time.
+	 *
+	 * @return the message ID.
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * Compares the position of a message with this one. A cursor without ID
+	 * only compares creation times.
+	 *
+	 * @param message
+	 *            the message.
+	 * @return a negative number, zero or a positive number if the message
+	 *         comes before, at or after this position.
+	 */
+	public int compareTo(ArchivedMessage message) {
+		int result = Long.compare(message.getCreatedAt(), createdAt);
+		if (result != 0 || id == null) {
+			return result;
+		}
+		return message.getId().compareTo(id);
+	}
+
+	@Override
+	public String toString() {
+		return id == null ? Long.toString(createdAt) : createdAt + ":" + id;
+	}
+}
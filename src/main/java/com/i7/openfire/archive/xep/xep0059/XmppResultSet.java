@@ -10,11 +10,11 @@ import org.dom4j.Element;
 public class XmppResultSet {
 	public static final String NAMESPACE = "http://jabber.org/protocol/rsm";
 
-	private Long after;
-	private Long before;
+	private ResultSetCursor after;
+	private ResultSetCursor before;
 
-	private Long first;
-	private Long last;
+	private ResultSetCursor first;
+	private ResultSetCursor last;
 
 	private Integer max;
 	private Integer count;
@@ -25,27 +25,13 @@ public class XmppResultSet {
 
 	public XmppResultSet(Element setElement) {
 		if (setElement.element("after") != null) {
-			try {
-				after = Long.parseLong(setElement.elementText("after"));
-				if (after < 0) {
-					after = null;
-				}
-			} catch (Exception e) {
-				// swallow
-			}
+			after = ResultSetCursor.parse(setElement.elementText("after"));
 		}
 		if (setElement.element("before") != null) {
-			try {
-				before = Long.parseLong(setElement.elementText("before"));
-				if (before < 0) {
-					before = null;
-				}
-			} catch (NumberFormatException e) {
-				if (setElement.elementText("before").isEmpty()) {
-					this.before = Long.MAX_VALUE;
-				}
-			} catch (Exception e) {
-				// swallow
+			if (setElement.elementText("before").isEmpty()) {
+				before = ResultSetCursor.END;
+			} else {
+				before = ResultSetCursor.parse(setElement.elementText("before"));
 			}
 		}
 		if (setElement.element("max") != null) {
@@ -70,11 +56,22 @@ public class XmppResultSet {
 		}
 	}
 
-	public Long getAfter() {
+	/**
+	 * Returns the position after which the page starts.
+	 *
+	 * @return the position, or <tt>null</tt> if not requested.
+	 */
+	public ResultSetCursor getAfter() {
 		return after;
 	}
 
-	public Long getBefore() {
+	/**
+	 * Returns the position before which the page ends,
+	 * {@link ResultSetCursor#END} to request the last page.
+	 *
+	 * @return the position, or <tt>null</tt> if not requested.
+	 */
+	public ResultSetCursor getBefore() {
 		return before;
 	}
 
@@ -115,12 +112,12 @@ public class XmppResultSet {
 	}
 
 	/**
-	 * Sets the id of the first element returned.
+	 * Sets the position of the first element returned.
 	 *
 	 * @param first
-	 *            the id of the first element returned.
+	 *            the position of the first element returned.
 	 */
-	public void setFirst(Long first) {
+	public void setFirst(ResultSetCursor first) {
 		this.first = first;
 	}
 
@@ -135,12 +132,12 @@ public class XmppResultSet {
 	}
 
 	/**
-	 * Sets the id of the last element returned.
+	 * Sets the position of the last element returned.
 	 *
 	 * @param last
-	 *            the id of the last element returned.
+	 *            the position of the last element returned.
 	 */
-	public void setLast(Long last) {
+	public void setLast(ResultSetCursor last) {
 		this.last = last;
 	}
 
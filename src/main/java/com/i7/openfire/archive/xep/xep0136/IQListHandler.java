@@ -4,9 +4,6 @@ import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 
-import org.dom4j.Document;
-import org.dom4j.DocumentException;
-import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
 import org.jivesoftware.openfire.auth.UnauthorizedException;
 import org.jivesoftware.openfire.disco.ServerFeaturesProvider;
@@ -18,9 +15,9 @@ import org.xmpp.packet.JID;
 import com.google.common.collect.Lists;
 import com.i7.openfire.archive.model.ArchivedMessage;
 import com.i7.openfire.archive.xep.AbstractIQHandler;
+import com.i7.openfire.archive.xep.ArchivedMessageWriter;
 import com.i7.openfire.archive.xep.xep0059.XmppResultSet;
 import com.i7.openfire.archive.xep.xep0313.IQQueryHandler;
-import com.thoughtworks.xstream.XStream;
 
 /**
  * Message Archiving List Handler.
@@ -63,16 +60,7 @@ public class IQListHandler extends AbstractIQHandler implements ServerFeaturesPr
 
 	private Element addChatElement(Element listElement, ArchivedMessage message) {
 		Element chatElement = listElement.addElement("chat");
-		
-		Document document;
-		try {
-			document = DocumentHelper.parseText(new XStream().toXML(message));
-			chatElement.add(document.getRootElement());
-		} catch (DocumentException e) {
-			log.error("Failed to parse message stanza.", e);
-			// If we can't parse then we have no message to send to client, abort
-			return null;
-		}
+		ArchivedMessageWriter.write(chatElement, message);
 		return chatElement;
 	}
 
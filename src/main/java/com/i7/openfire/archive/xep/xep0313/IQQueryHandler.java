@@ -2,16 +2,15 @@ package com.i7.openfire.archive.xep.xep0313;
 
 import java.text.ParseException;
 import java.time.Instant;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
 
-import org.dom4j.Document;
-import org.dom4j.DocumentException;
-import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
 import org.jivesoftware.openfire.auth.UnauthorizedException;
+import org.jivesoftware.openfire.cluster.ClusterManager;
 import org.jivesoftware.openfire.disco.ServerFeaturesProvider;
 import org.jivesoftware.openfire.session.LocalClientSession;
 import org.jivesoftware.util.XMPPDateTimeFormat;
@@ -24,10 +23,11 @@ import org.xmpp.packet.JID;
 import org.xmpp.packet.Message;
 import org.xmpp.packet.PacketError;
 
+import com.i7.openfire.archive.config.Properties;
 import com.i7.openfire.archive.model.ArchivedMessage;
 import com.i7.openfire.archive.xep.AbstractIQHandler;
+import com.i7.openfire.archive.xep.ArchivedMessageWriter;
 import com.i7.openfire.archive.xep.xep0059.XmppResultSet;
-import com.thoughtworks.xstream.XStream;
 
 /**
  * XEP-0313 IQ Query Handler
@@ -72,11 +72,8 @@ public class IQQueryHandler extends AbstractIQHandler implements ServerFeaturesP
 		}
 
 		final QueryRequest queryRequest = new QueryRequest(packet.getChildElement(), archiveJid);
-		Collection<ArchivedMessage> archivedMessages = retrieveMessages(queryRequest);
-
-		for (ArchivedMessage archivedMessage : archivedMessages) {
-			sendMessageResult(session, queryRequest, archivedMessage);
-		}
+		// Each message is sent as soon as it is read.
+		retrieveMessages(queryRequest, archivedMessage -> sendMessageResult(session, queryRequest, archivedMessage));
 
 		sendFinalMessage(session, queryRequest);
 
@@ -116,9 +113,10 @@ public class IQQueryHandler extends AbstractIQHandler implements ServerFeaturesP
 	 * Retrieve messages matching query request from server archive
 	 * 
 	 * @param queryRequest
-	 * @return
+	 * @param consumer
+	 *            receives the messages, in archive order
 	 */
-	private Collection<ArchivedMessage> retrieveMessages(QueryRequest queryRequest) {
+	private void retrieveMessages(QueryRequest queryRequest, Consumer<ArchivedMessage> consumer) {
 
 		String endField = null;
 		String withField = null;
@@ -153,7 +151,19 @@ public class IQQueryHandler extends AbstractIQHandler implements ServerFeaturesP
 
 		String conversationId = getPersistenceManager().getConversation(queryRequest.getArchive().toBareJID(),
 				withField);
-		return getPersistenceManager().getMessages(conversationId, startDate, endDate, queryRequest.getResultSet());
+
+		// The latest messages of active conversations are kept in memory by
+		// the senior cluster member, which processes every message.
+		if (ClusterManager.isSeniorClusterMember()) {
+			List<ArchivedMessage> recent = getConversationManager().getRecentMessages().find(conversationId,
+					startDate, endDate, queryRequest.getResultSet(), Properties.getInstance().getMaxMessages());
+			if (recent != null) {
+				recent.forEach(consumer);
+				return;
+			}
+		}
+		getPersistenceManager().streamMessages(conversationId, startDate, endDate, queryRequest.getResultSet(),
+				consumer);
 	}
 
 	/**
@@ -227,15 +237,7 @@ public class IQQueryHandler extends AbstractIQHandler implements ServerFeaturesP
 		delay.addAttribute("stamp",
 				XMPPDateTimeFormat.format(Date.from(Instant.ofEpochMilli(archivedMessage.getCreatedAt()))));
 
-		Document document;
-		try {
-			document = DocumentHelper.parseText(new XStream().toXML(archivedMessage));
-			forwarded.add(document.getRootElement());
-		} catch (DocumentException e) {
-			log.error("Failed to parse message stanza.", e);
-			// If we can't parse then we have no message to send to client, abort
-			return;
-		}
+		ArchivedMessageWriter.write(forwarded, archivedMessage);
 		session.process(messagePacket);
 	}
 
@@ -1,4 +1,4 @@
-INSERT INTO ofVersion (name, version) VALUES ('archiving', 1);
+INSERT INTO ofVersion (name, version) VALUES ('archiving', 4);
 
 CREATE TABLE ofConversation (
   id        			VARCHAR(401)  NOT NULL,
@@ -22,7 +22,15 @@ CREATE TABLE ofMessage (
    updatedAt         BIGINT           NOT NULL,
    body              TEXT			  NOT NULL,
    PRIMARY KEY (id),
-   INDEX ofMessageArchive_con_idx (conversationID),
+   INDEX ofMessage_con_created_idx (conversationID, createdAt),
+   INDEX ofMessage_created_idx (createdAt),
    INDEX ofMessageArchive_fromjid_idx (fromJID),
    INDEX ofMessageArchive_tojid_idx (toJID)
 );
+
+CREATE TABLE ofMessageBucket (
+   conversationID    VARCHAR(401)     NOT NULL,
+   bucketStart       BIGINT           NOT NULL,
+   messageCount      INT              NOT NULL,
+   PRIMARY KEY (conversationID, bucketStart)
+);
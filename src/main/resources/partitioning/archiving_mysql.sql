@@ -0,0 +1,23 @@
+-- Partitions ofMessage by month of creation, for i7.archiving.partitioning.enabled.
+--
+-- MySQL requires the partitioning column in every unique key, so the primary
+-- key becomes (id, createdAt). The existing messages all go to a first
+-- partition ending with the current month, and are dropped together once the
+-- newest of them expires. The last partition, pmax, is kept empty: the plugin
+-- splits it into the partitions of the next months, see
+-- i7.archiving.partitions.ahead.
+--
+-- The table is copied once, run it with the plugin stopped.
+
+SET @saved_time_zone = @@session.time_zone;
+SET time_zone = '+00:00';
+SET @bound = UNIX_TIMESTAMP(DATE_FORMAT(UTC_TIMESTAMP() + INTERVAL 1 MONTH, '%Y-%m-01')) * 1000;
+SET time_zone = @saved_time_zone;
+
+SET @ddl = CONCAT('ALTER TABLE ofMessage DROP PRIMARY KEY, ADD PRIMARY KEY (id, createdAt) ',
+    'PARTITION BY RANGE (createdAt) (',
+    'PARTITION pinitial VALUES LESS THAN (', @bound, '), ',
+    'PARTITION pmax VALUES LESS THAN MAXVALUE)');
+PREPARE partition_ofMessage FROM @ddl;
+EXECUTE partition_ofMessage;
+DEALLOCATE PREPARE partition_ofMessage;
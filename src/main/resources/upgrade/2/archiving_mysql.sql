@@ -0,0 +1,7 @@
+-- Pages of a conversation are read in (createdAt, id) order with keyset
+-- queries. InnoDB appends the primary key to secondary indexes, so this index
+-- covers (conversationID, createdAt, id).
+CREATE INDEX ofMessage_con_created_idx ON ofMessage (conversationID, createdAt);
+DROP INDEX ofMessageArchive_con_idx ON ofMessage;
+
+UPDATE ofVersion SET version = 2 WHERE name = 'archiving';
@@ -0,0 +1,14 @@
+-- Message counts of each conversation by hour, see MessageBuckets.
+CREATE TABLE ofMessageBucket (
+   conversationID    VARCHAR(401)     NOT NULL,
+   bucketStart       BIGINT           NOT NULL,
+   messageCount      INT              NOT NULL,
+   PRIMARY KEY (conversationID, bucketStart)
+);
+
+INSERT INTO ofMessageBucket (conversationID, bucketStart, messageCount)
+  SELECT conversationID, createdAt - MOD(createdAt, 3600000), COUNT(*)
+  FROM ofMessage
+  GROUP BY conversationID, createdAt - MOD(createdAt, 3600000);
+
+UPDATE ofVersion SET version = 3 WHERE name = 'archiving';
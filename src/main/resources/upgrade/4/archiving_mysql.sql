@@ -0,0 +1,4 @@
+-- Range scans of the retention task.
+CREATE INDEX ofMessage_created_idx ON ofMessage (createdAt);
+
+UPDATE ofVersion SET version = 4 WHERE name = 'archiving';
@@ -0,0 +1,173 @@
+package com.i7.openfire.archive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.xmpp.packet.JID;
+
+import com.google.common.collect.Lists;
+import com.i7.openfire.archive.enums.MessageStatus;
+import com.i7.openfire.archive.model.ArchivedMessage;
+import com.i7.openfire.archive.wal.SpillQueue;
+import com.i7.openfire.archive.wal.WriteAheadLog;
+
+public class PendingMessageQueueTest {
+
+	private static final String CONVERSATION = "alice@example.com_bob@example.com";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private SpillQueue spill;
+	private int capacity;
+	private PendingMessageQueue queue;
+
+	@Before
+	public void setUp() throws IOException {
+		spill = new SpillQueue(folder.newFolder("spill"), 512, true);
+		capacity = 0;
+		queue = new PendingMessageQueue(spill, () -> capacity, new WriteAheadLog(false, null, 0, 0));
+	}
+
+	@Test
+	public void appliesStatusUpdateToQueuedMessage() {
+		queue.add(message("m1", 1));
+
+		queue.addStatusUpdate(update("m1", MessageStatus.DELIVERED, 5));
+
+		ArchivedMessage message = queue.poll();
+		assertEquals(MessageStatus.DELIVERED, message.getStatus());
+		assertEquals(5, message.getUpdatedAt());
+		assertTrue(queue.drainStatusUpdates().isEmpty());
+		assertEquals(1, queue.getMergedUpdates());
+	}
+
+	@Test
+	public void collapsesStatusUpdatesOfPolledMessage() {
+		queue.add(message("m1", 1));
+		queue.poll();
+
+		queue.addStatusUpdate(update("m1", MessageStatus.READ, 5));
+		queue.addStatusUpdate(update("m1", MessageStatus.DELIVERED, 6));
+
+		List<ArchivedMessage> updates = queue.drainStatusUpdates();
+		assertEquals(1, updates.size());
+		assertEquals(MessageStatus.READ, updates.get(0).getStatus());
+		assertEquals(1, queue.getCollapsedUpdates());
+	}
+
+	@Test
+	public void spillsBeyondCapacityAndReadsBackInOrder() {
+		capacity = 5;
+		for (int i = 0; i < 50; i++) {
+			queue.add(message("m" + i, i));
+		}
+
+		assertEquals(5, queue.getMemoryDepth());
+		assertEquals(45, queue.getSpillDepth());
+		assertEquals(50, queue.size());
+
+		for (int i = 0; i < 50; i++) {
+			assertEquals("m" + i, queue.poll().getId());
+		}
+		assertNull(queue.poll());
+		assertTrue(queue.isEmpty());
+		assertEquals(0, queue.size());
+	}
+
+	@Test
+	public void appliesSpilledStatusUpdateOnReadBack() {
+		capacity = 2;
+		for (int i = 0; i < 5; i++) {
+			queue.add(message("m" + i, i));
+		}
+		// Spilled behind its message.
+		queue.addStatusUpdate(update("m4", MessageStatus.READ, 10));
+
+		ArchivedMessage message = null;
+		for (int i = 0; i < 5; i++) {
+			message = queue.poll();
+		}
+		assertEquals("m4", message.getId());
+		assertEquals(MessageStatus.READ, message.getStatus());
+		assertTrue(queue.drainStatusUpdates().isEmpty());
+	}
+
+	@Test
+	public void tracksUnwrittenMessagesUntilRemoved() {
+		queue.add(message("m2", 2));
+		queue.add(message("m1", 1));
+
+		ArchivedMessage polled = queue.poll();
+		assertEquals(Lists.newArrayList("m1", "m2"), ids(queue.getUnwritten(CONVERSATION)));
+
+		queue.removeWritten(Collections.singletonList(polled));
+		assertEquals(Lists.newArrayList("m1"), ids(queue.getUnwritten(CONVERSATION)));
+	}
+
+	@Test
+	public void requeuesFailedMessagesAheadOfTheOthers() {
+		for (int i = 0; i < 4; i++) {
+			queue.add(message("m" + i, i));
+		}
+		List<ArchivedMessage> failed = Lists.newArrayList(queue.poll(), queue.poll());
+		// Received while the messages were being written.
+		queue.addStatusUpdate(update("m1", MessageStatus.DELIVERED, 20));
+		queue.addStatusUpdate(update("m3", MessageStatus.READ, 21));
+
+		queue.requeue(failed, Collections.singletonList(update("m0", MessageStatus.READ, 19)));
+
+		ArchivedMessage m0 = queue.poll();
+		ArchivedMessage m1 = queue.poll();
+		ArchivedMessage m2 = queue.poll();
+		ArchivedMessage m3 = queue.poll();
+		assertEquals(Lists.newArrayList("m0", "m1", "m2", "m3"), ids(Lists.newArrayList(m0, m1, m2, m3)));
+		assertEquals(MessageStatus.READ, m0.getStatus());
+		assertEquals(MessageStatus.DELIVERED, m1.getStatus());
+		assertEquals(MessageStatus.READ, m3.getStatus());
+		assertTrue(queue.drainStatusUpdates().isEmpty());
+		assertEquals(4, ids(queue.getUnwritten(CONVERSATION)).size());
+	}
+
+	@Test
+	public void requeuesFailedStatusUpdates() {
+		queue.add(message("m1", 1));
+		queue.poll();
+		queue.addStatusUpdate(update("m1", MessageStatus.DELIVERED, 5));
+		List<ArchivedMessage> failed = queue.drainStatusUpdates();
+		queue.addStatusUpdate(update("m1", MessageStatus.READ, 6));
+
+		queue.requeue(Collections.emptyList(), failed);
+
+		List<ArchivedMessage> updates = queue.drainStatusUpdates();
+		assertEquals(1, updates.size());
+		assertEquals(MessageStatus.READ, updates.get(0).getStatus());
+	}
+
+	private static ArchivedMessage message(String id, long createdAt) {
+		return new ArchivedMessage(id, new JID("bob@example.com"), new JID("alice@example.com"), "body of " + id,
+				createdAt, createdAt, CONVERSATION, MessageStatus.SENT);
+	}
+
+	private static ArchivedMessage update(String id, MessageStatus status, long updatedAt) {
+		return new ArchivedMessage(id, new JID("bob@example.com"), new JID("alice@example.com"), "", updatedAt,
+				updatedAt, CONVERSATION, status);
+	}
+
+	private static List<String> ids(List<ArchivedMessage> messages) {
+		List<String> ids = Lists.newArrayList();
+		for (ArchivedMessage message : messages) {
+			ids.add(message.getId());
+		}
+		return ids;
+	}
+}
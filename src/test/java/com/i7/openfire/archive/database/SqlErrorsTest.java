@@ -0,0 +1,36 @@
+package com.i7.openfire.archive.database;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+
+import org.junit.Test;
+
+public class SqlErrorsTest {
+
+	@Test
+	public void dataExceptionsAndConstraintViolationsAreDataErrors() {
+		assertTrue(SqlErrors.isDataError(new SQLException("Data too long", "22001", 1406)));
+		assertTrue(SqlErrors.isDataError(new SQLException("Duplicate entry", "23000", 1062)));
+	}
+
+	@Test
+	public void otherErrorsAreNotDataErrors() {
+		// Table full, disk full and read-only server, reported as HY000.
+		assertFalse(SqlErrors.isDataError(new SQLException("The table is full", "HY000", 1114)));
+		assertFalse(SqlErrors.isDataError(new SQLException("Disk full", "HY000", 1021)));
+		assertFalse(SqlErrors.isDataError(new SQLException("Read only", "HY000", 1290)));
+		assertFalse(SqlErrors.isDataError(new SQLException("No state")));
+		assertFalse(SqlErrors.isDataError(new SQLException("Syntax error", "42000", 1064)));
+	}
+
+	@Test
+	public void transientErrorsAreRetried() {
+		assertTrue(SqlErrors.isTransient(new SQLException("Deadlock", "40001", 1213)));
+		assertTrue(SqlErrors.isTransient(new SQLException("Lock wait timeout", "HY000", 1205)));
+		assertTrue(SqlErrors.isTransient(new SQLTransientConnectionException("Connection lost")));
+		assertFalse(SqlErrors.isDataError(new SQLException("Deadlock", "40001", 1213)));
+	}
+}
@@ -0,0 +1,154 @@
+package com.i7.openfire.archive.tasks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.xmpp.packet.JID;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.i7.openfire.archive.enums.MessageStatus;
+import com.i7.openfire.archive.model.ArchivedMessage;
+import com.i7.openfire.archive.wal.DeadLetterLog;
+import com.i7.openfire.archive.wal.WalRecord;
+
+public class ArchivingTaskTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private DeadLetterLog deadLetters;
+	private ArchivingTask.Partition partition;
+	private final AtomicInteger commits = new AtomicInteger();
+
+	/**
+	 * Rows written by committed chunks.
+	 */
+	private final List<Integer> committed = Lists.newArrayList();
+	private List<Integer> pending;
+
+	@Before
+	public void setUp() throws IOException {
+		deadLetters = new DeadLetterLog(folder.newFolder("deadletter"));
+		partition = new ArchivingTask.Partition(null, null, null, null, deadLetters);
+		partition.con = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { Connection.class }, (proxy, method, args) -> {
+					switch (method.getName()) {
+					case "commit":
+						commits.incrementAndGet();
+						committed.addAll(pending);
+						return null;
+					case "rollback":
+						pending = null;
+						return null;
+					default:
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+	}
+
+	@Test
+	public void isolatesRefusedRowsByBisection() throws SQLException {
+		List<Integer> rows = rows(16);
+		Set<Integer> refused = Sets.newHashSet(3, 12);
+
+		partition.writeChunk(rows, refusing(refused, "22001"), ArchivingTaskTest::record);
+
+		List<Integer> expected = Lists.newArrayList(rows);
+		expected.removeAll(refused);
+		assertEquals(expected, committed);
+		assertEquals(2, deadLetters.getRecords());
+		// Dead-lettered rows are given up on, they are not queued again.
+		assertTrue(partition.written.containsAll(rows));
+	}
+
+	@Test
+	public void isolatesConstraintViolations() throws SQLException {
+		List<Integer> rows = rows(5);
+
+		partition.writeChunk(rows, refusing(Collections.singleton(4), "23000"), ArchivingTaskTest::record);
+
+		assertEquals(rows.subList(0, 4), committed);
+		assertEquals(1, deadLetters.getRecords());
+	}
+
+	@Test
+	public void dropsRefusedRowsWithoutRecord() throws SQLException {
+		List<Integer> rows = rows(4);
+
+		partition.writeChunk(rows, refusing(Collections.singleton(0), "22003"), null);
+
+		assertEquals(rows.subList(1, 4), committed);
+		assertEquals(0, deadLetters.getRecords());
+		assertTrue(partition.written.containsAll(rows));
+	}
+
+	@Test
+	public void writesChunkOnceWhenNothingIsRefused() throws SQLException {
+		List<Integer> rows = rows(8);
+
+		partition.writeChunk(rows, refusing(Collections.emptySet(), "22001"), ArchivingTaskTest::record);
+
+		assertEquals(rows, committed);
+		assertEquals(1, commits.get());
+	}
+
+	@Test
+	public void failsOnErrorsNotCausedByTheRows() {
+		List<Integer> rows = rows(8);
+
+		try {
+			// MySQL "table is full", reported with the general SQLState.
+			partition.writeChunk(rows, refusing(Collections.singleton(2), "HY000"), ArchivingTaskTest::record);
+			fail("The chunk must fail");
+		} catch (SQLException e) {
+			assertEquals("HY000", e.getSQLState());
+		}
+
+		assertTrue(committed.isEmpty());
+		assertEquals(0, deadLetters.getRecords());
+		assertTrue(partition.written.isEmpty());
+	}
+
+	/**
+	 * Returns a writer refusing the chunks holding some rows.
+	 */
+	private ArchivingTask.ChunkWriter<Integer> refusing(Set<Integer> refused, String sqlState) {
+		return chunk -> {
+			for (Integer row : chunk) {
+				if (refused.contains(row)) {
+					throw new SQLException("Row " + row + " refused", sqlState);
+				}
+			}
+			pending = Lists.newArrayList(chunk);
+		};
+	}
+
+	private static List<Integer> rows(int count) {
+		List<Integer> rows = Lists.newArrayListWithCapacity(count);
+		for (int i = 0; i < count; i++) {
+			rows.add(i);
+		}
+		return rows;
+	}
+
+	private static WalRecord record(Integer row) {
+		return WalRecord.message(new ArchivedMessage("m" + row, new JID("bob@example.com"),
+				new JID("alice@example.com"), "body", 1000, 1000, "alice@example.com_bob@example.com",
+				MessageStatus.SENT));
+	}
+}
@@ -0,0 +1,162 @@
+package com.i7.openfire.archive.wal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.Lists;
+
+public class SpillQueueTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File directory;
+	private SpillQueue spill;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = folder.newFolder("spill");
+		// A few records per file.
+		spill = new SpillQueue(directory, 512, true);
+	}
+
+	@Test
+	public void pollsInOrderAcrossFiles() throws IOException {
+		add(0, 50);
+		assertTrue(files().length > 1);
+
+		List<String> ids = Lists.newArrayList();
+		List<WalRecord> records;
+		while (!(records = spill.poll(7)).isEmpty()) {
+			for (WalRecord record : records) {
+				ids.add(record.getMessage().getId());
+			}
+		}
+
+		assertEquals(ids(0, 50), ids);
+		assertTrue(spill.isEmpty());
+		assertEquals(0, files().length);
+	}
+
+	@Test
+	public void interleavesAddsAndPolls() throws IOException {
+		List<String> ids = Lists.newArrayList();
+		for (int i = 0; i < 10; i++) {
+			add(i * 10, 10);
+			for (WalRecord record : spill.poll(6)) {
+				ids.add(record.getMessage().getId());
+			}
+		}
+		for (WalRecord record : spill.poll(Integer.MAX_VALUE)) {
+			ids.add(record.getMessage().getId());
+		}
+
+		assertEquals(ids(0, 100), ids);
+		assertEquals(0, spill.size());
+	}
+
+	@Test
+	public void keepsTheSegmentOfRecords() throws IOException {
+		WalRecord record = WalRecord.message(WalCodecTest.message("m1"));
+		record.setSegment(42);
+		spill.add(record);
+
+		assertEquals(42, spill.poll(1).get(0).getSegment());
+	}
+
+	@Test
+	public void skipsTheRestOfAFileWithACorruptRecord() throws IOException {
+		add(0, 50);
+		File[] files = files();
+		try (RandomAccessFile raf = new RandomAccessFile(files[0], "rw")) {
+			raf.seek(raf.length() / 2);
+			raf.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9 });
+		}
+
+		List<WalRecord> records = spill.poll(Integer.MAX_VALUE);
+
+		long skipped = spill.getSkippedRecords();
+		assertTrue(skipped > 0);
+		assertEquals(50 - skipped, records.size());
+		// Records of the following files are read back in order.
+		assertEquals("m49", records.get(records.size() - 1).getMessage().getId());
+		assertTrue(spill.isEmpty());
+
+		add(50, 1);
+		assertEquals("m50", spill.poll(1).get(0).getMessage().getId());
+	}
+
+	@Test
+	public void clearRemovesStaleFiles() throws IOException {
+		add(0, 50);
+
+		spill.clear();
+
+		assertTrue(spill.isEmpty());
+		assertEquals(0, files().length);
+	}
+
+	@Test
+	public void recoversFilesLeftByAPreviousRun() throws IOException {
+		add(0, 50);
+		// Flush the buffered records, as if the previous run stopped there.
+		spill.poll(0);
+		File[] files = files();
+		try (RandomAccessFile raf = new RandomAccessFile(files[files.length - 1], "rw")) {
+			// The record being written when the previous run stopped.
+			raf.setLength(raf.length() - 3);
+		}
+
+		SpillQueue recovering = new SpillQueue(directory, 512, false);
+		List<String> ids = Lists.newArrayList();
+		int recovered = recovering.recover(record -> {
+			ids.add(record.getMessage().getId());
+			// Recovered records may be spilled again.
+			try {
+				recovering.add(record);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+
+		assertEquals(49, recovered);
+		assertEquals(ids(0, 49), ids);
+		List<String> spilled = Lists.newArrayList();
+		for (WalRecord record : recovering.poll(Integer.MAX_VALUE)) {
+			spilled.add(record.getMessage().getId());
+		}
+		assertEquals(ids(0, 49), spilled);
+		assertEquals(0, files().length);
+	}
+
+	private void add(int from, int count) throws IOException {
+		for (String id : ids(from, count)) {
+			spill.add(WalRecord.message(WalCodecTest.message(id)));
+		}
+	}
+
+	private File[] files() {
+		File[] files = directory.listFiles();
+		Arrays.sort(files);
+		return files;
+	}
+
+	private static List<String> ids(int from, int count) {
+		List<String> ids = Lists.newArrayListWithCapacity(count);
+		for (int i = from; i < from + count; i++) {
+			ids.add("m" + i);
+		}
+		return ids;
+	}
+}
@@ -0,0 +1,112 @@
+package com.i7.openfire.archive.wal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+import com.i7.openfire.archive.enums.MessageStatus;
+import com.i7.openfire.archive.model.ArchivedMessage;
+import com.i7.openfire.archive.model.Conversation;
+
+public class WalCodecTest {
+
+	@Test
+	public void roundTripsMessage() {
+		ArchivedMessage message = new ArchivedMessage("m1", new JID("bob@example.com/phone"),
+				new JID("alice@example.com"), "héllo <world> & ☃", 1000, 2000,
+				"alice@example.com_bob@example.com", MessageStatus.SENT);
+
+		WalRecord decoded = WalCodec.decode(ByteBuffer.wrap(WalCodec.encode(WalRecord.message(message))));
+
+		assertEquals(WalRecord.Type.MESSAGE, decoded.getType());
+		assertMessage(message, decoded.getMessage());
+	}
+
+	@Test
+	public void roundTripsStatusUpdateWithoutBody() {
+		ArchivedMessage update = new ArchivedMessage("m1", new JID("bob@example.com"), new JID("alice@example.com"),
+				null, 1000, 3000, "alice@example.com_bob@example.com", MessageStatus.DELIVERED);
+
+		WalRecord decoded = WalCodec.decode(ByteBuffer.wrap(WalCodec.encode(WalRecord.status(update))));
+
+		assertEquals(WalRecord.Type.STATUS, decoded.getType());
+		assertMessage(update, decoded.getMessage());
+	}
+
+	@Test
+	public void roundTripsConversation() {
+		Conversation conversation = new Conversation("alice@example.com_bob@example.com", "alice@example.com",
+				"bob@example.com", 1000, 2000);
+		conversation.setMessageCount(42);
+
+		WalRecord decoded = WalCodec.decode(ByteBuffer.wrap(WalCodec.encode(WalRecord.conversation(conversation))));
+
+		assertEquals(WalRecord.Type.CONVERSATION, decoded.getType());
+		Conversation copy = decoded.getConversation();
+		assertEquals(conversation.getId(), copy.getId());
+		assertEquals(conversation.getParticipantOne(), copy.getParticipantOne());
+		assertEquals(conversation.getParticipantTwo(), copy.getParticipantTwo());
+		assertEquals(conversation.getCreatedAt(), copy.getCreatedAt());
+		assertEquals(conversation.getUpdatedAt(), copy.getUpdatedAt());
+		assertEquals(conversation.getMessageCount(), copy.getMessageCount());
+	}
+
+	@Test
+	public void decodesConsecutiveFramesUntilEmptyLength() {
+		byte[] first = WalCodec.encode(WalRecord.message(message("m1")));
+		byte[] second = WalCodec.encode(WalRecord.message(message("m2")));
+		ByteBuffer buffer = ByteBuffer.allocate(first.length + second.length + 64);
+		buffer.put(first).put(second).position(0);
+
+		assertEquals("m1", WalCodec.decode(buffer).getMessage().getId());
+		assertEquals("m2", WalCodec.decode(buffer).getMessage().getId());
+		assertNull(WalCodec.decode(buffer));
+	}
+
+	@Test
+	public void rejectsTruncatedFrame() {
+		byte[] frame = WalCodec.encode(WalRecord.message(message("m1")));
+
+		for (int length = 0; length < frame.length; length++) {
+			assertNull("Truncated at " + length,
+					WalCodec.decode(ByteBuffer.wrap(Arrays.copyOf(frame, length))));
+		}
+	}
+
+	@Test
+	public void rejectsCorruptPayload() {
+		byte[] frame = WalCodec.encode(WalRecord.message(message("m1")));
+		frame[frame.length / 2] ^= 0x10;
+
+		assertNull(WalCodec.decode(ByteBuffer.wrap(frame)));
+	}
+
+	@Test
+	public void rejectsCorruptLength() {
+		byte[] frame = WalCodec.encode(WalRecord.message(message("m1")));
+		ByteBuffer.wrap(frame).putInt(0, frame.length);
+
+		assertNull(WalCodec.decode(ByteBuffer.wrap(frame)));
+	}
+
+	static ArchivedMessage message(String id) {
+		return new ArchivedMessage(id, new JID("bob@example.com"), new JID("alice@example.com"), "body of " + id,
+				1000, 1000, "alice@example.com_bob@example.com", MessageStatus.SENT);
+	}
+
+	static void assertMessage(ArchivedMessage expected, ArchivedMessage actual) {
+		assertEquals(expected.getId(), actual.getId());
+		assertEquals(expected.getTo(), actual.getTo());
+		assertEquals(expected.getFrom(), actual.getFrom());
+		assertEquals(expected.getBody(), actual.getBody());
+		assertEquals(expected.getStatus(), actual.getStatus());
+		assertEquals(expected.getCreatedAt(), actual.getCreatedAt());
+		assertEquals(expected.getUpdatedAt(), actual.getUpdatedAt());
+		assertEquals(expected.getConversationID(), actual.getConversationID());
+	}
+}
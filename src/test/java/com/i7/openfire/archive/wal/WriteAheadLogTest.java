@@ -0,0 +1,127 @@
+package com.i7.openfire.archive.wal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.Lists;
+
+public class WriteAheadLogTest {
+
+	private static final int SEGMENT_SIZE = 4096;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File directory;
+	private WriteAheadLog wal;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = folder.newFolder("wal");
+		wal = new WriteAheadLog(true, directory, SEGMENT_SIZE, 60000);
+		wal.start();
+	}
+
+	@After
+	public void tearDown() {
+		if (wal != null) {
+			wal.stop();
+		}
+	}
+
+	@Test
+	public void rollsOnlyWhenFull() {
+		List<WalRecord> records = append(5);
+
+		assertEquals(1, wal.getSegmentCount());
+		for (WalRecord record : records) {
+			assertEquals(records.get(0).getSegment(), record.getSegment());
+		}
+	}
+
+	@Test
+	public void keepsSegmentsFromTheOldestReferencedOne() {
+		List<WalRecord> records = append(200);
+		long first = records.get(0).getSegment();
+		int segments = wal.getSegmentCount();
+		assertNotEquals(first, records.get(records.size() - 1).getSegment());
+
+		// Everything but the oldest record is written.
+		for (WalRecord record : records.subList(1, records.size())) {
+			wal.release(record.getSegment());
+		}
+		wal.truncate();
+		assertEquals(segments, wal.getSegmentCount());
+
+		wal.release(first);
+		wal.truncate();
+		assertEquals(1, wal.getSegmentCount());
+	}
+
+	@Test
+	public void keepsTheCurrentSegment() {
+		for (WalRecord record : append(3)) {
+			wal.release(record.getSegment());
+		}
+		wal.truncate();
+
+		assertEquals(1, wal.getSegmentCount());
+	}
+
+	@Test
+	public void replaysUnreleasedRecordsWithTheirSegments() {
+		List<WalRecord> records = append(200);
+		wal.stop();
+
+		wal = new WriteAheadLog(true, directory, SEGMENT_SIZE, 60000);
+		List<WalRecord> replayed = Lists.newArrayList();
+		wal.replay(replayed::add);
+		wal.start();
+
+		assertEquals(records.size(), replayed.size());
+		for (int i = 0; i < records.size(); i++) {
+			assertEquals(records.get(i).getMessage().getId(), replayed.get(i).getMessage().getId());
+			assertEquals(records.get(i).getSegment(), replayed.get(i).getSegment());
+		}
+
+		// Replayed segments are kept until their records are released.
+		int segments = wal.getSegmentCount();
+		wal.truncate();
+		assertEquals(segments, wal.getSegmentCount());
+		for (WalRecord record : replayed) {
+			wal.release(record.getSegment());
+		}
+		wal.truncate();
+		assertEquals(1, wal.getSegmentCount());
+	}
+
+	@Test
+	public void disabledLogDoesNotReferenceSegments() {
+		WriteAheadLog disabled = new WriteAheadLog(false, directory, SEGMENT_SIZE, 60000);
+		WalRecord record = WalRecord.message(WalCodecTest.message("m1"));
+
+		disabled.append(record);
+
+		assertEquals(WriteAheadLog.NO_SEGMENT, record.getSegment());
+	}
+
+	private List<WalRecord> append(int count) {
+		List<WalRecord> records = Lists.newArrayListWithCapacity(count);
+		for (int i = 0; i < count; i++) {
+			WalRecord record = WalRecord.message(WalCodecTest.message("m" + i));
+			wal.append(record);
+			records.add(record);
+		}
+		return records;
+	}
+}
@@ -0,0 +1,89 @@
+package com.i7.openfire.archive.xep;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Iterator;
+
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.Node;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+import com.i7.openfire.archive.enums.MessageStatus;
+import com.i7.openfire.archive.model.ArchivedMessage;
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.io.xml.DomDriver;
+
+/**
+ * Checks the elements written are the ones XStream used to produce.
+ */
+public class ArchivedMessageWriterTest {
+
+	private static final String CONVERSATION = "alice@example.com_bob@example.com";
+
+	@Test
+	public void writesMessageAsXStream() throws DocumentException {
+		assertWritten(new ArchivedMessage("m1", new JID("bob@example.com"), new JID("alice@example.com"), "Hello",
+				1000, 2000, CONVERSATION, MessageStatus.SENT));
+	}
+
+	@Test
+	public void writesEscapedTextAsXStream() throws DocumentException {
+		assertWritten(new ArchivedMessage("m1<&>", new JID("bob@example.com"), new JID("alice@example.com"),
+				"a < b && c > \"d\" 'e'\r\nline\ttab ☃ 😀", 1000, 2000, CONVERSATION,
+				MessageStatus.SENT));
+	}
+
+	@Test
+	public void writesJidResourceAsXStream() throws DocumentException {
+		assertWritten(new ArchivedMessage("m1", new JID("bob@example.com/phone"),
+				new JID("alice@example.com/home office"), "Hello", 1000, 2000, CONVERSATION,
+				MessageStatus.DELIVERED));
+	}
+
+	@Test
+	public void writesDomainJidAsXStream() throws DocumentException {
+		assertWritten(new ArchivedMessage("m1", new JID("example.com"), new JID("alice@example.com"), "Hello", 1000,
+				2000, CONVERSATION, MessageStatus.SENT));
+	}
+
+	@Test
+	public void leavesOutNullFieldsAsXStream() throws DocumentException {
+		assertWritten(new ArchivedMessage("m1", null, new JID("alice@example.com"), null, 1000, 2000, null, null));
+	}
+
+	private static void assertWritten(ArchivedMessage message) throws DocumentException {
+		Element written = ArchivedMessageWriter.write(DocumentHelper.createElement("result"), message);
+
+		assertEquals(xstream(message).asXML(), written.asXML());
+	}
+
+	/**
+	 * Returns the element of a message as it used to be built: serialized by
+	 * XStream and parsed back, without the whitespace between elements.
+	 */
+	private static Element xstream(ArchivedMessage message) throws DocumentException {
+		// The DOM driver writes the same text as the default one, without
+		// needing an XML pull parser.
+		Element element = DocumentHelper.parseText(new XStream(new DomDriver()).toXML(message)).getRootElement();
+		removeIndentation(element);
+		return element;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void removeIndentation(Element element) {
+		if (element.elements().isEmpty()) {
+			return;
+		}
+		for (Iterator<Node> nodes = element.content().iterator(); nodes.hasNext();) {
+			Node node = nodes.next();
+			if (node.getNodeType() == Node.TEXT_NODE && node.getText().trim().isEmpty()) {
+				nodes.remove();
+			} else if (node instanceof Element) {
+				removeIndentation((Element) node);
+			}
+		}
+	}
+}